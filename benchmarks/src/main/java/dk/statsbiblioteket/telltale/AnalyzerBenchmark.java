@@ -0,0 +1,76 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full analysis of a single image, by image size and {@code BufferedImage} type. The types cover the specialised
+ * {@link PixelAccess} implementations: interleaved bytes, packed ints, grey bytes and packed bits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyzerBenchmark {
+    private static final File FILE = new File("synthetic.png");
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"TYPE_3BYTE_BGR", "TYPE_INT_RGB", "TYPE_BYTE_GRAY", "TYPE_BYTE_BINARY"})
+    public String type;
+
+    private BufferedImage image;
+    private final NearestNeighbourDetect nearest = new NearestNeighbourDetect();
+    private final BilinearDetect bilinear = new BilinearDetect();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        image = BenchmarkImages.create(size, type);
+    }
+
+    @Benchmark
+    public AnalysisResult nearestNeighbour() {
+        return nearest.analyze(FILE, image);
+    }
+
+    @Benchmark
+    public AnalysisResult bilinear() {
+        return bilinear.analyze(FILE, image);
+    }
+
+    @Benchmark
+    public double averageContrast() {
+        return nearest.averageContrast(image, 3);
+    }
+}
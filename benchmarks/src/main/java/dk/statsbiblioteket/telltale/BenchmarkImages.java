@@ -0,0 +1,62 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic images for the benchmarks, so that runs on different machines and revisions measure the
+ * same work.
+ */
+public class BenchmarkImages {
+    public static final long SEED = 87;
+
+    /**
+     * Blocky random content at half the size, upscaled x2 with Bilinear interpolation. This is a realistic case
+     * for the detectors: it passes the exact replication screen and gives all offsets similar statistics.
+     * @param size the width and height of the image.
+     * @param type a {@code BufferedImage.TYPE_*} name, e.g. {@code TYPE_INT_RGB}.
+     * @return an image of the given size and type.
+     */
+    public static BufferedImage create(int size, String type) {
+        final Random random = new Random(SEED);
+        final BufferedImage source = new BufferedImage(size/2, size/2, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0 ; y < source.getHeight() ; y++) {
+            for (int x = 0 ; x < source.getWidth() ; x++) {
+                // Neighbouring pixels are correlated, as in scans
+                final int base = x > 0 ? source.getRGB(x-1, y) : random.nextInt(0xFFFFFF);
+                source.setRGB(x, y, random.nextInt(8) == 0 ? random.nextInt(0xFFFFFF) :
+                                    base ^ (random.nextInt(8) | random.nextInt(8) << 8 | random.nextInt(8) << 16));
+            }
+        }
+        final BufferedImage scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        new AffineTransformOp(AffineTransform.getScaleInstance(2, 2), AffineTransformOp.TYPE_BILINEAR)
+                .filter(source, scaled);
+        final BufferedImage converted = new BufferedImage(size, size, getType(type));
+        converted.getGraphics().drawImage(scaled, 0, 0, null);
+        return converted;
+    }
+
+    static int getType(String type) {
+        try {
+            return BufferedImage.class.getField(type).getInt(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Unknown BufferedImage type '" + type + "'", e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes a corpus of {@link SyntheticImage}s to disk for {@link ThroughputSuite}: for each pixel type an image
+ * that is not upscaled and images upscaled with each filter and factor, both aligned and cropped so that the
+ * upscale grid does not start at the top left corner. The images are rendered strip by strip while they are
+ * written, so the size is only limited by the disk and the image format (use TIFF for images above 2 gigapixels).
+ * </p><p>
+ * The corpus is described in {@code manifest.csv} in the output folder, with the expected result for each image.
+ */
+public class CorpusGenerator {
+    public static final String MANIFEST = "manifest.csv";
+    public static final String MANIFEST_HEADER = "file,type,filter,factor,cropX,cropY";
+
+    public static final String USAGE =
+            "Usage: CorpusGenerator [options] <folder>\n"
+            + "  -size <pixels>     Width and height of the images. Default: 4096. Use 32768 for gigapixel images\n"
+            + "  -types <types>     Comma separated BufferedImage types. "
+            + "Default: TYPE_3BYTE_BGR,TYPE_BYTE_GRAY,TYPE_BYTE_BINARY\n"
+            + "  -factors <factors> Comma separated upscale factors. Default: 1.5,2,3\n"
+            + "  -format <format>   ImageIO format name, e.g. tiff or png. Default: tiff\n"
+            + "  -seed <seed>       Seed for the image content. Default: 87\n"
+            + "Sample: CorpusGenerator -size 32768 -types TYPE_BYTE_GRAY -factors 2 /data/corpus";
+
+    private static final int[][] CROPS = {{0, 0}, {1, 2}};
+
+    public static void main(String[] args) throws IOException {
+        int size = 4096;
+        List<String> types = Arrays.asList("TYPE_3BYTE_BGR", "TYPE_BYTE_GRAY", "TYPE_BYTE_BINARY");
+        List<Double> factors = Arrays.asList(1.5, 2.0, 3.0);
+        String format = "tiff";
+        long seed = BenchmarkImages.SEED;
+        int argIndex = 0;
+        while (argIndex < args.length - 1 && args[argIndex].startsWith("-")) {
+            switch (args[argIndex]) {
+                case "-size": size = Integer.parseInt(args[++argIndex]); break;
+                case "-types": types = Arrays.asList(args[++argIndex].split(",")); break;
+                case "-factors": {
+                    factors = new ArrayList<>();
+                    for (String factor: args[++argIndex].split(",")) {
+                        factors.add(Double.parseDouble(factor));
+                    }
+                    break;
+                }
+                case "-format": format = args[++argIndex]; break;
+                case "-seed": seed = Long.parseLong(args[++argIndex]); break;
+                default: {
+                    System.err.println("Unknown option '" + args[argIndex] + "'\n" + USAGE);
+                    System.exit(2);
+                }
+            }
+            argIndex++;
+        }
+        if (argIndex != args.length - 1) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        File folder = new File(args[argIndex]);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create the folder '" + folder + "'");
+        }
+
+        List<SyntheticImage> images = new ArrayList<>();
+        List<String> typeNames = new ArrayList<>();
+        for (String type: types) {
+            final int typeID = BenchmarkImages.getType(type);
+            images.add(new SyntheticImage(size, size, typeID, SyntheticImage.Filter.NONE, 1, 0, 0, seed));
+            for (SyntheticImage.Filter filter: new SyntheticImage.Filter[]{
+                    SyntheticImage.Filter.NEAREST, SyntheticImage.Filter.BILINEAR, SyntheticImage.Filter.BICUBIC}) {
+                for (double factor: factors) {
+                    for (int[] crop: CROPS) {
+                        images.add(new SyntheticImage(size, size, typeID, filter, factor, crop[0], crop[1], seed));
+                    }
+                }
+            }
+            while (typeNames.size() < images.size()) {
+                typeNames.add(type);
+            }
+        }
+
+        try (PrintWriter manifest = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(folder, MANIFEST)), StandardCharsets.UTF_8))) {
+            manifest.println(MANIFEST_HEADER);
+            for (int i = 0 ; i < images.size() ; i++) {
+                final SyntheticImage image = images.get(i);
+                final String name = String.format(Locale.ENGLISH, "synthetic_%03d.%s", i, format);
+                final long startTime = System.nanoTime();
+                if (!ImageIO.write(image, format, new File(folder, name))) {
+                    throw new IOException("No ImageIO writer for the format '" + format + "'");
+                }
+                final String line = String.format(Locale.ENGLISH, "%s,%s,%s,%s,%d,%d", name, typeNames.get(i),
+                        image.getFilter(), image.getFactor(), image.getCropX(), image.getCropY());
+                manifest.println(line);
+                System.out.println(String.format(Locale.ENGLISH, "%s (%.1f seconds)",
+                                                 line, (System.nanoTime() - startTime) / 1.0E9));
+            }
+        }
+    }
+}
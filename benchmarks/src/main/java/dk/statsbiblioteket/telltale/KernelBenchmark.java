@@ -0,0 +1,129 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-block kernels of the analyzers, run over all blocks in 3 rows of an image. Each benchmark processes a
+ * full row of blocks, so the scores are comparable between the kernels and scale with the image width.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark {
+    private static final int SIDE = 3;
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"TYPE_3BYTE_BGR", "TYPE_BYTE_GRAY"})
+    public String type;
+
+    private final NearestNeighbourDetect analyzer = new NearestNeighbourDetect();
+    private final int[][][] rows = new int[SIDE][][];
+    private final long[][] rectRGB = new long[3][SIDE*SIDE];
+    private final double[] maxCache = new double[3];
+    private final Stats.Accumulator accumulator = new Stats.Accumulator();
+    private long[] values;
+    private double[] doubleValues;
+    private long[] histogram;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        PixelAccess pixels = PixelAccess.create(BenchmarkImages.create(size, type));
+        for (int y = 0 ; y < SIDE ; y++) {
+            rows[y] = new int[3][size];
+            pixels.readRow(y, rows[y]);
+        }
+        values = new long[size];
+        doubleValues = new double[size];
+        histogram = new long[256];
+        for (int x = 0 ; x < size ; x++) {
+            values[x] = rows[0][0][x];
+            doubleValues[x] = rows[0][0][x];
+            histogram[rows[0][0][x]]++;
+        }
+    }
+
+    @Benchmark
+    public long extractChannelValues() {
+        long sum = 0;
+        for (int x = 0 ; x <= size - SIDE ; x += SIDE) {
+            analyzer.extractChannelValues(rows, x, SIDE, SIDE, rectRGB);
+            sum += rectRGB[2][SIDE*SIDE-1];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double getMaxDeviation() {
+        double sum = 0;
+        for (int x = 0 ; x <= size - SIDE ; x += SIDE) {
+            analyzer.extractChannelValues(rows, x, SIDE, SIDE, rectRGB);
+            sum += analyzer.getMaxDeviation(rectRGB, maxCache);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double standardDeviation4() {
+        double sum = 0;
+        for (int x = 0 ; x <= size - 4 ; x += 4) {
+            sum += Stats.standardDeviation(values[x], values[x+1], values[x+2], values[x+3]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double standardDeviationArray() {
+        return Stats.standardDeviation(values);
+    }
+
+    @Benchmark
+    public double standardDeviationDoubleArray() {
+        return Stats.standardDeviation(doubleValues);
+    }
+
+    @Benchmark
+    public double standardDeviationFromHistogram() {
+        return Stats.standardDeviationFromHistogram(histogram);
+    }
+
+    @Benchmark
+    public double accumulator() {
+        accumulator.clear();
+        for (long value: values) {
+            accumulator.add(value);
+        }
+        return accumulator.getStandardDeviation();
+    }
+}
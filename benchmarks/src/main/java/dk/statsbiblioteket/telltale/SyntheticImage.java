@@ -0,0 +1,404 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * A procedural test image of any size, optionally upscaled and cropped, which is rendered strip by strip on
+ * request. Only the strips being written are held in memory, so gigapixel images can be written with ImageIO.
+ * </p><p>
+ * The source image is a pattern of rectangular patches of random sizes and colours with per-pixel noise, fully
+ * determined by the seed. It is upscaled by the factor with the filter, cropped by removing the first
+ * {@code cropX} columns and {@code cropY} rows, and converted to the {@code BufferedImage} type.
+ * Nearest Neighbour maps output column x to source column {@code floor((x+cropX)/factor)}, so the first complete
+ * cell starts at column {@code (-cropX) mod factor}. Bilinear and Bicubic (Catmull-Rom) interpolate with the pixel
+ * centres aligned, as most image editors do.
+ * </p><p>
+ * This class is not thread safe.
+ */
+public class SyntheticImage implements RenderedImage {
+    public static final int STRIP_HEIGHT = 64;
+    private static final int MIN_PATCH = 5;
+    private static final int MAX_PATCH = 40;
+    private static final int NOISE = 12;
+
+    public enum Filter {NONE, NEAREST, BILINEAR, BICUBIC}
+
+    private final int width;
+    private final int height;
+    private final int type;
+    private final Filter filter;
+    private final double factor;
+    private final int cropX;
+    private final int cropY;
+    private final long seed;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+
+    // The source columns and their weights for each output column, as [x][tap]
+    private final int[][] columnSources;
+    private final double[][] columnWeights;
+    private final int sourceLeft;
+    private final int sourceWidth;
+    // Source rows for the recently rendered output rows, indexed by source row modulo the length
+    private final int[][] sourceRows = new int[8][];
+    // The band of patches for each source row and the first row of each band
+    private final int[] bandIndexes;
+    private final int[] bandTops;
+    private final int[] sourceRowIndexes = new int[8];
+    private final double[][] mixed;
+
+    /**
+     * @param width  the width of the image after upscaling and cropping.
+     * @param height the height of the image after upscaling and cropping.
+     * @param type   a {@code BufferedImage.TYPE_*} constant.
+     * @param filter the interpolation used for upscaling.
+     * @param factor the scale factor. Ignored for {@link Filter#NONE}.
+     * @param cropX  the number of columns removed from the left after upscaling.
+     * @param cropY  the number of rows removed from the top after upscaling.
+     * @param seed   the seed for the source pattern.
+     */
+    public SyntheticImage(int width, int height, int type, Filter filter, double factor, int cropX, int cropY,
+                          long seed) {
+        this.width = width;
+        this.height = height;
+        this.type = type;
+        this.filter = filter;
+        this.factor = filter == Filter.NONE ? 1 : factor;
+        this.cropX = cropX;
+        this.cropY = cropY;
+        this.seed = seed;
+        final BufferedImage prototype = new BufferedImage(1, 1, type);
+        colorModel = prototype.getColorModel();
+        sampleModel = prototype.getSampleModel().createCompatibleSampleModel(width, STRIP_HEIGHT);
+
+        columnSources = new int[width][];
+        columnWeights = new double[width][];
+        int left = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        for (int x = 0 ; x < width ; x++) {
+            columnSources[x] = getSources(x + cropX);
+            columnWeights[x] = getWeights(x + cropX);
+            left = Math.min(left, columnSources[x][0]);
+            right = Math.max(right, columnSources[x][columnSources[x].length-1]);
+        }
+        sourceLeft = left;
+        sourceWidth = right - left + 1;
+        mixed = new double[3][sourceWidth];
+
+        final int sourceHeight = getSources(height - 1 + cropY)[filter == Filter.BICUBIC ? 3 :
+                filter == Filter.BILINEAR ? 1 : 0] + 1;
+        bandIndexes = new int[sourceHeight];
+        final List<Integer> tops = new ArrayList<>();
+        for (int y = 0 ; y < sourceHeight ; y++) {
+            if (tops.isEmpty() || y - tops.get(tops.size()-1) == getPatchSide(hash(seed, -1, tops.size()-1))) {
+                tops.add(y);
+            }
+            bandIndexes[y] = tops.size()-1;
+        }
+        bandTops = new int[tops.size()];
+        for (int i = 0 ; i < bandTops.length ; i++) {
+            bandTops[i] = tops.get(i);
+        }
+        Arrays.fill(sourceRowIndexes, Integer.MIN_VALUE);
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public double getFactor() {
+        return factor;
+    }
+
+    public int getCropX() {
+        return cropX;
+    }
+
+    public int getCropY() {
+        return cropY;
+    }
+
+    // The source positions that contribute to the output position, clamped to the top left edge
+    private int[] getSources(int position) {
+        final int first;
+        final int taps;
+        switch (filter) {
+            case NONE: return new int[]{position};
+            case NEAREST: return new int[]{(int) Math.floor(position / factor + 1.0E-9)};
+            case BILINEAR: first = (int) Math.floor((position + 0.5) / factor - 0.5); taps = 2; break;
+            case BICUBIC: first = (int) Math.floor((position + 0.5) / factor - 0.5) - 1; taps = 4; break;
+            default: throw new IllegalStateException("Unknown filter " + filter);
+        }
+        final int[] sources = new int[taps];
+        for (int i = 0 ; i < taps ; i++) {
+            sources[i] = Math.max(0, first + i);
+        }
+        return sources;
+    }
+
+    private double[] getWeights(int position) {
+        final double u = (position + 0.5) / factor - 0.5;
+        final double t = u - Math.floor(u);
+        switch (filter) {
+            case NONE:
+            case NEAREST: return new double[]{1};
+            case BILINEAR: return new double[]{1 - t, t};
+            case BICUBIC: return new double[]{
+                    ((-0.5*t + 1.0)*t - 0.5)*t,
+                    (1.5*t - 2.5)*t*t + 1,
+                    ((-1.5*t + 2.0)*t + 0.5)*t,
+                    (0.5*t - 0.5)*t*t};
+            default: throw new IllegalStateException("Unknown filter " + filter);
+        }
+    }
+
+    /**
+     * Renders a row of the image as sRGB.
+     * @param y   the row to render.
+     * @param rgb the destination for the pixels, at least width long.
+     */
+    public void renderRow(int y, int[] rgb) {
+        final int[] sources = getSources(y + cropY);
+        final double[] weights = getWeights(y + cropY);
+        for (double[] channel: mixed) {
+            Arrays.fill(channel, 0);
+        }
+        for (int tap = 0 ; tap < sources.length ; tap++) {
+            final int[] source = getSourceRow(sources[tap]);
+            final double weight = weights[tap];
+            for (int x = 0 ; x < sourceWidth ; x++) {
+                mixed[0][x] += weight * (source[x] >> 16 & 0xFF);
+                mixed[1][x] += weight * (source[x] >> 8 & 0xFF);
+                mixed[2][x] += weight * (source[x] & 0xFF);
+            }
+        }
+        for (int x = 0 ; x < width ; x++) {
+            final int[] columns = columnSources[x];
+            final double[] columnWeight = columnWeights[x];
+            int pixel = 0;
+            for (int channel = 0 ; channel < 3 ; channel++) {
+                double value = 0;
+                for (int tap = 0 ; tap < columns.length ; tap++) {
+                    value += columnWeight[tap] * mixed[channel][columns[tap] - sourceLeft];
+                }
+                pixel = pixel << 8 | (int) Math.max(0, Math.min(255, Math.round(value)));
+            }
+            rgb[x] = pixel;
+        }
+    }
+
+    private int[] getSourceRow(int sourceY) {
+        final int slot = sourceY & (sourceRows.length - 1);
+        if (sourceRowIndexes[slot] != sourceY) {
+            if (sourceRows[slot] == null) {
+                sourceRows[slot] = new int[sourceWidth];
+            }
+            renderSourceRow(sourceY, sourceRows[slot]);
+            sourceRowIndexes[slot] = sourceY;
+        }
+        return sourceRows[slot];
+    }
+
+    // Patches of random sizes in random colours, some of them split diagonally, with noise on top. The rows are
+    // divided into bands and each band into patches of its own widths, so there is no periodic grid
+    private void renderSourceRow(int sourceY, int[] row) {
+        final int band = bandIndexes[sourceY];
+        final int bandY = sourceY - bandTops[band];
+        final int bandHeight = getPatchSide(hash(seed, -1, band));
+        int patchIndex = 0;
+        int patchLeft = 0;
+        int patchWidth = getPatchSide(hash(seed, band, 0));
+        long patch = hash(seed ^ band, patchIndex, band);
+        for (int x = 0 ; x < sourceLeft + sourceWidth ; x++) {
+            if (x - patchLeft == patchWidth) {
+                patchIndex++;
+                patchLeft = x;
+                patchWidth = getPatchSide(hash(seed, band, patchIndex));
+                patch = hash(seed ^ band, patchIndex, band);
+            }
+            if (x < sourceLeft) {
+                continue;
+            }
+            final long colour = (patch & 3) == 0 && (x - patchLeft) * bandHeight / patchWidth > bandY ?
+                    hash(patch, patchIndex, band) : patch;
+            final long noise = hash(seed ^ colour, x, sourceY);
+            int pixel = 0;
+            for (int channel = 0 ; channel < 3 ; channel++) {
+                final int base = (int) (colour >>> (8 + 8*channel) & 0xFF);
+                final int offset = (int) ((noise >>> (8*channel) & 0xFF) % (2*NOISE + 1)) - NOISE;
+                pixel = pixel << 8 | Math.max(0, Math.min(255, base + offset));
+            }
+            row[x - sourceLeft] = pixel;
+        }
+    }
+
+    private static int getPatchSide(long hash) {
+        return MIN_PATCH + (int) ((hash >>> 1) % (MAX_PATCH - MIN_PATCH + 1));
+    }
+
+    // SplitMix64 finalizer on the combined inputs
+    private static long hash(long seed, int x, int y) {
+        long z = seed + 0x9E3779B97F4A7C15L * (((long) x << 32) ^ (y & 0xFFFFFFFFL) ^ 0x5851F42D4C957F2DL);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        return getData(new Rectangle(0, tileY * STRIP_HEIGHT, width,
+                                     Math.min(STRIP_HEIGHT, height - tileY * STRIP_HEIGHT)));
+    }
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        final WritableRaster raster = colorModel.createCompatibleWritableRaster(rect.width, rect.height);
+        render(raster, rect.x, rect.y);
+        return raster.createTranslatedChild(rect.x, rect.y);
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) {
+            return (WritableRaster) getData();
+        }
+        final Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+        final WritableRaster target = raster.createWritableChild(
+                bounds.x, bounds.y, bounds.width, bounds.height, 0, 0, null);
+        render(target, bounds.x, bounds.y);
+        return raster;
+    }
+
+    // Renders the pixels from (x, y) and onwards into the raster, which has its origin at (0, 0)
+    private void render(WritableRaster raster, int x, int y) {
+        final BufferedImage target = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+        final int[] row = new int[width];
+        for (int rasterY = 0 ; rasterY < raster.getHeight() ; rasterY++) {
+            renderRow(y + rasterY, row);
+            target.setRGB(0, rasterY, raster.getWidth(), 1, row, x, width);
+        }
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return colorModel;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return sampleModel;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return 1;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return (height + STRIP_HEIGHT - 1) / STRIP_HEIGHT;
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return width;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return STRIP_HEIGHT;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+
+    /**
+     * @return the {@code BufferedImage.TYPE_*} of the image.
+     */
+    public int getType() {
+        return type;
+    }
+}
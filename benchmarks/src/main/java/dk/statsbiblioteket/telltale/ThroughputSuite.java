@@ -0,0 +1,240 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * End-to-end measurement of {@link Detect} on a corpus from {@link CorpusGenerator}: every image is decoded and
+ * analyzed by the same analyzers as the command line tool, and the throughput is reported as images/s, megapixels/s
+ * and MB/s of image files, both for the full run and for the analysis alone.
+ * </p><p>
+ * The detection accuracy is tracked at the same time, so that an optimization that makes the analyzers faster but
+ * less precise is caught. An image counts as detected with the factor stated by the periodicity detector, else the
+ * factor stated by the multi-factor detector. The Nearest Neighbour and Bilinear detectors only rank offsets and
+ * have no threshold, so they do not count. The detection is correct if it is within 1% of the factor in the
+ * manifest, or if nothing is detected for an image that is not upscaled. The correct detections are counted per
+ * filter and factor and can be written to a file, which a later run can be compared against with {@code -baseline}.
+ */
+public class ThroughputSuite {
+    public static final double FACTOR_TOLERANCE = 0.01;
+
+    private static final String PERIODICITY_NAME = new PeriodicityDetect().getName();
+    private static final String MULTI_FACTOR_NAME = new MultiFactorDetect().getName();
+
+    public static final String USAGE =
+            "Usage: ThroughputSuite [options] <corpus folder>\n"
+            + "  -threads <count>   Analyze each image in parallel strips on this many threads. Default: 1\n"
+            + "  -band <rows>       Decode the images in bands of this many rows instead of fully\n"
+            + "  -write <file>      Write the detection accuracy per category to the file\n"
+            + "  -baseline <file>   Exit with code 1 if the accuracy for any category is below the one in the file\n"
+            + "Sample: ThroughputSuite -threads 4 -band 1024 -baseline accuracy.tsv /data/corpus";
+
+    public static void main(String[] args) throws IOException {
+        int threads = 1;
+        int bandHeight = -1;
+        File write = null;
+        File baseline = null;
+        int argIndex = 0;
+        while (argIndex < args.length - 1 && args[argIndex].startsWith("-")) {
+            switch (args[argIndex]) {
+                case "-threads": threads = Integer.parseInt(args[++argIndex]); break;
+                case "-band": bandHeight = Integer.parseInt(args[++argIndex]); break;
+                case "-write": write = new File(args[++argIndex]); break;
+                case "-baseline": baseline = new File(args[++argIndex]); break;
+                default: {
+                    System.err.println("Unknown option '" + args[argIndex] + "'\n" + USAGE);
+                    System.exit(2);
+                }
+            }
+            argIndex++;
+        }
+        if (argIndex != args.length - 1) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        final File folder = new File(args[argIndex]);
+        final Detect detect = new Detect(threads > 1 ? new ForkJoinPool(threads) : null);
+        final Map<String, int[]> accuracy = new TreeMap<>();
+
+        long totalNanos = 0;
+        long analysisNanos = 0;
+        long pixels = 0;
+        long bytes = 0;
+        int images = 0;
+        System.out.println("File                   Type               Category       Detected  Correct  Seconds");
+        for (String[] entry: readManifest(folder)) {
+            final File file = new File(folder, entry[0]);
+            final String category = getCategory(entry[2], Double.parseDouble(entry[3]));
+            final long startTime = System.nanoTime();
+            final long[] analysisTime = new long[1];
+            final List<AnalysisResult> results;
+            if (bandHeight > 0) {
+                try (BandedPixelAccess banded = BandedPixelAccess.open(file, bandHeight)) {
+                    pixels += (long) banded.getWidth() * banded.getHeight();
+                    results = analyze(detect, file, banded, analysisTime);
+                }
+            } else {
+                final BufferedImage image = ImageIO.read(file);
+                if (image == null) {
+                    throw new IOException("Unable to read '" + file + "' as an image");
+                }
+                pixels += (long) image.getWidth() * image.getHeight();
+                results = analyze(detect, file, PixelAccess.create(image), analysisTime);
+            }
+            final long nanos = System.nanoTime() - startTime;
+            totalNanos += nanos;
+            analysisNanos += analysisTime[0];
+            bytes += file.length();
+            images++;
+
+            final double detected = getDetectedFactor(results);
+            final double expected = "NONE".equals(entry[2]) ? 0 : Double.parseDouble(entry[3]);
+            final boolean correct = expected == 0 ? detected == 0 :
+                    Math.abs(detected - expected) <= expected * FACTOR_TOLERANCE;
+            if (!accuracy.containsKey(category)) {
+                accuracy.put(category, new int[2]);
+            }
+            accuracy.get(category)[0] += correct ? 1 : 0;
+            accuracy.get(category)[1]++;
+            System.out.println(String.format(Locale.ENGLISH, "%-22s %-18s %-14s %8s  %-7s  %7.2f", entry[0],
+                    entry[1], category, detected == 0 ? "none" : String.format(Locale.ENGLISH, "x%.3f", detected),
+                    correct, nanos / 1.0E9));
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.ENGLISH,
+                "End-to-end: %d images, %.2f images/s, %.1f megapixels/s, %.1f MB/s", images,
+                images * 1.0E9 / totalNanos, pixels * 1.0E3 / totalNanos, bytes * 1.0E3 / totalNanos));
+        System.out.println(String.format(Locale.ENGLISH,
+                "Analysis:   %.1f seconds, %.2f images/s, %.1f megapixels/s", analysisNanos / 1.0E9,
+                images * 1.0E9 / analysisNanos, pixels * 1.0E3 / analysisNanos));
+        System.out.println();
+        System.out.println("Category        Correct");
+        for (Map.Entry<String, int[]> category: accuracy.entrySet()) {
+            System.out.println(String.format(Locale.ENGLISH, "%-14s %4d/%d", category.getKey(),
+                                             category.getValue()[0], category.getValue()[1]));
+        }
+
+        if (write != null) {
+            writeAccuracy(accuracy, write);
+        }
+        if (baseline != null && !compare(readAccuracy(baseline), accuracy)) {
+            System.exit(1);
+        }
+    }
+
+    private static List<AnalysisResult> analyze(Detect detect, File file, PixelAccess pixels, long[] analysisTime) {
+        final long startTime = System.nanoTime();
+        final List<AnalysisResult> results = detect.getAnalyzer().analyze(file, pixels);
+        analysisTime[0] = System.nanoTime() - startTime;
+        return results;
+    }
+
+    /**
+     * @param results the results for a single image.
+     * @return the detected upscale factor, or 0 if the image does not seem to be upscaled.
+     */
+    static double getDetectedFactor(List<AnalysisResult> results) {
+        double periodicity = 0;
+        double multiFactor = 0;
+        for (AnalysisResult result: results) {
+            final double factor = result.getFactorX() > 0 ? result.getFactorX() : result.getFactorY();
+            if (PERIODICITY_NAME.equals(result.getTestName())) {
+                periodicity = factor;
+            } else if (MULTI_FACTOR_NAME.equals(result.getTestName())) {
+                multiFactor = factor;
+            }
+        }
+        return periodicity != 0 ? periodicity : multiFactor;
+    }
+
+    private static String getCategory(String filter, double factor) {
+        return "NONE".equals(filter) ? filter : String.format(Locale.ENGLISH, "%s x%s", filter, factor);
+    }
+
+    private static List<String[]> readManifest(File folder) throws IOException {
+        final List<String[]> entries = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(new File(folder, CorpusGenerator.MANIFEST)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty() && !CorpusGenerator.MANIFEST_HEADER.equals(line)) {
+                    entries.add(line.split(","));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static void writeAccuracy(Map<String, int[]> accuracy, File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, int[]> category: accuracy.entrySet()) {
+                out.println(category.getKey() + "\t" + category.getValue()[0] + "\t" + category.getValue()[1]);
+            }
+        }
+    }
+
+    private static Map<String, int[]> readAccuracy(File file) throws IOException {
+        final Map<String, int[]> accuracy = new TreeMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] tokens = line.split("\t");
+                if (tokens.length == 3) {
+                    accuracy.put(tokens[0], new int[]{Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2])});
+                }
+            }
+        }
+        return accuracy;
+    }
+
+    // Reports the categories with a lower rate of correct detections than the baseline
+    private static boolean compare(Map<String, int[]> baseline, Map<String, int[]> accuracy) {
+        boolean ok = true;
+        for (Map.Entry<String, int[]> category: baseline.entrySet()) {
+            final int[] expected = category.getValue();
+            final int[] actual = accuracy.get(category.getKey());
+            if (actual == null) {
+                continue;
+            }
+            if ((long) actual[0] * expected[1] < (long) expected[0] * actual[1]) {
+                System.err.println(String.format(Locale.ENGLISH,
+                        "Accuracy regression for %s: %d/%d correct, baseline %d/%d", category.getKey(),
+                        actual[0], actual[1], expected[0], expected[1]));
+                ok = false;
+            }
+        }
+        return ok;
+    }
+}
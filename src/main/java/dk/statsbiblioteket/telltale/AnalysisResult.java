@@ -15,23 +15,306 @@
 package dk.statsbiblioteket.telltale;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
 /**
- * Simple container for analysis result.
+ * The result of an analysis, as typed values for machine processing and as human readable text.
+ * </p><p>
+ * The candidates are the hypotheses that the analyzer evaluated, e.g. each offset of the 2x2 grid, with the
+ * metrics named by {@link #getMetricNames()}. The detected upscale factor is 0 if the analyzer found no upscaling
+ * or does not decide on one. Values that the analyzer does not produce are NaN.
+ * </p><p>
+ * The text is only produced when {@link #getText()} or {@link #toString()} is called, so writing the typed values
+ * with a {@link ResultWriter} avoids the cost of formatting.
  */
 public class AnalysisResult {
     private final File image;
     private final String testName;
-    private final String analysis;
+    private final Renderer renderer;
 
-    public AnalysisResult(File image, String testName, String analysis) {
+    private String[] metricNames = new String[0];
+    private final List<Candidate> candidates = new ArrayList<>();
+    private double factorX = 0;
+    private double factorY = 0;
+    private double offsetX = Double.NaN;
+    private double offsetY = Double.NaN;
+    private double score = Double.NaN;
+    private double contrast = Double.NaN;
+    private double fractionExamined = 1;
+    private long nanos = -1;
+
+    /**
+     * Produces the human readable text for a result.
+     */
+    public interface Renderer {
+        String render(AnalysisResult result);
+    }
+
+    /**
+     * Lists the typed values. Used for results without a renderer of their own, e.g. those read from a binary
+     * stream by {@link ResultWriter#readBinary(java.io.DataInputStream)}.
+     */
+    public static final Renderer GENERIC_RENDERER = new Renderer() {
+        @Override
+        public String render(AnalysisResult result) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Factor          Offset");
+            for (String name: result.metricNames) {
+                sb.append(String.format(Locale.ENGLISH, " %10s", name));
+            }
+            sb.append("\n");
+            for (Candidate candidate: result.candidates) {
+                sb.append(String.format(Locale.ENGLISH, "%-6s  %-6s  %-6s  %-6s",
+                                        format(candidate.factorX), format(candidate.factorY),
+                                        format(candidate.offsetX), format(candidate.offsetY)));
+                for (double metric: candidate.metrics) {
+                    sb.append(String.format(Locale.ENGLISH, " %10.4f", metric));
+                }
+                sb.append("\n");
+            }
+            sb.append(String.format(Locale.ENGLISH, "Upscale factor: %s, score %s, contrast %s\n",
+                                    result.isUpscaled() ? format(result.factorX) + "x" + format(result.factorY) +
+                                            " at offset (" + format(result.offsetX) + ", " +
+                                            format(result.offsetY) + ")" : "none",
+                                    format(result.score), format(result.contrast)));
+            return sb.toString();
+        }
+
+        private String format(double value) {
+            return Double.isNaN(value) ? "-" : value == Math.rint(value) ? Long.toString((long) value) :
+                    String.format(Locale.ENGLISH, "%.3f", value);
+        }
+    };
+
+    /**
+     * Create a result with a fixed text and no typed values.
+     */
+    public AnalysisResult(File image, String testName, final String analysis) {
+        this(image, testName, new Renderer() {
+            @Override
+            public String render(AnalysisResult result) {
+                return analysis;
+            }
+        });
+    }
+
+    /**
+     * @param image    the analyzed image.
+     * @param testName the name of the analyzer.
+     * @param renderer produces the text from the typed values. null means {@link #GENERIC_RENDERER}.
+     */
+    public AnalysisResult(File image, String testName, Renderer renderer) {
         this.image = image;
         this.testName = testName;
-        this.analysis = analysis;
+        this.renderer = renderer == null ? GENERIC_RENDERER : renderer;
+    }
+
+    /**
+     * @param metricNames the names of the metrics for each candidate.
+     * @return the result, for chaining.
+     */
+    public AnalysisResult setMetricNames(String... metricNames) {
+        this.metricNames = metricNames;
+        return this;
+    }
+
+    /**
+     * Add a candidate. The candidates are kept in the order they are added, which is the ranking of the analyzer.
+     * @param factorX the horizontal upscale factor of the candidate, NaN if it only concerns rows.
+     * @param factorY the vertical upscale factor of the candidate, NaN if it only concerns columns.
+     * @param offsetX the horizontal offset or phase of the upscale grid.
+     * @param offsetY the vertical offset or phase of the upscale grid.
+     * @param metrics the metrics, in the order of {@link #getMetricNames()}.
+     * @return the result, for chaining.
+     */
+    public AnalysisResult addCandidate(double factorX, double factorY, double offsetX, double offsetY,
+                                       double... metrics) {
+        candidates.add(new Candidate(factorX, factorY, offsetX, offsetY, metrics));
+        return this;
+    }
+
+    /**
+     * Set the detected upscale.
+     * @return the result, for chaining.
+     */
+    public AnalysisResult setUpscale(double factorX, double factorY, double offsetX, double offsetY) {
+        this.factorX = factorX;
+        this.factorY = factorY;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        return this;
+    }
+
+    /**
+     * @param score how well the best candidate conforms to the model of the analyzer. Lower is better.
+     * @return the result, for chaining.
+     */
+    public AnalysisResult setScore(double score) {
+        this.score = score;
+        return this;
+    }
+
+    /**
+     * @param contrast the overall contrast of the image, as measured by the analyzer.
+     * @return the result, for chaining.
+     */
+    public AnalysisResult setContrast(double contrast) {
+        this.contrast = contrast;
+        return this;
+    }
+
+    /**
+     * @param fractionExamined the fraction of the image that the result is based on.
+     * @return the result, for chaining.
+     */
+    public AnalysisResult setFractionExamined(double fractionExamined) {
+        this.fractionExamined = fractionExamined;
+        return this;
+    }
+
+    /**
+     * @param nanos the time used for the analysis in nanoseconds.
+     * @return the result, for chaining.
+     */
+    public AnalysisResult setNanos(long nanos) {
+        this.nanos = nanos;
+        return this;
+    }
+
+    public File getImage() {
+        return image;
+    }
+
+    public String getTestName() {
+        return testName;
+    }
+
+    public String[] getMetricNames() {
+        return metricNames;
+    }
+
+    /**
+     * @return the evaluated candidates, ranked by the analyzer. For the 2x2 detectors this is the best assignment
+     *         of the offsets to the hypotheses of the model.
+     */
+    public List<Candidate> getCandidates() {
+        return Collections.unmodifiableList(candidates);
+    }
+
+    /**
+     * @return true if the analyzer detected an upscale factor in at least one direction.
+     */
+    public boolean isUpscaled() {
+        return factorX > 0 || factorY > 0;
+    }
+
+    /**
+     * @return the detected horizontal upscale factor, 0 if none.
+     */
+    public double getFactorX() {
+        return factorX;
+    }
+
+    /**
+     * @return the detected vertical upscale factor, 0 if none.
+     */
+    public double getFactorY() {
+        return factorY;
+    }
+
+    /**
+     * @return the horizontal offset or phase of the detected upscale grid, NaN if none.
+     */
+    public double getOffsetX() {
+        return offsetX;
+    }
+
+    /**
+     * @return the vertical offset or phase of the detected upscale grid, NaN if none.
+     */
+    public double getOffsetY() {
+        return offsetY;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    public double getContrast() {
+        return contrast;
+    }
+
+    public double getFractionExamined() {
+        return fractionExamined;
+    }
+
+    /**
+     * @return the time used for the analysis in nanoseconds, -1 if unknown. Analyzers that share a traversal of
+     *         the image in {@link CompositeAnalyzer} all state the time for the shared traversal.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return the human readable analysis.
+     */
+    public String getText() {
+        return renderer.render(this);
     }
 
     @Override
     public String toString() {
-        return String.format("Analysis %s for image %s:\n%s", testName, image, analysis);
+        return String.format("Analysis %s for image %s:\n%s", testName, image, getText());
+    }
+
+    /**
+     * A hypothesis evaluated by the analyzer.
+     */
+    public static class Candidate {
+        private final double factorX;
+        private final double factorY;
+        private final double offsetX;
+        private final double offsetY;
+        private final double[] metrics;
+
+        public Candidate(double factorX, double factorY, double offsetX, double offsetY, double[] metrics) {
+            this.factorX = factorX;
+            this.factorY = factorY;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.metrics = metrics;
+        }
+
+        public double getFactorX() {
+            return factorX;
+        }
+
+        public double getFactorY() {
+            return factorY;
+        }
+
+        public double getOffsetX() {
+            return offsetX;
+        }
+
+        public double getOffsetY() {
+            return offsetY;
+        }
+
+        /**
+         * @param index the index of the metric in {@link AnalysisResult#getMetricNames()}.
+         * @return the value of the metric.
+         */
+        public double getMetric(int index) {
+            return metrics[index];
+        }
+
+        public double[] getMetrics() {
+            return metrics;
+        }
     }
 }
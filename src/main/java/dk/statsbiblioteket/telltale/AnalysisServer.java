@@ -0,0 +1,391 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP server that keeps the analyzers loaded, so that callers avoid the JVM startup, ImageIO plugin registration
+ * and JIT warm-up for each image.
+ * </p><p>
+ * {@code POST /analyze?path=/images/scan.tif} analyzes an image file on the server. {@code POST /analyze} with the
+ * image as the request body analyzes the bytes, optionally with {@code name=scan.tif} to name the image in the
+ * results. The results are returned in the {@link ResultWriter.Format} given with {@code format}, default
+ * {@code jsonl}. {@code GET /status} returns the number of requests that has been handled, rejected and are active.
+ * </p><p>
+ * At most {@code workers} images are decoded and analyzed at a time and at most {@code queueSize} further requests
+ * wait for a worker. Requests beyond that are rejected right away with 503 Service Unavailable, so that callers
+ * can back off instead of piling up requests with their images in memory. The dimensions of each image are read
+ * before it is decoded and the memory for it is reserved from a {@link MemoryBudget}, so a few large images cannot
+ * exhaust the heap. Images that are larger than the full budget are rejected with 413 Payload Too Large.
+ * </p><p>
+ * The server binds to the loopback address by default, as any file readable by the server process can be analyzed.
+ */
+public class AnalysisServer implements Closeable {
+    public static final int DEFAULT_PORT = 8099;
+
+    private final CompositeAnalyzer analyzer;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Semaphore admitted;
+    private final Semaphore workers;
+    private ResultCache cache = null;
+    private String signature = null;
+    private MemoryBudget budget = MemoryBudget.fromHeap();
+
+    private final AtomicLong handled = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicInteger active = new AtomicInteger(0);
+
+    /**
+     * Create a server on the loopback address. The server must be {@link #start() started}.
+     * @param analyzer  the analyzers to run on each image.
+     * @param port      the port to listen on. 0 selects a free port, see {@link #getAddress()}.
+     * @param workers   the number of images that are decoded and analyzed at a time.
+     * @param queueSize the number of requests that can wait for a worker.
+     * @throws IOException if the port could not be bound.
+     */
+    public AnalysisServer(CompositeAnalyzer analyzer, int port, int workers, int queueSize) throws IOException {
+        this(analyzer, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), workers, queueSize);
+    }
+
+    /**
+     * Create a server. The server must be {@link #start() started}.
+     * @param analyzer  the analyzers to run on each image.
+     * @param address   the address to listen on.
+     * @param workers   the number of images that are decoded and analyzed at a time.
+     * @param queueSize the number of requests that can wait for a worker.
+     * @throws IOException if the address could not be bound.
+     */
+    public AnalysisServer(CompositeAnalyzer analyzer, InetSocketAddress address, int workers, int queueSize)
+            throws IOException {
+        if (workers < 1 || queueSize < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "workers (%d) must be at least 1 and queueSize (%d) must be at least 0", workers, queueSize));
+        }
+        this.analyzer = analyzer;
+        admitted = new Semaphore(workers + queueSize);
+        this.workers = new Semaphore(workers);
+        // The handler threads only wait for workers or do I/O, the number of admitted requests bounds the work
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "telltale-server-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server = HttpServer.create(address, workers + queueSize);
+        server.setExecutor(executor);
+        server.createContext("/analyze", new AnalyzeHandler());
+        server.createContext("/status", new StatusHandler());
+    }
+
+    /**
+     * @param cache if not null, results for image files are looked up in and added to the cache. Images delivered
+     *              as bytes are always analyzed.
+     * @return the server, for chaining.
+     */
+    public AnalysisServer setCache(ResultCache cache) {
+        this.cache = cache;
+        signature = cache == null ? null : analyzer.getSignature();
+        return this;
+    }
+
+    /**
+     * @param budget the memory that decoded images and their analysis are allowed to occupy in total. Requests for
+     *               images estimated to need more than the full budget are rejected with 413 Payload Too Large,
+     *               other requests wait until their image fits. Default: {@link MemoryBudget#fromHeap()}.
+     * @return the server, for chaining.
+     */
+    public AnalysisServer setBudget(MemoryBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * Analyze a generated image a number of times, so that the first requests are handled by compiled code.
+     * @param iterations the number of analyses.
+     * @return the server, for chaining.
+     */
+    public AnalysisServer warmUp(int iterations) {
+        final BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_GRAY);
+        final Random random = new Random(87);
+        for (int y = 0 ; y < image.getHeight() ; y++) {
+            for (int x = 0 ; x < image.getWidth() ; x++) {
+                image.getRaster().setSample(x, y, 0, random.nextInt(256));
+            }
+        }
+        for (int i = 0 ; i < iterations ; i++) {
+            analyzer.analyze(new File("warmup"), image);
+        }
+        return this;
+    }
+
+    /**
+     * Start accepting requests. Returns immediately.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * @return the address that the server listens on.
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops accepting requests, waits up to a second for active requests and stops the server.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    private class AnalyzeHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    send(exchange, 405, "Use POST with a path or the image as the body\n");
+                    return;
+                }
+                if (!admitted.tryAcquire()) {
+                    rejected.incrementAndGet();
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    send(exchange, 503, "All workers are busy and the queue is full\n");
+                    return;
+                }
+                try {
+                    active.incrementAndGet();
+                    workers.acquire();
+                    try {
+                        analyze(exchange);
+                    } finally {
+                        workers.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    send(exchange, 503, "The server is shutting down\n");
+                } finally {
+                    active.decrementAndGet();
+                    admitted.release();
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        // Problems with the request and the image are reported to the caller, problems with sending are passed on
+        private void analyze(HttpExchange exchange) throws IOException, InterruptedException {
+            final Map<String, String> parameters = getParameters(exchange.getRequestURI().getRawQuery());
+            final ResultWriter.Format format;
+            try {
+                format = ResultWriter.getFormat(parameters.containsKey("format") ? parameters.get("format") : "jsonl");
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, "Unknown format '" + parameters.get("format") + "'\n");
+                return;
+            }
+
+            final File image;
+            final Object source;
+            String key = null;
+            if (parameters.containsKey("path")) {
+                image = new File(parameters.get("path"));
+                if (!image.isFile()) {
+                    send(exchange, 404, "The image '" + image + "' could not be located\n");
+                    return;
+                }
+                if (cache != null) {
+                    key = cache.getKey(image, signature);
+                    List<AnalysisResult> cached = cache.get(key, image);
+                    if (cached != null) {
+                        sendResults(exchange, format, cached);
+                        return;
+                    }
+                }
+                source = image;
+            } else {
+                final String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                if (length != null && length.matches("[0-9]+") && Long.parseLong(length) > budget.getBudget()) {
+                    send(exchange, 413, "The image is larger than the memory budget of "
+                                        + budget.getBudget() + " bytes\n");
+                    return;
+                }
+                image = new File(parameters.containsKey("name") ? parameters.get("name") : "request");
+                source = exchange.getRequestBody();
+            }
+
+            final List<AnalysisResult> results;
+            final List<CompositeAnalyzer.Failure> failures = new ArrayList<>();
+            try {
+                results = analyze(exchange, image, source, failures);
+            } catch (IOException e) {
+                send(exchange, 415, "Unable to read the image: " + e.getMessage() + "\n");
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                send(exchange, 500, "Exception analyzing with " + analyzer.getName() + ": " + e + "\n");
+                return;
+            }
+            if (results == null) {
+                return;
+            }
+            // An analyzer that fails only loses its own result, unless they all fail
+            if (results.isEmpty() && !failures.isEmpty()) {
+                send(exchange, 500, "Exception analyzing with " + failures.get(0).getAnalyzer().getName() + ": "
+                                    + failures.get(0).getException() + "\n");
+                return;
+            }
+            if (key != null && failures.isEmpty()) {
+                cache.put(key, results);
+            }
+            sendResults(exchange, format, results);
+        }
+
+        private void sendResults(HttpExchange exchange, ResultWriter.Format format, List<AnalysisResult> results)
+                throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (ResultWriter out = ResultWriter.create(format, body)) {
+                out.write(results);
+            }
+            handled.incrementAndGet();
+            exchange.getResponseHeaders().set("Content-Type", getContentType(format));
+            exchange.sendResponseHeaders(200, body.size());
+            body.writeTo(exchange.getResponseBody());
+        }
+
+        // Equivalent to ImageIO.read, but reserves memory from the budget between reading the header and the pixels.
+        // null if the image could not be decoded or is too large, in which case the caller has been told
+        private List<AnalysisResult> analyze(HttpExchange exchange, File imageFile, Object source,
+                                             List<CompositeAnalyzer.Failure> failures)
+                throws IOException, InterruptedException {
+            try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+                if (in == null) {
+                    throw new IIOException("Can't create an ImageInputStream!");
+                }
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) {
+                    send(exchange, 415, "No ImageReader for the format of the image\n");
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    final long bytes = MemoryBudget.estimate(reader, analyzer.getAnalyzers().size());
+                    if (bytes > budget.getBudget()) {
+                        send(exchange, 413, String.format(
+                                "The %dx%d image needs an estimated %d bytes, but the memory budget is %d bytes\n",
+                                reader.getWidth(0), reader.getHeight(0), bytes, budget.getBudget()));
+                        return null;
+                    }
+                    final long reservation = budget.acquire(bytes);
+                    try {
+                        return analyzer.analyze(imageFile, reader.read(0, reader.getDefaultReadParam()), failures);
+                    } finally {
+                        budget.release(reservation);
+                    }
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+    }
+
+    private class StatusHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                exchange.getResponseHeaders().set("Content-Type", getContentType(ResultWriter.Format.JSONL));
+                send(exchange, 200, String.format("{\"handled\":%d,\"rejected\":%d,\"active\":%d}\n",
+                                                  handled.get(), rejected.get(), active.get()));
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static Map<String, String> getParameters(String query) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair: query.split("&")) {
+            final int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8.name()),
+                               URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8.name()));
+            }
+        }
+        return parameters;
+    }
+
+    private static String getContentType(ResultWriter.Format format) {
+        switch (format) {
+            case TEXT: return "text/plain; charset=" + Charset.defaultCharset().name();
+            case JSONL: return "application/x-ndjson; charset=utf-8";
+            case CSV: return "text/csv; charset=utf-8";
+            case BINARY: return "application/octet-stream";
+            default: throw new UnsupportedOperationException("Unknown format " + format);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String message) throws IOException {
+        final byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
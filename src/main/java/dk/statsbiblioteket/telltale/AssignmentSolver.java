@@ -0,0 +1,122 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+/**
+ * Finds the assignment of hypotheses to candidates with the lowest score, by depth-first branch-and-bound instead
+ * of scoring every permutation of the candidates.
+ * </p><p>
+ * The hypotheses are assigned in order and the candidates for each hypothesis are tried in increasing order, so
+ * the assignments are visited in lexicographic order. A partial assignment is abandoned when the lower bound for
+ * its completions is above the best score found so far. The scores of the detectors are not sums over the
+ * hypotheses, which rules out the Hungarian algorithm, but they can be bounded from the assigned hypotheses.
+ * The tighter the bound, the more of the n! assignments are skipped.
+ * </p><p>
+ * Among assignments with the same score, the first in lexicographic order is returned, as with a full search.
+ * Scores that only differ by rounding errors are treated as the same, so that the result does not depend on the
+ * order of summation in the detectors, such as the strip height for parallel analysis.
+ */
+public class AssignmentSolver {
+    // Bounds and scores are calculated differently, so a bound is allowed to be above the score by rounding errors.
+    // Scores closer than this are ties
+    private static final double ROUNDING = 1.0E-9;
+
+    /**
+     * The score of the assignments for a set of candidates.
+     */
+    public interface Objective {
+        /**
+         * @return the number of hypotheses, which is also the number of candidates.
+         */
+        int getSize();
+
+        /**
+         * @param assignment {@code assignment[h]} is the candidate for hypothesis h.
+         * @param assigned   the number of assigned hypotheses, from the first one. Less than {@link #getSize()}.
+         * @return a lower bound for the scores of all completions of the partial assignment. 0 is always valid.
+         */
+        double getLowerBound(int[] assignment, int assigned);
+
+        /**
+         * @param assignment {@code assignment[h]} is the candidate for hypothesis h, for all hypotheses.
+         * @return the score of the assignment, lower is better.
+         */
+        double getScore(int[] assignment);
+    }
+
+    /**
+     * @param objective the scores for the assignments.
+     * @return the assignment with the lowest score, as {@code assignment[hypothesis] = candidate}.
+     */
+    public static int[] solve(Objective objective) {
+        return solve(objective, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Finds the best assignment with a score above the given one, such as the runner-up to a known best score.
+     * @param objective the scores for the assignments.
+     * @param above     only assignments with scores above this, by more than rounding errors, are considered.
+     * @return the assignment with the lowest score above {@code above}, null if there are none.
+     */
+    public static int[] solve(Objective objective, double above) {
+        final Search search = new Search(objective, above);
+        search.assign(0);
+        return search.best;
+    }
+
+    private static class Search {
+        private final Objective objective;
+        private final double above;
+        private final int[] assignment;
+        private final boolean[] used;
+        private int[] best = null;
+        private double bestScore = Double.POSITIVE_INFINITY;
+
+        private Search(Objective objective, double above) {
+            this.objective = objective;
+            this.above = above;
+            assignment = new int[objective.getSize()];
+            used = new boolean[objective.getSize()];
+        }
+
+        private void assign(int hypothesis) {
+            if (hypothesis == assignment.length) {
+                final double score = objective.getScore(assignment);
+                if (score - above > tolerance(above) && bestScore - score > tolerance(bestScore)) {
+                    bestScore = score;
+                    best = assignment.clone();
+                }
+                return;
+            }
+            for (int candidate = 0 ; candidate < assignment.length ; candidate++) {
+                if (used[candidate]) {
+                    continue;
+                }
+                assignment[hypothesis] = candidate;
+                if (best != null && hypothesis+1 < assignment.length &&
+                    objective.getLowerBound(assignment, hypothesis+1) > bestScore + tolerance(bestScore)) {
+                    continue;
+                }
+                used[candidate] = true;
+                assign(hypothesis+1);
+                used[candidate] = false;
+            }
+        }
+    }
+
+    private static double tolerance(double score) {
+        return Double.isInfinite(score) ? 0 : ROUNDING * Math.max(1, Math.abs(score));
+    }
+}
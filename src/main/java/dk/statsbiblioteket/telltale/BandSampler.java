@@ -0,0 +1,367 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Progressive sampling of an image in bands of rows, for triage of large numbers of images where a small fraction
+ * of the blocks decides the outcome of the analysis.
+ * </p><p>
+ * The image is divided into bands of rows, which are grouped into strata from top to bottom. The bands are visited
+ * in rounds, taking a random unvisited band from each stratum in each round, so that the sample covers the full
+ * height of the image from the start. The visited bands are distributed round robin over {@link #GROUPS} groups
+ * and the uncertainty of the estimates is calculated with the delete-a-group jackknife: each group is left out in
+ * turn and the spread of the resulting estimates gives the standard error.
+ * </p><p>
+ * Sampling stops when the best assignment of the candidates is separated from the runner-up, meaning that the
+ * confidence interval for the difference between their scores does not contain 0. Assignments with the same
+ * score as the best, which the model cannot tell apart, are not considered runner-ups. If the image is too small
+ * for the minimum number of bands, all of it is visited and the estimates are exact.
+ * </p><p>
+ * The bands are visited sequentially, in random order. With {@link BandedPixelAccess}, the band height of the
+ * pixel access should thus be kept small.
+ */
+public class BandSampler {
+    public static final int DEFAULT_BAND_HEIGHT = 12;
+    public static final double DEFAULT_CONFIDENCE = 0.95;
+    public static final double DEFAULT_MIN_FRACTION = 0.02;
+    public static final long DEFAULT_SEED = 87;
+    /**
+     * The number of groups for the jackknife. At least 2 bands are visited for each group before sampling stops.
+     */
+    public static final int GROUPS = 10;
+    private static final int STRATA = 16;
+
+    private final int bandHeight;
+    private final double confidence;
+    private final double z;
+    private final double minFraction;
+    private final long seed;
+
+    public BandSampler() {
+        this(DEFAULT_BAND_HEIGHT, DEFAULT_CONFIDENCE, DEFAULT_MIN_FRACTION, DEFAULT_SEED);
+    }
+
+    /**
+     * @param bandHeight  the number of rows in each band. This is rounded up to the strip alignment of the visitor.
+     * @param confidence  the confidence level for the intervals and the separation, e.g. 0.95.
+     * @param minFraction the fraction of the bands to visit before sampling can stop.
+     * @param seed        the seed for the random order of the bands. The same seed gives the same sample.
+     */
+    public BandSampler(int bandHeight, double confidence, double minFraction, long seed) {
+        if (bandHeight < 1) {
+            throw new IllegalArgumentException("The band height must be at least 1 but was " + bandHeight);
+        }
+        if (!(confidence > 0 && confidence < 1)) {
+            throw new IllegalArgumentException("The confidence must be between 0 and 1 but was " + confidence);
+        }
+        this.bandHeight = bandHeight;
+        this.confidence = confidence;
+        this.z = Stats.normalQuantile(1 - (1 - confidence) / 2);
+        this.minFraction = minFraction;
+        this.seed = seed;
+    }
+
+    /**
+     * Visit bands of the image until the outcome is settled or all of the image has been visited.
+     * @param pixels    the image to sample.
+     * @param model     the analysis to estimate.
+     * @param traversal used for visiting the bands.
+     * @return the estimated result for the image.
+     */
+    public <T> Estimate<T> sample(PixelAccess pixels, Model<T> model, RowTraversal traversal) {
+        final RowVisitor<T> visitor = model.getRowVisitor();
+        final int width = pixels.getWidth();
+        final int height = pixels.getHeight();
+        final int alignment = visitor.getStripAlignment();
+        final int bandRows = (bandHeight + alignment - 1) / alignment * alignment;
+        final int bands = (height + bandRows - 1) / bandRows;
+        final int minBands = Math.max(2*GROUPS, (int) Math.ceil(minFraction * bands));
+        final int[] order = getOrder(bands);
+
+        final List<T> groups = new ArrayList<>(GROUPS);
+        for (int i = 0 ; i < GROUPS ; i++) {
+            groups.add(visitor.begin(width, height));
+        }
+        int visited = 0;
+        int rows = 0;
+        Spread spread = null;
+        while (visited < bands) {
+            final int fromRow = order[visited] * bandRows;
+            final int toRow = Math.min(height, fromRow + bandRows);
+            visitor.merge(groups.get(visited % GROUPS), traversal.run(pixels, visitor, fromRow, toRow));
+            rows += toRow - fromRow;
+            visited++;
+            if (visited >= minBands && visited < bands) {
+                spread = getSpread(model, groups, width, height);
+                if (spread.separated) {
+                    break;
+                }
+            }
+        }
+        if (visited == bands) {
+            spread = null; // All of the image has been visited, so there is no sampling error
+        }
+        return new Estimate<>(merge(visitor, groups, -1, width, height), spread, visited, bands, rows, height);
+    }
+
+    // Bands are taken round robin from the strata, in random order within each stratum
+    private int[] getOrder(int bands) {
+        final Random random = new Random(seed);
+        final int strata = Math.min(STRATA, bands);
+        final List<List<Integer>> stratified = new ArrayList<>(strata);
+        for (int stratum = 0 ; stratum < strata ; stratum++) {
+            List<Integer> members = new ArrayList<>();
+            for (int band = stratum * bands / strata ; band < (stratum + 1) * bands / strata ; band++) {
+                members.add(band);
+            }
+            Collections.shuffle(members, random);
+            stratified.add(members);
+        }
+        final int[] order = new int[bands];
+        int index = 0;
+        for (int round = 0 ; index < bands ; round++) {
+            for (List<Integer> members: stratified) {
+                if (round < members.size()) {
+                    order[index++] = members.get(round);
+                }
+            }
+        }
+        return order;
+    }
+
+    // Merges all groups except the excluded one into a new partial result
+    private static <T> T merge(RowVisitor<T> visitor, List<T> groups, int exclude, int width, int height) {
+        final T merged = visitor.begin(width, height);
+        for (int i = 0 ; i < groups.size() ; i++) {
+            if (i != exclude) {
+                visitor.merge(merged, groups.get(i));
+            }
+        }
+        return merged;
+    }
+
+    private <T> Spread getSpread(Model<T> model, List<T> groups, int width, int height) {
+        final RowVisitor<T> visitor = model.getRowVisitor();
+        final AssignmentSolver.Objective objective = model.getObjective(merge(visitor, groups, -1, width, height));
+        final int[] best = AssignmentSolver.solve(objective);
+        final double bestScore = objective.getScore(best);
+        final double tie = 1.0E-9 * Math.max(1, Math.abs(bestScore));
+        final int[] runnerUp = AssignmentSolver.solve(objective, bestScore + tie);
+
+        final double[][][] metrics = new double[GROUPS][][];
+        final double[] bestScores = new double[GROUPS];
+        final double[] separations = new double[GROUPS];
+        for (int group = 0 ; group < GROUPS ; group++) {
+            final T partial = merge(visitor, groups, group, width, height);
+            metrics[group] = model.getMetrics(partial);
+            final AssignmentSolver.Objective groupObjective = model.getObjective(partial);
+            bestScores[group] = groupObjective.getScore(best);
+            separations[group] = runnerUp == null ? 0 : groupObjective.getScore(runnerUp) - bestScores[group];
+        }
+        final double[][] metricErrors = new double[metrics[0].length][metrics[0][0].length];
+        final double[] values = new double[GROUPS];
+        for (int candidate = 0 ; candidate < metricErrors.length ; candidate++) {
+            for (int metric = 0 ; metric < metricErrors[candidate].length ; metric++) {
+                for (int group = 0 ; group < GROUPS ; group++) {
+                    values[group] = metrics[group][candidate][metric];
+                }
+                metricErrors[candidate][metric] = jackknifeError(values);
+            }
+        }
+        final double separation = runnerUp == null ? Double.NaN : objective.getScore(runnerUp) - bestScore;
+        final double separationError = jackknifeError(separations);
+        return new Spread(metricErrors, jackknifeError(bestScores), separation, separationError,
+                          runnerUp == null || separation - z * separationError > 0);
+    }
+
+    private static double jackknifeError(double[] estimates) {
+        double mean = 0;
+        for (double estimate: estimates) {
+            mean += estimate;
+        }
+        mean /= estimates.length;
+        double squares = 0;
+        for (double estimate: estimates) {
+            squares += (estimate - mean) * (estimate - mean);
+        }
+        return Math.sqrt(squares * (estimates.length - 1) / estimates.length);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BandSampler(bandHeight=%d, confidence=%s, minFraction=%s, seed=%d)",
+                             bandHeight, confidence, minFraction, seed);
+    }
+
+    /**
+     * The analysis to estimate by sampling.
+     * @param <T> the partial result of the visitor.
+     */
+    public interface Model<T> {
+        /**
+         * @return the visitor that collects the statistics. Sampling calls it for bands of rows.
+         */
+        RowVisitor<T> getRowVisitor();
+
+        /**
+         * @param partial the statistics for the visited rows.
+         * @return the metrics for each candidate, as [candidate][metric].
+         */
+        double[][] getMetrics(T partial);
+
+        /**
+         * @param partial the statistics for the visited rows.
+         * @return the model score for assignments of the candidates to the hypotheses, lower is better.
+         */
+        AssignmentSolver.Objective getObjective(T partial);
+
+        /**
+         * @param imageFile the file that the pixels are from.
+         * @param estimate  the outcome of the sampling.
+         * @return the analysis from the estimate.
+         */
+        AnalysisResult finish(File imageFile, Estimate<T> estimate);
+    }
+
+    // Standard errors from the jackknife
+    private static class Spread {
+        private final double[][] metricErrors;
+        private final double bestScoreError;
+        private final double separation;
+        private final double separationError;
+        private final boolean separated;
+
+        private Spread(double[][] metricErrors, double bestScoreError, double separation, double separationError,
+                       boolean separated) {
+            this.metricErrors = metricErrors;
+            this.bestScoreError = bestScoreError;
+            this.separation = separation;
+            this.separationError = separationError;
+            this.separated = separated;
+        }
+    }
+
+    /**
+     * The outcome of sampling an image.
+     * @param <T> the partial result of the visitor.
+     */
+    public class Estimate<T> {
+        private final T result;
+        private final Spread spread;
+        private final int bandsExamined;
+        private final int bands;
+        private final int rowsExamined;
+        private final int height;
+
+        private Estimate(T result, Spread spread, int bandsExamined, int bands, int rowsExamined, int height) {
+            this.result = result;
+            this.spread = spread;
+            this.bandsExamined = bandsExamined;
+            this.bands = bands;
+            this.rowsExamined = rowsExamined;
+            this.height = height;
+        }
+
+        /**
+         * @return the merged statistics for the visited bands.
+         */
+        public T getResult() {
+            return result;
+        }
+
+        /**
+         * @return the fraction of the rows of the image that were visited.
+         */
+        public double getFractionExamined() {
+            return height == 0 ? 1 : 1.0 * rowsExamined / height;
+        }
+
+        /**
+         * @return true if sampling stopped before all of the image had been visited.
+         */
+        public boolean isSampled() {
+            return spread != null;
+        }
+
+        /**
+         * @return the half width of the confidence interval for the difference between the scores of the
+         *         runner-up and the best permutation. 0 if all of the image was visited.
+         */
+        public double getSeparationHalfWidth() {
+            return spread == null ? 0 : z * spread.separationError;
+        }
+
+        /**
+         * @return the half width of the confidence interval for the score of the best permutation.
+         */
+        public double getScoreHalfWidth() {
+            return spread == null ? 0 : z * spread.bestScoreError;
+        }
+
+        /**
+         * @param candidate the index of the candidate, as given by {@link Model#getMetrics(Object)}.
+         * @param metric    the index of the metric for the candidate.
+         * @return the half width of the confidence interval for the metric.
+         */
+        public double getHalfWidth(int candidate, int metric) {
+            return spread == null ? 0 : z * spread.metricErrors[candidate][metric];
+        }
+
+        /**
+         * @param labels  the labels for the candidates.
+         * @param columns the names of the metrics.
+         * @return a table with the confidence intervals for the metrics, in the same layout as the result table.
+         */
+        public String formatHalfWidths(String[] labels, String[] columns) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Confidence interval half widths (%.0f%%)\n", confidence * 100));
+            sb.append("Offset");
+            for (String column: columns) {
+                sb.append(String.format(" %6s", column));
+            }
+            sb.append("\n");
+            for (int candidate = 0 ; candidate < labels.length ; candidate++) {
+                sb.append(labels[candidate]);
+                for (int metric = 0 ; metric < columns.length ; metric++) {
+                    sb.append(String.format(" %" + Math.max(6, columns[metric].length()) + ".2f",
+                                            getHalfWidth(candidate, metric)));
+                }
+                sb.append("\n");
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            String outcome;
+            if (spread == null) {
+                outcome = "all of the image was examined";
+            } else if (Double.isNaN(spread.separation)) {
+                outcome = "the model does not separate the permutations";
+            } else {
+                outcome = String.format("best permutation separated from the runner-up by %.2f +/- %.2f",
+                                        spread.separation, getSeparationHalfWidth());
+            }
+            return String.format("Sampled %d of %d bands (%.1f%% of the image): %s\n",
+                                 bandsExamined, bands, getFractionExamined() * 100, outcome);
+        }
+    }
+}
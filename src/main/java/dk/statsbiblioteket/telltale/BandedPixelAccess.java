@@ -0,0 +1,168 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Pixel access that decodes the image in horizontal bands with {@link ImageReadParam#setSourceRegion}, so that
+ * only a single band is held in memory at a time. This makes it possible to analyze images that are larger than
+ * the heap.
+ * </p><p>
+ * The analyzers read the rows in increasing order and keep the few rows of overlap that their block grids need
+ * themselves, so each band is only decoded once per analyzer. Reading a row above the current band decodes its
+ * band again.
+ * </p><p>
+ * For tiled or striped images (typically TIFF) the bands are aligned to the tiles, so that each tile is read once.
+ * Readers for sequential formats such as PNG and JPEG must decode the rows above a source region to get to it,
+ * so for those the cost of decoding grows with the number of bands and the band height should be large.
+ * </p><p>
+ * This class is not thread safe and the analyzers process it in a single strip.
+ */
+public class BandedPixelAccess extends PixelAccess implements Closeable {
+    public static final int DEFAULT_BAND_HEIGHT = 1024;
+
+    private final ImageInputStream in;
+    private final ImageReader reader;
+    private final int bandHeight;
+    private final int bandOffset;
+
+    private int bandTop = -1;
+    private int bandBottom = -1;
+    private PixelAccess band = null;
+    private int bandsDecoded = 0;
+
+    /**
+     * @param reader     a reader with its input set. Only the first image is accessed.
+     * @param bandHeight the wanted number of rows in each band. Rounded up to a multiple of the tile height.
+     * @throws IOException if the header of the image could not be read.
+     */
+    public BandedPixelAccess(ImageReader reader, int bandHeight) throws IOException {
+        this(null, reader, bandHeight);
+    }
+
+    private BandedPixelAccess(ImageInputStream in, ImageReader reader, int bandHeight) throws IOException {
+        super(reader.getWidth(0), reader.getHeight(0));
+        if (bandHeight < 1) {
+            throw new IllegalArgumentException("The band height must be at least 1 but was " + bandHeight);
+        }
+        this.in = in;
+        this.reader = reader;
+        final int tileHeight = reader.getTileHeight(0);
+        if (tileHeight > 0 && tileHeight < height) {
+            this.bandHeight = (bandHeight + tileHeight - 1) / tileHeight * tileHeight;
+            this.bandOffset = reader.getTileGridYOffset(0);
+        } else {
+            this.bandHeight = bandHeight;
+            this.bandOffset = 0;
+        }
+    }
+
+    /**
+     * Open the given image for banded decoding. Only the header is read at this point.
+     * @param file       the image to open.
+     * @param bandHeight the wanted number of rows in each band.
+     * @return pixel access for the image, which must be closed after use.
+     * @throws IOException if the image could not be opened or no ImageReader could handle it.
+     */
+    public static BandedPixelAccess open(File file, int bandHeight) throws IOException {
+        if (!file.canRead()) {
+            throw new IIOException("Can't read input file!");
+        }
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        if (in == null) {
+            throw new IIOException("Can't create an ImageInputStream!");
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IIOException("No ImageReader for the format of the image");
+            }
+            ImageReader reader = readers.next();
+            reader.setInput(in, true, true);
+            return new BandedPixelAccess(in, reader, bandHeight);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void readRow(int x, int y, int length, int[][] rgb) {
+        if (y < bandTop || y >= bandBottom) {
+            decodeBand(y);
+        }
+        band.readRow(x, y - bandTop, length, rgb);
+    }
+
+    @Override
+    public boolean isConcurrent() {
+        return false;
+    }
+
+    private void decodeBand(int y) {
+        band = null; // Allow the old band to be garbage collected while the new one is decoded
+        bandTop = bandBottom = -1;
+        final int relative = y - bandOffset;
+        final int index = relative >= 0 ? relative / bandHeight : -((bandHeight - 1 - relative) / bandHeight);
+        final int top = Math.max(0, bandOffset + index * bandHeight);
+        final int bottom = Math.min(height, bandOffset + (index + 1) * bandHeight);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, top, width, bottom - top));
+        try {
+            band = PixelAccess.create(reader.read(0, param));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to decode rows " + top + "-" + bottom, e);
+        }
+        bandTop = top;
+        bandBottom = bottom;
+        bandsDecoded++;
+    }
+
+    /**
+     * @return the number of rows in each band, after alignment to tiles.
+     */
+    public int getBandHeight() {
+        return bandHeight;
+    }
+
+    /**
+     * @return the number of times a band has been decoded.
+     */
+    public int getBandsDecoded() {
+        return bandsDecoded;
+    }
+
+    /**
+     * Disposes the reader and, if this was created with {@link #open(File, int)}, closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        band = null;
+        reader.dispose();
+        if (in != null) {
+            in.close();
+        }
+    }
+}
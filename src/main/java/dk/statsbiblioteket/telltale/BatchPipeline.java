@@ -0,0 +1,423 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Processes a batch of images with overlapping decoding, analysis and output.
+ * </p><p>
+ * A configurable number of decode workers reads images with ImageIO and passes them on to a configurable number
+ * of analysis workers through a bounded queue. The results are written by the calling thread, either in the order
+ * of the input or as soon as they are ready. The number of images in flight (decoding, waiting, analyzing or
+ * waiting for earlier images to be written) is bounded, which gives back-pressure all the way to the input.
+ * </p><p>
+ * If a {@link MemoryBudget} is given, the decode workers read the dimensions of each image from the ImageReader
+ * before decoding it and wait until the estimated size can be reserved from the budget. The reservation is
+ * released as soon as the image has been analyzed.
+ * </p><p>
+ * If a {@link ResultCache} is set, images with cached results are neither decoded nor analyzed.
+ */
+public class BatchPipeline {
+    private final CompositeAnalyzer analyzer;
+    private final int decodeWorkers;
+    private final int analysisWorkers;
+    private final int queueSize;
+    private final boolean ordered;
+    private final MemoryBudget budget;
+    private ResultCache cache = null;
+    private String signature = null;
+    private Checkpoint checkpoint = null;
+
+    /**
+     * Create a pipeline where the memory use is only bounded by the number of images in flight.
+     * @see #BatchPipeline(CompositeAnalyzer, int, int, int, boolean, MemoryBudget)
+     */
+    public BatchPipeline(List<ImageAnalyzer> analyzers, int decodeWorkers, int analysisWorkers, int queueSize,
+                         boolean ordered) {
+        this(new CompositeAnalyzer(analyzers), decodeWorkers, analysisWorkers, queueSize, ordered, null);
+    }
+
+    /**
+     * @see #BatchPipeline(CompositeAnalyzer, int, int, int, boolean, MemoryBudget)
+     */
+    public BatchPipeline(List<ImageAnalyzer> analyzers, int decodeWorkers, int analysisWorkers, int queueSize,
+                         boolean ordered, MemoryBudget budget) {
+        this(new CompositeAnalyzer(analyzers), decodeWorkers, analysisWorkers, queueSize, ordered, budget);
+    }
+
+    /**
+     * @param analyzer        the analyzers to run on each image. They must be safe to call from multiple threads.
+     * @param decodeWorkers   the number of threads reading and decoding images.
+     * @param analysisWorkers the number of threads running analyzers.
+     * @param queueSize       the number of decoded images that can wait for analysis. This is also the extra
+     *                        number of images in flight, besides the ones being decoded and analyzed.
+     * @param ordered         if true, the results are written in the order of the input images.
+     * @param budget          if not null, images are only decoded when their estimated size fits in the budget.
+     */
+    public BatchPipeline(CompositeAnalyzer analyzer, int decodeWorkers, int analysisWorkers, int queueSize,
+                         boolean ordered, MemoryBudget budget) {
+        if (decodeWorkers < 1 || analysisWorkers < 1 || queueSize < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "decodeWorkers (%d), analysisWorkers (%d) and queueSize (%d) must all be at least 1",
+                    decodeWorkers, analysisWorkers, queueSize));
+        }
+        this.analyzer = analyzer;
+        this.decodeWorkers = decodeWorkers;
+        this.analysisWorkers = analysisWorkers;
+        this.queueSize = queueSize;
+        this.ordered = ordered;
+        this.budget = budget;
+    }
+
+    /**
+     * @param cache if not null, images with results in the cache are not decoded and analyzed, and the results for
+     *              the other images are added to the cache.
+     * @return the pipeline, for chaining.
+     */
+    public BatchPipeline setCache(ResultCache cache) {
+        this.cache = cache;
+        signature = cache == null ? null : analyzer.getSignature();
+        return this;
+    }
+
+    /**
+     * @param checkpoint if not null, each image is marked as completed when its results has been written.
+     *                   The sequence numbers given to the checkpoint start from 0 for each call to process.
+     * @return the pipeline, for chaining.
+     */
+    public BatchPipeline setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+
+    /**
+     * Analyze all images and write the text of the results. Returns when all images has been processed.
+     * @param images the images to process. Only accessed from one thread at a time.
+     * @param out    the analysis results are written here.
+     * @param err    problems with reading or analyzing images are written here.
+     * @throws InterruptedException if the calling thread was interrupted while waiting for results.
+     * @throws IOException if the cache could not be read or written.
+     */
+    public void process(Iterator<File> images, PrintStream out, PrintStream err)
+            throws InterruptedException, IOException {
+        process(images, ResultWriter.create(ResultWriter.Format.TEXT, out), err);
+    }
+
+    /**
+     * Analyze all images and write the results. Returns when all images has been processed.
+     * The writer is flushed whenever it has written all the results that are ready.
+     * @param images the images to process. Only accessed from one thread at a time.
+     * @param out    the analysis results are written here. It is not closed.
+     * @param err    problems with reading or analyzing images are written here.
+     * @throws InterruptedException if the calling thread was interrupted while waiting for results.
+     * @throws IOException if the results could not be written or the cache could not be read or written. The
+     *                     image that failed and the ones after it are not marked as completed in the checkpoint.
+     */
+    public void process(Iterator<File> images, ResultWriter out, PrintStream err)
+            throws InterruptedException, IOException {
+        final Semaphore inFlight = new Semaphore(decodeWorkers + analysisWorkers + queueSize*2);
+        final BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<Job> analyzed = new ArrayBlockingQueue<>(queueSize);
+        final Source source = new Source(images);
+
+        List<Thread> threads = new ArrayList<>(decodeWorkers + analysisWorkers);
+        final DecodeWorker[] decoders = new DecodeWorker[decodeWorkers];
+        for (int i = 0 ; i < decodeWorkers ; i++) {
+            decoders[i] = new DecodeWorker(source, inFlight, decoded);
+            threads.add(new Thread(decoders[i], "telltale-decode-" + i));
+        }
+        for (int i = 0 ; i < analysisWorkers ; i++) {
+            threads.add(new Thread(new AnalysisWorker(decoded, analyzed), "telltale-analyze-" + i));
+        }
+        // Signals the end to the analysis workers when all decoders are finished
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (DecodeWorker decoder: decoders) {
+                        decoder.finished.acquire();
+                    }
+                    for (int i = 0 ; i < analysisWorkers ; i++) {
+                        decoded.put(Job.END);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "telltale-closer");
+        threads.add(closer);
+        for (Thread thread: threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try {
+            write(analyzed, inFlight, out, err);
+        } finally {
+            for (Thread thread: threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void write(BlockingQueue<Job> analyzed, Semaphore inFlight, ResultWriter out, PrintStream err)
+            throws InterruptedException, IOException {
+        final Map<Long, Job> waiting = new HashMap<>();
+        long next = 0;
+        int ended = 0;
+        while (ended < analysisWorkers) {
+            Job job = analyzed.take();
+            if (job == Job.END) {
+                ended++;
+                continue;
+            }
+            if (!ordered) {
+                job.write(out, err, checkpoint);
+                inFlight.release();
+                if (analyzed.isEmpty()) {
+                    out.flush();
+                }
+                continue;
+            }
+            waiting.put(job.sequence, job);
+            while ((job = waiting.remove(next)) != null) {
+                job.write(out, err, checkpoint);
+                inFlight.release();
+                next++;
+            }
+            if (analyzed.isEmpty()) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    // Hands out the input images with sequence numbers
+    private static class Source {
+        private final Iterator<File> images;
+        private long sequence = 0;
+
+        private Source(Iterator<File> images) {
+            this.images = images;
+        }
+
+        private synchronized Job next() {
+            return images.hasNext() ? new Job(sequence++, images.next()) : null;
+        }
+    }
+
+    private static class Job {
+        private static final Job END = new Job(-1, null);
+
+        private final long sequence;
+        private final File file;
+        private BufferedImage image = null;
+        private long reservation = 0;
+        private String cacheKey = null;
+        private boolean cached = false;
+        // Problems with the cache are not problems with the image, so they stop the processing
+        private IOException cacheFailure = null;
+        private final List<AnalysisResult> results = new ArrayList<>();
+        private final List<String> errors = new ArrayList<>();
+
+        private Job(long sequence, File file) {
+            this.sequence = sequence;
+            this.file = file;
+        }
+
+        private void addError(String message, Throwable t) {
+            StringWriter trace = new StringWriter();
+            t.printStackTrace(new PrintWriter(trace));
+            errors.add(message + "\n" + trace.toString());
+        }
+
+        private void write(ResultWriter out, PrintStream err, Checkpoint checkpoint) throws IOException {
+            if (cacheFailure != null) {
+                throw new IOException("Unable to use the cache for '" + file + "'", cacheFailure);
+            }
+            for (String error: errors) {
+                err.print(error);
+            }
+            out.write(results);
+            if (checkpoint != null) {
+                checkpoint.completed(sequence, file);
+            }
+        }
+    }
+
+    private class DecodeWorker implements Runnable {
+        private final Source source;
+        private final Semaphore inFlight;
+        private final BlockingQueue<Job> decoded;
+        private final Semaphore finished = new Semaphore(0);
+
+        private DecodeWorker(Source source, Semaphore inFlight, BlockingQueue<Job> decoded) {
+            this.source = source;
+            this.inFlight = inFlight;
+            this.decoded = decoded;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    inFlight.acquire();
+                    Job job = source.next();
+                    if (job == null) {
+                        inFlight.release();
+                        break;
+                    }
+                    try {
+                        lookup(job);
+                    } catch (IOException e) {
+                        job.cacheFailure = e;
+                    }
+                    try {
+                        if (!job.cached && job.cacheFailure == null) {
+                            decode(job);
+                        }
+                    } catch (IOException e) {
+                        job.addError("Unable to open '" + job.file + "' as an image", e);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        job.addError("Exception reading '" + job.file + "'", e);
+                    } catch (OutOfMemoryError e) {
+                        job.addError("Out of memory reading '" + job.file + "'", e);
+                    }
+                    if (job.image == null) {
+                        release(job);
+                    }
+                    decoded.put(job);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finished.release();
+            }
+        }
+
+        // Missing images are not looked up, so that they are reported like other images that cannot be read
+        private void lookup(Job job) throws IOException {
+            if (cache == null || !job.file.isFile()) {
+                return;
+            }
+            job.cacheKey = cache.getKey(job.file, signature);
+            List<AnalysisResult> results = cache.get(job.cacheKey, job.file);
+            if (results != null) {
+                job.results.addAll(results);
+                job.cached = true;
+            }
+        }
+
+        // Equivalent to ImageIO.read, but reserves memory from the budget between reading the header and the pixels
+        private void decode(Job job) throws IOException, InterruptedException {
+            if (!job.file.canRead()) {
+                throw new IIOException("Can't read input file!");
+            }
+            try (ImageInputStream in = ImageIO.createImageInputStream(job.file)) {
+                if (in == null) {
+                    throw new IIOException("Can't create an ImageInputStream!");
+                }
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) {
+                    throw new IIOException("No ImageReader for the format of the image");
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    if (budget != null) {
+                        job.reservation = budget.acquire(MemoryBudget.estimate(reader, analyzer.getAnalyzers().size()));
+                    }
+                    job.image = reader.read(0, reader.getDefaultReadParam());
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+    }
+
+    private void release(Job job) {
+        if (budget != null) {
+            budget.release(job.reservation);
+        }
+        job.reservation = 0;
+    }
+
+    private class AnalysisWorker implements Runnable {
+        private final BlockingQueue<Job> decoded;
+        private final BlockingQueue<Job> analyzed;
+
+        private AnalysisWorker(BlockingQueue<Job> decoded, BlockingQueue<Job> analyzed) {
+            this.decoded = decoded;
+            this.analyzed = analyzed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Job job = decoded.take();
+                    if (job == Job.END) {
+                        analyzed.put(Job.END);
+                        break;
+                    }
+                    if (job.errors.isEmpty() && !job.cached && job.cacheFailure == null) {
+                        try {
+                            final List<CompositeAnalyzer.Failure> failures = new ArrayList<>();
+                            job.results.addAll(analyzer.analyze(job.file, job.image, failures));
+                            for (CompositeAnalyzer.Failure failure: failures) {
+                                job.addError("Exception analyzing '" + job.file + "' with "
+                                             + failure.getAnalyzer().getName(), failure.getException());
+                            }
+                            if (job.cacheKey != null && failures.isEmpty()) {
+                                cache.put(job.cacheKey, job.results);
+                            }
+                        } catch (IOException e) {
+                            job.cacheFailure = e;
+                        } catch (Exception e) {
+                            job.addError("Exception analyzing '" + job.file + "' with " + analyzer.getName(), e);
+                        } catch (OutOfMemoryError e) {
+                            job.addError("Out of memory analyzing '" + job.file + "' with " + analyzer.getName(), e);
+                        }
+                    }
+                    job.image = null; // Free it as soon as possible as the job might wait for output ordering
+                    release(job);
+                    analyzed.put(job);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -13,135 +13,352 @@ import java.util.List;
  * where 2 is taken from (1+3/2), 6 is taken from (3+9)/2 and 5 is from (9+1)/2.
  */
 public class BilinearDetect extends ImageAnalyzerImpl {
+    private static final int SCALE_X = 2;
+    private static final int SCALE_Y = 2;
+
+    // Indexes in the 3x3 blocks
+    private static final int c0_0 = 0;
+    private static final int c0_1 = 1;
+    private static final int c0_2 = 2;
+    private static final int c1_0 = 3;
+    private static final int c1_1 = 4;
+    private static final int c1_2 = 5;
+    private static final int c2_0 = 6;
+    private static final int c2_1 = 7;
+    //private static final int c2_2 = 8;
+
     @Override
-    public AnalysisResult analyze(File imageFile, BufferedImage image) {
-        final int SCALE_X = 2;
-        final int SCALE_Y = 2;
-        final long[][] rectRGB = new long[3][(SCALE_X+1)*(SCALE_Y+1)];
-        int c0_0 = 0;
-        int c0_1 = 1;
-        int c0_2 = 2;
-        int c1_0 = 3;
-        int c1_1 = 4;
-        int c1_2 = 5;
-        int c2_0 = 6;
-        int c2_1 = 7;
-        //int c2_2 = 8;
-
-        StringBuilder sb = new StringBuilder();
-
-        sb.append("Offset  Horizontal   Vertical     Center  avgCenter  fullImage\n");
+    public RowVisitor<?> getRowVisitor() {
+        return VISITOR;
+    }
+
+    /**
+     * Collects the statistics for all offsets in a single pass over the image.
+     * @param pixels the image to analyze.
+     * @return a Candidate for each offset, ordered by offsetX, then offsetY.
+     */
+    List<Candidate> getCandidates(PixelAccess pixels) {
+        return getCandidates(sweepStrips(pixels, VISITOR));
+    }
+
+    private List<Candidate> getCandidates(Sums sums) {
+        final int width = sums.width;
+        final int height = sums.height;
+        final double[] deviations = new double[3];
+        final long[] channelHistogram = new long[256];
+
+        // The full image deviation has always been calculated from an array of (width/SCALE_X)*(height/SCALE_Y)
+        // values, where the entries that were not filled with center values were 0. This is kept, as it would
+        // change the scores otherwise. When only some of the rows have been visited, the padding is scaled down
+        final long centerTotal = (long)(width/SCALE_X)*(height/SCALE_Y) * sums.rows / height;
         List<Candidate> candidates = new ArrayList<>(SCALE_X*SCALE_Y);
-        double[] deviationsH = new double[3];
-        double[] deviationsV = new double[3];
-        double[] deviationsC = new double[3];
         for (int offsetX = 0 ; offsetX < SCALE_X ; offsetX++) {
             for (int offsetY = 0 ; offsetY < SCALE_Y ; offsetY++) {
-                double sumMaxDeviationH = 0.0;
-                double sumMaxDeviationV = 0.0;
-                double sumMaxDeviationC = 0.0;
-
-                // Iterate over all the rectangles in the image
-                // We ignore the last row and column it they do not match the rectangle size
-                int blockCount = 0;
-                for (int y = offsetY ; y < image.getHeight()-SCALE_Y-1 ; y+=SCALE_Y) {
-                    for (int x = offsetX ; x < image.getWidth()-SCALE_X-1 ; x+=SCALE_X) {
-                        blockCount++;
-                        // Calculate max standard deviation for all color channels within the pixels in the rectangle
-                        extractChannelValues(image, y, x, (SCALE_X + 1), (SCALE_Y + 1), rectRGB);
-                        for (int channel = 0 ; channel < 3 ; channel++) {
-                            long[] rgb = rectRGB[channel];
-                            deviationsH[channel] = Stats.standardDeviation(new double[]{
-                                    (double) rgb[c1_0],
-                                    1.0 * (rgb[c0_0] + rgb[c2_0]) / 2});
-                            deviationsV[channel] = Stats.standardDeviation(new double[]{
-                                    (double) rgb[c0_1],
-                                    1.0 * (rgb[c0_0] + rgb[c0_2]) / 2});
-                            deviationsC[channel] = Stats.standardDeviation(new double[]{
-                                    (double) rgb[c1_1],
-                                    1.0 * (rgb[c0_1] + rgb[c2_1] + rgb[c1_0] + rgb[c1_2]) / 4});
-/*                            if (blockCount == 1 && channel == 0) {
-                                System.out.println(String.format(
-                                        "%d %d %d hd:%.2f vd:%.2f cd:%.2f\n%d %d %d\n%d %d %d\n",
-                                        rgb[c0_0], rgb[c1_0], rgb[c2_0],
-                                        deviationsH[channel], deviationsV[channel], deviationsC[channel],
-                                        rgb[c0_1], rgb[c1_1], rgb[c2_1],
-                                        rgb[c0_2], rgb[c1_2], rgb[c2_2]));
-                            }*/
-                        }
-
-                        sumMaxDeviationH += Stats.max(deviationsH);
-                        sumMaxDeviationV += Stats.max(deviationsV);
-                        sumMaxDeviationC += Stats.max(deviationsC);
+                final int offset = offsetX*SCALE_Y + offsetY;
+                final int blockCount = sums.blockCounts[offset];
+                final long[][] histogram = sums.centerHistograms[offset];
+                final long[] grayHistogram = sums.grayCenterHistograms[offset];
+                for (int channel = 0 ; channel < 3 ; channel++) {
+                    for (int value = 0 ; value < 256 ; value++) {
+                        channelHistogram[value] = histogram[channel][value] + grayHistogram[value];
                     }
+                    channelHistogram[0] += Math.max(0, centerTotal - sums.centerCounts[offset]);
+                    deviations[channel] = Stats.standardDeviationFromHistogram(channelHistogram);
                 }
                 candidates.add(new Candidate(offsetX, offsetY,
-                                             sumMaxDeviationH / blockCount, sumMaxDeviationV / blockCount,
-                                             sumMaxDeviationC / blockCount,
-                                             maxCenterFullDeviation(offsetX, offsetY, SCALE_X, SCALE_Y, image),
-                                             avgCenterLocalDeviation(offsetX, offsetY, SCALE_X, SCALE_Y, image)));
+                                             sums.sumMaxDeviationH[offset] / blockCount,
+                                             sums.sumMaxDeviationV[offset] / blockCount,
+                                             sums.sumMaxDeviationC[offset] / blockCount,
+                                             Stats.max(deviations),
+                                             sums.sumLocalDeviation[offset] / sums.localSamples[offset]));
             }
         }
-        List<Candidate> sortedCandidates = getBestPermutation(candidates);
-        for (Candidate candidate: sortedCandidates) {
-            sb.append(candidate);
+        return candidates;
+    }
+
+    // Sums for the offsets, indexed by offsetX*SCALE_Y + offsetY, and buffers for the visits
+    private static class Sums {
+        private final int width;
+        private final int height;
+        private final double[] sumMaxDeviationH = new double[SCALE_X*SCALE_Y];
+        private final double[] sumMaxDeviationV = new double[SCALE_X*SCALE_Y];
+        private final double[] sumMaxDeviationC = new double[SCALE_X*SCALE_Y];
+        private final int[] blockCounts = new int[SCALE_X*SCALE_Y];
+        private final double[] sumLocalDeviation = new double[SCALE_X*SCALE_Y];
+        private final int[] localSamples = new int[SCALE_X*SCALE_Y];
+        // Histograms of the center values for the full image deviation, as [offset][channel][value]
+        private final long[][][] centerHistograms = new long[SCALE_X*SCALE_Y][3][256];
+        // Center values from grey rows, which count for all channels, as [offset][value]
+        private final long[][] grayCenterHistograms = new long[SCALE_X*SCALE_Y][256];
+        private final long[] centerCounts = new long[SCALE_X*SCALE_Y];
+        private long rows = 0; // The number of visited rows
+
+        private final long[][] rectRGB = new long[3][(SCALE_X+1)*(SCALE_Y+1)];
+        private final long[][] valRGB = new long[3][4];
+        private final double[] deviations = new double[3];
+        private final int[][][] rectRows = new int[SCALE_Y+1][][];
+
+        private Sums(int width, int height) {
+            this.width = width;
+            this.height = height;
         }
-        sb.append(String.format("Upscale model conformance score (lower is better): %.4f\n",
-                                score(sortedCandidates)));
-        return new AnalysisResult(imageFile, getName(), sb.toString());
     }
 
-    private double maxCenterFullDeviation(int offsetX, int offsetY, int scaleX, int scaleY, BufferedImage image) {
-        long[][] imgRGB = new long[3][(image.getWidth()/scaleX)*(image.getHeight()/scaleY)];
-        int index = 0;
-        for (int y = offsetY+1 ; y < image.getHeight()-scaleY-1 ; y+=scaleY) {
-            for (int x = offsetX+1 ; x < image.getWidth()-scaleX-1 ; x+=scaleX) {
-                fillValues(imgRGB, index++, image.getRGB(x, y));
+    // All statistics are collected in a single pass over the rows, so that each row is only read once
+    private final RowVisitor<Sums> VISITOR = new RowVisitor<Sums>() {
+        // The local center deviation needs the rows SCALE_Y*2 above the current row
+        @Override
+        public int getContextRows() {
+            return SCALE_Y*2;
+        }
+
+        @Override
+        public int getStripAlignment() {
+            return SCALE_Y;
+        }
+
+        @Override
+        public Sums begin(int width, int height) {
+            return new Sums(width, height);
+        }
+
+        @Override
+        public void visit(RowWindow rows, int y, Sums sums) {
+            final int width = rows.getWidth();
+            final int height = rows.getHeight();
+            sums.rows++;
+
+            // Blocks with the current row at the bottom
+            // We ignore the last row and column it they do not match the rectangle size
+            final int top = y-SCALE_Y;
+            if (top >= 0 && top < height-SCALE_Y-1) {
+                for (int i = 0 ; i <= SCALE_Y ; i++) {
+                    sums.rectRows[i] = rows.getRow(top+i);
+                }
+                final int bands = rows.getBands(top, top+SCALE_Y+1);
+                for (int offsetX = 0 ; offsetX < SCALE_X ; offsetX++) {
+                    final int offset = offsetX*SCALE_Y + top%SCALE_Y;
+                    for (int x = offsetX ; x < width-SCALE_X-1 ; x+=SCALE_X) {
+                        sums.blockCounts[offset]++;
+                        // Calculate max standard deviation for all color channels within the rectangle
+                        extractChannelValues(sums.rectRows, x, (SCALE_X + 1), (SCALE_Y + 1), sums.rectRGB, bands);
+                        addBlockDeviations(sums.rectRGB, offset, sums.deviations, bands, sums);
+                    }
+                }
+            }
+
+            // Centers for the full image deviation on the current row
+            if (y >= 1 && y < height-SCALE_Y-1) {
+                final int[][] row = rows.getRow(y);
+                final boolean gray = rows.isGray(y);
+                for (int offsetX = 0 ; offsetX < SCALE_X ; offsetX++) {
+                    final int offset = offsetX*SCALE_Y + (y-1)%SCALE_Y;
+                    if (gray) {
+                        final long[] histogram = sums.grayCenterHistograms[offset];
+                        for (int x = offsetX+1 ; x < width-SCALE_X-1 ; x+=SCALE_X) {
+                            histogram[row[0][x]]++;
+                            sums.centerCounts[offset]++;
+                        }
+                        continue;
+                    }
+                    final long[][] histogram = sums.centerHistograms[offset];
+                    for (int x = offsetX+1 ; x < width-SCALE_X-1 ; x+=SCALE_X) {
+                        histogram[0][row[0][x]]++;
+                        histogram[1][row[1][x]]++;
+                        histogram[2][row[2][x]]++;
+                        sums.centerCounts[offset]++;
+                    }
+                }
+            }
+
+            // Local center deviations with the current row as the lower neighbours
+            final int center = y-SCALE_Y;
+            if (center >= SCALE_Y+1 && center < height-SCALE_Y*2-1) {
+                final int[][] above = rows.getRow(center-SCALE_Y);
+                final int[][] below = rows.getRow(y);
+                final int bands = rows.isGray(center-SCALE_Y) && rows.isGray(y) ? 1 : 3;
+                for (int offsetX = 0 ; offsetX < SCALE_X ; offsetX++) {
+                    final int offset = offsetX*SCALE_Y + (center-SCALE_Y-1)%SCALE_Y;
+                    for (int x = offsetX+SCALE_X+1 ; x < width-SCALE_X*2-1 ; x+=SCALE_X) {
+                        fillValues(sums.valRGB, 0, above, x-SCALE_X, bands);
+                        fillValues(sums.valRGB, 1, below, x-SCALE_X, bands);
+                        fillValues(sums.valRGB, 2, above, x+SCALE_X, bands);
+                        fillValues(sums.valRGB, 3, below, x+SCALE_X, bands);
+                        sums.sumLocalDeviation[offset] += getMaxDeviation(sums.valRGB, sums.deviations, bands);
+                        sums.localSamples[offset]++;
+                    }
+                }
             }
         }
-        return Stats.max(new double[]{Stats.standardDeviation(imgRGB[0]), Stats.standardDeviation(imgRGB[1]),
-                Stats.standardDeviation(imgRGB[2])});
+
+        @Override
+        public void merge(Sums target, Sums source) {
+            for (int offset = 0 ; offset < SCALE_X*SCALE_Y ; offset++) {
+                target.sumMaxDeviationH[offset] += source.sumMaxDeviationH[offset];
+                target.sumMaxDeviationV[offset] += source.sumMaxDeviationV[offset];
+                target.sumMaxDeviationC[offset] += source.sumMaxDeviationC[offset];
+                target.blockCounts[offset] += source.blockCounts[offset];
+                target.sumLocalDeviation[offset] += source.sumLocalDeviation[offset];
+                target.localSamples[offset] += source.localSamples[offset];
+                for (int channel = 0 ; channel < 3 ; channel++) {
+                    for (int value = 0 ; value < 256 ; value++) {
+                        target.centerHistograms[offset][channel][value] +=
+                                source.centerHistograms[offset][channel][value];
+                    }
+                }
+                for (int value = 0 ; value < 256 ; value++) {
+                    target.grayCenterHistograms[offset][value] += source.grayCenterHistograms[offset][value];
+                }
+                target.centerCounts[offset] += source.centerCounts[offset];
+            }
+            target.rows += source.rows;
+        }
+
+        @Override
+        public AnalysisResult finish(File imageFile, Sums sums) {
+            return getResult(imageFile, sums, RENDERER);
+        }
+    };
+
+    // Sampling estimates the candidates from bands of rows
+    private final BandSampler.Model<Sums> SAMPLING_MODEL = new BandSampler.Model<Sums>() {
+        @Override
+        public RowVisitor<Sums> getRowVisitor() {
+            return VISITOR;
+        }
+
+        @Override
+        public double[][] getMetrics(Sums sums) {
+            List<Candidate> candidates = getCandidates(sums);
+            double[][] metrics = new double[candidates.size()][];
+            for (int i = 0 ; i < candidates.size() ; i++) {
+                Candidate candidate = candidates.get(i);
+                metrics[i] = new double[]{candidate.getHorizontal(), candidate.getVertical(), candidate.center,
+                                          candidate.getAvgCenterLocalDeviation(),
+                                          candidate.getOverallCenterDeviation()};
+            }
+            return metrics;
+        }
+
+        @Override
+        public AssignmentSolver.Objective getObjective(Sums sums) {
+            return BilinearDetect.this.getObjective(getCandidates(sums));
+        }
+
+        @Override
+        public AnalysisResult finish(File imageFile, final BandSampler.Estimate<Sums> estimate) {
+            return getResult(imageFile, estimate.getResult(), new AnalysisResult.Renderer() {
+                @Override
+                public String render(AnalysisResult result) {
+                    return RENDERER.render(result) + estimate + estimate.formatHalfWidths(OFFSET_LABELS, METRICS);
+                }
+            }).setFractionExamined(estimate.getFractionExamined());
+        }
+    };
+
+    private static final String[] OFFSET_LABELS = {"(0, 0)", "(0, 1)", "(1, 0)", "(1, 1)"};
+    private static final String[] METRICS = {"Horizontal", "Vertical", "Center", "avgCenter", "fullImage"};
+
+    @Override
+    protected BandSampler.Model<?> getSamplingModel() {
+        return SAMPLING_MODEL;
     }
 
-    private void fillValues(long[][] imgRGB, int index, int rgb) {
-        imgRGB[0][index] = (rgb & 0x00ff0000) >> 16; // red
-        imgRGB[1][index] = (rgb & 0x0000ff00) >> 8;  // green
-        imgRGB[2][index] = rgb & 0x000000ff;         // blue
+    // The candidates are added in the order of the best assignment to the hypotheses
+    private AnalysisResult getResult(File imageFile, Sums sums, AnalysisResult.Renderer renderer) {
+        final List<Candidate> sortedCandidates = getBestPermutation(getCandidates(sums));
+        AnalysisResult result = new AnalysisResult(imageFile, getName(), renderer).setMetricNames(METRICS)
+                .setScore(score(sortedCandidates));
+        for (Candidate candidate: sortedCandidates) {
+            result.addCandidate(SCALE_X, SCALE_Y, candidate.offsetX, candidate.offsetY, candidate.horizontal,
+                                candidate.vertical, candidate.center, candidate.avgCenterLocalDeviation,
+                                candidate.overallCenterDeviation);
+        }
+        return result;
     }
 
-    private double avgCenterLocalDeviation(int offsetX, int offsetY, int scaleX, int scaleY, BufferedImage image) {
-        long[][] valRGB = new long[3][4];
-        int samples = 0;
-        double sum = 0.0;
-
-        for (int y = offsetY+scaleY+1 ; y < image.getHeight()-scaleY*2-1 ; y+=scaleY) {
-            for (int x = offsetX+scaleX+1 ; x < image.getWidth()-scaleX*2-1 ; x+=scaleX) {
-                fillValues(valRGB, 0, image.getRGB(x-scaleX, y-scaleY));
-                fillValues(valRGB, 1, image.getRGB(x-scaleX, y+scaleY));
-                fillValues(valRGB, 2, image.getRGB(x+scaleX, y-scaleY));
-                fillValues(valRGB, 3, image.getRGB(x+scaleX, y+scaleY));
-                sum += Stats.max(new double[]{
-                        Stats.standardDeviation(valRGB[0]),
-                        Stats.standardDeviation(valRGB[1]),
-                        Stats.standardDeviation(valRGB[2])});
-                samples++;
+    private static final AnalysisResult.Renderer RENDERER = new AnalysisResult.Renderer() {
+        @Override
+        public String render(AnalysisResult result) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Offset  Horizontal   Vertical     Center  avgCenter  fullImage\n");
+            for (AnalysisResult.Candidate candidate: result.getCandidates()) {
+                sb.append(String.format("(%d, %d)   %9.2f  %9.2f  %9.2f  %9.2f  %9.2f\n",
+                                        (int) candidate.getOffsetX(), (int) candidate.getOffsetY(),
+                                        candidate.getMetric(0), candidate.getMetric(1), candidate.getMetric(2),
+                                        candidate.getMetric(3), candidate.getMetric(4)));
             }
+            sb.append(String.format("Upscale model conformance score (lower is better): %.4f\n", result.getScore()));
+            return sb.toString();
+        }
+    };
+
+    // bands is 1 for grey blocks, where only the red channel is processed
+    private void addBlockDeviations(long[][] rectRGB, int offset, double[] deviations, int bands, Sums sums) {
+        for (int channel = 0 ; channel < bands ; channel++) {
+            long[] rgb = rectRGB[channel];
+            deviations[channel] = Stats.standardDeviation(
+                    (double) rgb[c1_0],
+                    1.0 * (rgb[c0_0] + rgb[c2_0]) / 2);
+        }
+        sums.sumMaxDeviationH[offset] += Stats.max(deviations, 0, bands);
+        for (int channel = 0 ; channel < bands ; channel++) {
+            long[] rgb = rectRGB[channel];
+            deviations[channel] = Stats.standardDeviation(
+                    (double) rgb[c0_1],
+                    1.0 * (rgb[c0_0] + rgb[c0_2]) / 2);
+        }
+        sums.sumMaxDeviationV[offset] += Stats.max(deviations, 0, bands);
+        for (int channel = 0 ; channel < bands ; channel++) {
+            long[] rgb = rectRGB[channel];
+            deviations[channel] = Stats.standardDeviation(
+                    (double) rgb[c1_1],
+                    1.0 * (rgb[c0_1] + rgb[c2_1] + rgb[c1_0] + rgb[c1_2]) / 4);
+        }
+        sums.sumMaxDeviationC[offset] += Stats.max(deviations, 0, bands);
+    }
+
+    private void fillValues(long[][] imgRGB, int index, int[][] row, int x, int bands) {
+        for (int channel = 0 ; channel < bands ; channel++) {
+            imgRGB[channel][index] = row[channel][x];
         }
-        return sum / samples;
     }
 
     // Attempts to classify candidates according to the overall hypothesis of 2x2 up-scaled super pixels
     private List<Candidate> getBestPermutation(List<Candidate> candidates) {
-        List<Candidate> best = null;
-        double bestScore = Double.MAX_VALUE;
-        for (List<Candidate> permutation : permute(candidates)) {
-            double modelScore = score(permutation);
-            if (modelScore < bestScore) {
-                bestScore = modelScore;
-                best = permutation;
-            }
+        return arrange(candidates, AssignmentSolver.solve(getObjective(candidates)));
+    }
+
+    private static List<Candidate> arrange(List<Candidate> candidates, int[] assignment) {
+        List<Candidate> arranged = new ArrayList<>(assignment.length);
+        for (int candidate: assignment) {
+            arranged.add(candidates.get(candidate));
         }
-        return best;
+        return arranged;
+    }
+
+    // The score of assigning the candidates to the hypotheses, bounded by the deviation of the known centers
+    private AssignmentSolver.Objective getObjective(final List<Candidate> candidates) {
+        return new AssignmentSolver.Objective() {
+            @Override
+            public int getSize() {
+                return candidates.size();
+            }
+
+            @Override
+            public double getLowerBound(int[] assignment, int assigned) {
+                final double[] centers = new double[assigned];
+                for (int i = 0 ; i < assigned ; i++) {
+                    centers[i] = candidates.get(assignment[i]).getCenter();
+                }
+                return Stats.minStandardDeviation(candidates.size(), centers);
+            }
+
+            @Override
+            public double getScore(int[] assignment) {
+                return score(arrange(candidates, assignment));
+            }
+        };
     }
 
     // Check for conformance to the model, where the first candidate is assumed to be hypothesis 1 etc.
@@ -191,7 +408,7 @@ public class BilinearDetect extends ImageAnalyzerImpl {
     }
 
 
-    private static class Candidate {
+    static class Candidate {
         private final int offsetX;
         private final int offsetY;
         private final double horizontal;
@@ -223,10 +440,12 @@ public class BilinearDetect extends ImageAnalyzerImpl {
             return vertical;
         }
 
-        public String toString() {
-            return String.format("(%d, %d)   %9.2f  %9.2f  %9.2f  %9.2f  %9.2f\n",
-                                 offsetX, offsetY, horizontal, vertical, center,
-                                 avgCenterLocalDeviation, overallCenterDeviation);
+        public double getOverallCenterDeviation() {
+            return overallCenterDeviation;
+        }
+
+        public double getAvgCenterLocalDeviation() {
+            return avgCenterLocalDeviation;
         }
     }
 
@@ -0,0 +1,174 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps track of the progress through a sequence of images, so that an interrupted run can be resumed.
+ * </p><p>
+ * The checkpoint holds the number of images from the start of the input that has been completed, and the path of
+ * the last one. Images can be completed out of order, in which case the count is only advanced when all earlier
+ * images has also been completed. The checkpoint is saved periodically and when it is closed. The output is flushed
+ * before each save, so that everything counted as completed has also been written.
+ * </p><p>
+ * When resuming, the input must be the same as for the interrupted run, and the results for the images completed
+ * after the last save are written again.
+ */
+public class Checkpoint implements Closeable {
+    public static final long DEFAULT_INTERVAL_MS = 30 * 1000;
+
+    private static final String COMPLETED = "completed";
+    private static final String LAST = "last";
+
+    private final File file;
+    private final Flushable out;
+    private final long intervalMS;
+    private final long resumed;
+    private final String resumedLast;
+
+    private final Map<Long, File> pending = new HashMap<>();
+    private long next = 0;
+    private long completed;
+    private String last;
+    private long lastSave = System.currentTimeMillis();
+
+    /**
+     * Create a checkpoint, resuming from the state in the file if it exists.
+     * @param file       the checkpoint is stored in this file.
+     * @param out        flushed before each save of the checkpoint. Can be null.
+     * @param intervalMS the minimum number of milliseconds between saves.
+     * @throws IOException if the file exists but could not be read.
+     */
+    public Checkpoint(File file, Flushable out, long intervalMS) throws IOException {
+        this.file = file;
+        this.out = out;
+        this.intervalMS = intervalMS;
+        Properties state = new Properties();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                state.load(in);
+            }
+        }
+        try {
+            resumed = Long.parseLong(state.getProperty(COMPLETED, "0"));
+        } catch (NumberFormatException e) {
+            throw new IOException("The checkpoint '" + file + "' has an invalid count", e);
+        }
+        resumedLast = state.getProperty(LAST);
+        completed = resumed;
+        last = resumedLast;
+    }
+
+    /**
+     * Skip the images that were completed by earlier runs.
+     * @param images the full input.
+     * @return the images that remains to be processed. The first of these has sequence number 0.
+     * @throws IOException if the input is not the same as the one that the checkpoint was created for.
+     */
+    public Iterator<File> skip(Iterator<File> images) throws IOException {
+        File image = null;
+        for (long i = 0 ; i < resumed ; i++) {
+            if (!images.hasNext()) {
+                throw new IOException(String.format(
+                        "The checkpoint '%s' has %d completed images, but the input only has %d", file, resumed, i));
+            }
+            image = images.next();
+        }
+        if (image != null && !image.getPath().equals(resumedLast)) {
+            throw new IOException(String.format(
+                    "The last completed image in the checkpoint '%s' is '%s', but it is '%s' in the input",
+                    file, resumedLast, image));
+        }
+        return images;
+    }
+
+    /**
+     * Mark an image as completed and save the checkpoint if the interval has passed since the last save.
+     * @param sequence the position of the image in the input returned by {@link #skip(Iterator)}, starting from 0.
+     * @param image    the image.
+     * @throws IOException if the checkpoint could not be saved.
+     */
+    public synchronized void completed(long sequence, File image) throws IOException {
+        pending.put(sequence, image);
+        File done;
+        while ((done = pending.remove(next)) != null) {
+            next++;
+            completed++;
+            last = done.getPath();
+        }
+        if (System.currentTimeMillis() - lastSave >= intervalMS) {
+            save();
+        }
+    }
+
+    /**
+     * Flush the output and store the state. The file is replaced atomically, so an interruption while saving leaves
+     * the previous state.
+     * @throws IOException if the checkpoint could not be saved.
+     */
+    public synchronized void save() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+        Properties state = new Properties();
+        state.setProperty(COMPLETED, Long.toString(completed));
+        if (last != null) {
+            state.setProperty(LAST, last);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream tempOut = new FileOutputStream(temp)) {
+            state.store(tempOut, "telltale checkpoint");
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastSave = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the number of images completed by earlier runs.
+     */
+    public long getResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return the number of images completed, including those by earlier runs.
+     */
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Saves the checkpoint.
+     */
+    @Override
+    public void close() throws IOException {
+        save();
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs a number of analyzers on an image, feeding all {@link ImageAnalyzerImpl}s from a single read of the pixels
+ * through their {@link RowVisitor}s. Adding more analyzers thus adds their calculations, but not more passes over
+ * the image. Other {@link ImageAnalyzer}s are run one at a time after the shared traversal.
+ * </p><p>
+ * Analyzers that are settled by their {@link ImageAnalyzerImpl#prescreen(File, PixelAccess)} do not take part in
+ * the traversal. If all of them are settled, the traversal is skipped. Analyzers with
+ * {@link ImageAnalyzerImpl#setSampling(BandSampler) sampling} enabled are run separately, like other analyzers.
+ * </p><p>
+ * An analyzer that throws an exception for an image only loses its own result, see
+ * {@link #analyze(File, PixelAccess, List)}. An exception from the shared traversal loses the results of all the
+ * analyzers that take part in it.
+ */
+public class CompositeAnalyzer {
+    private final List<ImageAnalyzer> analyzers;
+    private RowTraversal traversal = new RowTraversal();
+
+    /**
+     * @param analyzers the analyzers to run. The results are delivered in the same order.
+     */
+    public CompositeAnalyzer(List<? extends ImageAnalyzer> analyzers) {
+        this.analyzers = Collections.unmodifiableList(new ArrayList<>(analyzers));
+    }
+
+    /**
+     * Process each image in parallel strips for all analyzers at once.
+     * Parallel settings on the individual analyzers are not used.
+     * @see ImageAnalyzerImpl#setParallel(ForkJoinPool, int)
+     */
+    public CompositeAnalyzer setParallel(ForkJoinPool pool, int stripHeight) {
+        return setTraversal(new RowTraversal(pool, stripHeight));
+    }
+
+    /**
+     * @param traversal the traversal used for feeding the rows of the images to the analyzers.
+     * @return the composite, for chaining.
+     */
+    public CompositeAnalyzer setTraversal(RowTraversal traversal) {
+        this.traversal = traversal;
+        return this;
+    }
+
+    /**
+     * @see #setParallel(ForkJoinPool, int)
+     */
+    public CompositeAnalyzer setParallel(ForkJoinPool pool) {
+        return setParallel(pool, RowTraversal.DEFAULT_STRIP_HEIGHT);
+    }
+
+    public List<AnalysisResult> analyze(File imageFile, BufferedImage image) {
+        return analyze(imageFile, PixelAccess.create(image));
+    }
+
+    /**
+     * @param imageFile the file that the pixels are from.
+     * @param pixels    the pixels to analyze.
+     * @return the results from the analyzers, in the order given in the constructor. The results from the shared
+     *         traversal all state the time for the traversal, plus their own prescreen and finish.
+     * @throws RuntimeException the exception from the first analyzer that failed, after all analyzers have run.
+     *         Use {@link #analyze(File, PixelAccess, List)} to get the results from the other analyzers.
+     */
+    public List<AnalysisResult> analyze(File imageFile, PixelAccess pixels) {
+        final List<Failure> failures = new ArrayList<>();
+        final List<AnalysisResult> results = analyze(imageFile, pixels, failures);
+        if (!failures.isEmpty()) {
+            throw failures.get(0).getException();
+        }
+        return results;
+    }
+
+    /**
+     * @param imageFile the file that the image is from.
+     * @param image     the image to analyze.
+     * @param failures  the analyzers that throw an exception are added here. They have no result.
+     * @see #analyze(File, PixelAccess, List)
+     */
+    public List<AnalysisResult> analyze(File imageFile, BufferedImage image, List<Failure> failures) {
+        return analyze(imageFile, PixelAccess.create(image), failures);
+    }
+
+    /**
+     * Run all analyzers, even if some of them fail.
+     * @param imageFile the file that the pixels are from.
+     * @param pixels    the pixels to analyze.
+     * @param failures  the analyzers that throw an exception are added here. They have no result.
+     * @return the results from the analyzers that did not fail, in the order given in the constructor.
+     *         The results from the shared traversal all state the time for the traversal, plus their own prescreen
+     *         and finish.
+     */
+    public List<AnalysisResult> analyze(File imageFile, PixelAccess pixels, List<Failure> failures) {
+        final List<RowVisitor<?>> visitors = new ArrayList<>(analyzers.size());
+        final AnalysisResult[] screened = new AnalysisResult[analyzers.size()];
+        final boolean[] failed = new boolean[analyzers.size()];
+        final long[] nanos = new long[analyzers.size()];
+        for (int i = 0 ; i < analyzers.size() ; i++) {
+            if (isShared(analyzers.get(i))) {
+                final long startTime = System.nanoTime();
+                ImageAnalyzerImpl analyzer = (ImageAnalyzerImpl) analyzers.get(i);
+                try {
+                    screened[i] = analyzer.prescreen(imageFile, pixels);
+                    if (screened[i] == null) {
+                        visitors.add(analyzer.getRowVisitor());
+                    }
+                } catch (RuntimeException e) {
+                    failures.add(new Failure(analyzer, e));
+                    failed[i] = true;
+                }
+                nanos[i] = System.nanoTime() - startTime;
+            }
+        }
+        final long traversalStart = System.nanoTime();
+        final Object[] partials = visitors.isEmpty() ? new Object[0] : traversal.run(pixels, visitors);
+        final long traversalNanos = System.nanoTime() - traversalStart;
+
+        final List<AnalysisResult> results = new ArrayList<>(analyzers.size());
+        int visitorIndex = 0;
+        for (int i = 0 ; i < analyzers.size() ; i++) {
+            final ImageAnalyzer analyzer = analyzers.get(i);
+            if (failed[i]) {
+                continue;
+            }
+            final long startTime = System.nanoTime();
+            try {
+                if (screened[i] != null) {
+                    results.add(screened[i].setNanos(nanos[i]));
+                } else if (isShared(analyzer)) {
+                    final int visitor = visitorIndex++;
+                    AnalysisResult result = RowTraversal.finish(visitors.get(visitor), imageFile, partials[visitor]);
+                    results.add(result.setNanos(nanos[i] + traversalNanos + System.nanoTime() - startTime));
+                } else {
+                    results.add(analyzer.analyze(imageFile, pixels).setNanos(System.nanoTime() - startTime));
+                }
+            } catch (RuntimeException e) {
+                failures.add(new Failure(analyzer, e));
+            }
+        }
+        return results;
+    }
+
+    // Sampling analyzers decide themselves which rows to visit
+    private boolean isShared(ImageAnalyzer analyzer) {
+        return analyzer instanceof ImageAnalyzerImpl && ((ImageAnalyzerImpl) analyzer).getSampling() == null;
+    }
+
+    public List<ImageAnalyzer> getAnalyzers() {
+        return analyzers;
+    }
+
+    /**
+     * @return the names, versions and parameters of the analyzers, which together identify the results. Analyzers
+     *         that are not {@link ImageAnalyzerImpl}s are identified by their name and class.
+     */
+    public String getSignature() {
+        StringBuilder sb = new StringBuilder();
+        for (ImageAnalyzer analyzer: analyzers) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(analyzer.getName());
+            if (analyzer instanceof ImageAnalyzerImpl) {
+                ImageAnalyzerImpl impl = (ImageAnalyzerImpl) analyzer;
+                sb.append(" v").append(impl.getVersion()).append(" (").append(impl.getParameters()).append(")");
+            } else {
+                sb.append(" (").append(analyzer.getClass().getName()).append(")");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * An analyzer that threw an exception for an image.
+     */
+    public static class Failure {
+        private final ImageAnalyzer analyzer;
+        private final RuntimeException exception;
+
+        public Failure(ImageAnalyzer analyzer, RuntimeException exception) {
+            this.analyzer = analyzer;
+            this.exception = exception;
+        }
+
+        public ImageAnalyzer getAnalyzer() {
+            return analyzer;
+        }
+
+        public RuntimeException getException() {
+            return exception;
+        }
+    }
+
+    /**
+     * @return the names of the analyzers, separated by comma.
+     */
+    public String getName() {
+        StringBuilder sb = new StringBuilder();
+        for (ImageAnalyzer analyzer: analyzers) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(analyzer.getName());
+        }
+        return sb.toString();
+    }
+}
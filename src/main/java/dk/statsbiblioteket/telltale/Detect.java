@@ -17,68 +17,411 @@ package dk.statsbiblioteket.telltale;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Main class for running detection.
  */
 public class Detect {
-    private final List<ImageAnalyzer> analyzers = new ArrayList<>();
+    private final CompositeAnalyzer analyzer;
+
+    /**
+     * The number of analyses of a generated image when starting the server, so that the code is compiled before
+     * the first request.
+     */
+    public static final int SERVER_WARMUP = 20;
 
     public static final String USAGE =
             "Attempts to determine if an image has been upscaled.\n"
             + "\n"
             + "Usage:\n"
-            + "Detect image*\n"
+            + "Detect [options] input*\n"
+            + "\n"
+            + "An input is an image, a folder that is searched recursively for images, or @manifest for a file\n"
+            + "with an input per line. @- reads the manifest from standard in\n"
+            + "\n"
+            + "-threads n:   Analyze each image with n threads (default: 1)\n"
+            + "-decoders n:  Read and decode images with n threads in a pipeline (default: 1)\n"
+            + "-analyzers n: Analyze n images at a time in a pipeline (default: 1)\n"
+            + "-queue n:     Number of decoded images waiting for analysis in the pipeline (default: 2)\n"
+            + "-unordered:   Write pipeline results as soon as they are ready instead of in input order\n"
+            + "-budget n:    MB of heap for decoded images in the pipeline. Large images are processed with fewer\n"
+            + "              images in parallel (default: 3/4 of the maximum heap)\n"
+            + "-band n:      Decode each image in bands of n rows instead of holding it fully in memory.\n"
+            + "              For TIFF, the bands are aligned to tiles or strips. Images are processed one at a time\n"
+            + "-sample:      Analyze random bands of rows until the outcome is statistically settled, instead of\n"
+            + "              the full image. The fraction examined and confidence intervals are reported.\n"
+            + "              The -factors and -periodicity detection always analyze the full image\n"
+            + "-factors f:   Also look for Nearest Neighbour upscales by the comma separated factors, which must be\n"
+            + "              above 1 and fractions with a denominator of at most 12 (e.g. 1.5,2,3,4)\n"
+            + "-periodicity: Also find the scale factor and phase from the periodicity of the differences between\n"
+            + "              neighbouring columns and rows, for any factor\n"
+            + "-format f:    Output format: text, jsonl (a JSON object per result), csv (a row per candidate and\n"
+            + "              metric) or binary (compact records). Only text includes the descriptions (default: text)\n"
+            + "-cache dir:   Store results in the folder and reuse them for images with the same path, size and\n"
+            + "              modification time, as long as the analyzers and their parameters are unchanged\n"
+            + "-hash:        Also require the content of the image to be unchanged to reuse cached results\n"
+            + "-checkpoint f:\n"
+            + "              Store the progress in the file every 30 seconds. If the file exists, the images that\n"
+            + "              were completed according to it are skipped. The inputs must be the same as for the\n"
+            + "              earlier run. Results written after the last save of the file are written again\n"
+            + "-server port: Keep the analyzers loaded and analyze images on request on http://localhost:port until\n"
+            + "              stopped. POST /analyze?path=image analyzes a file, POST /analyze with the image as the\n"
+            + "              body analyzes the bytes. Add &format=f to select the format (default: jsonl).\n"
+            + "              -analyzers gives the number of concurrent analyses and -queue the number of waiting\n"
+            + "              requests. Requests beyond that are rejected with 503. -budget limits the memory for\n"
+            + "              the images being analyzed. Larger images are rejected with 413. GET /status gives\n"
+            + "              statistics\n"
+            + "-watch:       Treat the inputs as folders to watch. Images written to the folders or their sub folders\n"
+            + "              are analyzed as soon as they have been fully written, until stopped. Images present\n"
+            + "              at start are also analyzed. Combine with -cache to skip them on restarts and with\n"
+            + "              -unordered to write results as soon as they are ready\n"
+            + "-settle n:    Milliseconds without changes before a watched image is considered fully written\n"
+            + "              (default: 1000)\n"
             + "\n"
             +"Sample\n"
-            + "Detect myimage.jpg myotherimage.tif";
+            + "Detect myimage.jpg myotherimage.tif\n"
+            + "Detect -decoders 2 -analyzers 8 -unordered *.tif\n"
+            + "Detect -band 1024 huge_map.tif\n"
+            + "Detect -sample -analyzers 4 scans/*.jpg\n"
+            + "Detect -factors 1.5,2,3,4 -periodicity scans/*.tif\n"
+            + "Detect -format jsonl -analyzers 8 *.tif > results.jsonl\n"
+            + "Detect -cache ~/.telltale -analyzers 4 scans/*.tif\n"
+            + "Detect -checkpoint progress.properties -analyzers 8 /archive/scans >> results.txt\n"
+            + "find /archive -name '*.tif' | Detect -format jsonl @- > results.jsonl\n"
+            + "Detect -server 8099 -analyzers 4 -queue 16 -cache ~/.telltale\n"
+            + "Detect -watch -unordered -analyzers 4 -cache ~/.telltale -format jsonl /scanners/hot >> results.jsonl";
 
 
     public Detect() {
-        analyzers.add(new NearestNeighbourDetect());
-        analyzers.add(new BilinearDetect());
+        this(null);
+    }
+
+    /**
+     * @param pool if not null, each image is analyzed in parallel strips on the pool.
+     */
+    public Detect(ForkJoinPool pool) {
+        this(pool, null);
     }
 
-    public static void main(String[] args) throws IOException {
+    /**
+     * @param pool    if not null, each image is analyzed in parallel strips on the pool.
+     * @param sampler if not null, only a sample of each image is analyzed by the analyzers that support it.
+     */
+    public Detect(ForkJoinPool pool, BandSampler sampler) {
+        this(pool, sampler, null, false);
+    }
+
+    /**
+     * @param pool        if not null, each image is analyzed in parallel strips on the pool.
+     * @param sampler     if not null, only a sample of each image is analyzed by the analyzers that support it.
+     * @param factors     if not null, a {@link MultiFactorDetect} for the factors is added to the analyzers.
+     * @param periodicity if true, a {@link PeriodicityDetect} is added to the analyzers.
+     */
+    public Detect(ForkJoinPool pool, BandSampler sampler, double[] factors, boolean periodicity) {
+        List<ImageAnalyzer> analyzers = new ArrayList<>();
+        analyzers.add(new NearestNeighbourDetect().setSampling(sampler));
+        analyzers.add(new BilinearDetect().setSampling(sampler));
+        if (factors != null) {
+            analyzers.add(new MultiFactorDetect(factors));
+        }
+        if (periodicity) {
+            analyzers.add(new PeriodicityDetect());
+        }
+        analyzer = new CompositeAnalyzer(analyzers).setParallel(pool);
+    }
+
+    /**
+     * @return the analyzers that are run on each image.
+     */
+    public CompositeAnalyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
         if (args.length == 0) {
-            System.out.println(USAGE);
-            System.exit(2);
+            usage();
         }
 
-        List<File> images = new ArrayList<>(args.length);
-        for (String arg: args) {
-            images.add(new File(arg));
-            if (!images.get(images.size()-1).exists()) {
-                throw new FileNotFoundException(
-                        "The image '" + images.get(images.size()) + "' could not be located\n" + USAGE);
+        int threads = 1;
+        int decoders = 1;
+        int analyzerThreads = 1;
+        int queueSize = 2;
+        boolean ordered = true;
+        long budgetMB = 0;
+        int bandHeight = 0;
+        boolean sample = false;
+        double[] factors = null;
+        boolean periodicity = false;
+        ResultWriter.Format format = ResultWriter.Format.TEXT;
+        File cacheFolder = null;
+        boolean hashContent = false;
+        File checkpointFile = null;
+        int port = -1;
+        boolean watch = false;
+        int settleMS = (int) FolderWatcher.DEFAULT_SETTLE_MS;
+        int argIndex = 0;
+        while (argIndex < args.length && args[argIndex].startsWith("-")) {
+            String option = args[argIndex++];
+            if ("-unordered".equals(option)) {
+                ordered = false;
+                continue;
+            }
+            if ("-sample".equals(option)) {
+                sample = true;
+                continue;
+            }
+            if ("-hash".equals(option)) {
+                hashContent = true;
+                continue;
+            }
+            if ("-watch".equals(option)) {
+                watch = true;
+                continue;
+            }
+            if ("-periodicity".equals(option)) {
+                periodicity = true;
+                continue;
             }
+            if (argIndex == args.length) {
+                usage();
+            }
+            if ("-format".equals(option)) {
+                format = ResultWriter.getFormat(args[argIndex++]);
+                continue;
+            }
+            if ("-cache".equals(option)) {
+                cacheFolder = new File(args[argIndex++]);
+                continue;
+            }
+            if ("-checkpoint".equals(option)) {
+                checkpointFile = new File(args[argIndex++]);
+                continue;
+            }
+            if ("-factors".equals(option)) {
+                factors = parseFactors(args[argIndex++]);
+                continue;
+            }
+            int value = parseNumber(option, args[argIndex++]);
+            switch (option) {
+                case "-threads": threads = value; break;
+                case "-decoders": decoders = value; break;
+                case "-analyzers": analyzerThreads = value; break;
+                case "-queue": queueSize = value; break;
+                case "-budget": budgetMB = value; break;
+                case "-band": bandHeight = value; break;
+                case "-server": port = value; break;
+                case "-settle": settleMS = value; break;
+                default: usage();
+            }
+        }
+
+        if (port >= 0) {
+            serve(port, analyzerThreads, queueSize, threads, sample, factors, periodicity, cacheFolder, hashContent,
+                  budgetMB);
+            return;
         }
+        if (argIndex == args.length) {
+            usage();
+        }
+        if (watch && checkpointFile != null) {
+            System.err.println("-checkpoint cannot be used with -watch as the order of the images is not fixed");
+            usage();
+        }
+        final List<String> inputs = Arrays.asList(args).subList(argIndex, args.length);
+        final Iterator<File> source = watch ? watch(inputs, settleMS) : new ImageSource(inputs, System.err);
 
-        new Detect().analyze(images);
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        Detect detect = new Detect(pool, sample ? new BandSampler() : null, factors, periodicity);
+        ResultCache cache = cacheFolder == null ? null : new ResultCache(cacheFolder, hashContent);
+        ResultWriter out = ResultWriter.create(format, System.out);
+        Checkpoint checkpoint = checkpointFile == null ? null :
+                new Checkpoint(checkpointFile, out, Checkpoint.DEFAULT_INTERVAL_MS);
+        try {
+            Iterator<File> images = checkpoint == null ? source : checkpoint.skip(source);
+            if (decoders == 1 && analyzerThreads == 1 || bandHeight > 0) {
+                detect.analyze(images, bandHeight, cache, checkpoint, out);
+            } else {
+                MemoryBudget budget = budgetMB > 0 ? new MemoryBudget(budgetMB * 1024 * 1024) : MemoryBudget.fromHeap();
+                new BatchPipeline(detect.analyzer, decoders, analyzerThreads, queueSize, ordered, budget)
+                        .setCache(cache)
+                        .setCheckpoint(checkpoint)
+                        .process(images, out, System.err);
+            }
+            out.flush();
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        } finally {
+            ((Closeable) source).close();
+            if (cache != null) {
+                cache.close();
+            }
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
     }
 
-    @SuppressWarnings("CallToPrintStackTrace")
-    private void analyze(List<File> images) {
-        for (File image: images) {
-            try  {
-                BufferedImage bImage = ImageIO.read(image);
-                for (ImageAnalyzer analyzer: analyzers) {
+    // The watcher is closed when the process is stopped, which ends the processing
+    private static FolderWatcher watch(List<String> inputs, long settleMS) throws IOException {
+        List<File> folders = new ArrayList<>(inputs.size());
+        for (String input: inputs) {
+            folders.add(new File(input));
+        }
+        final FolderWatcher watcher = new FolderWatcher(folders, settleMS, System.err);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    System.err.println("Unable to stop watching: " + e.getMessage());
+                }
+            }
+        }, "telltale-shutdown"));
+        return watcher;
+    }
+
+    // Runs until the process is stopped
+    private static void serve(int port, int workers, int queueSize, int threads, boolean sample, double[] factors,
+                              boolean periodicity, File cacheFolder, boolean hashContent, long budgetMB)
+            throws IOException, InterruptedException {
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        Detect detect = new Detect(pool, sample ? new BandSampler() : null, factors, periodicity);
+        final ResultCache cache = cacheFolder == null ? null : new ResultCache(cacheFolder, hashContent);
+        final AnalysisServer server = new AnalysisServer(detect.analyzer, port, workers, queueSize)
+                .setCache(cache)
+                .setBudget(budgetMB > 0 ? new MemoryBudget(budgetMB * 1024 * 1024) : MemoryBudget.fromHeap())
+                .warmUp(SERVER_WARMUP);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @SuppressWarnings("CallToPrintStackTrace")
+            @Override
+            public void run() {
+                server.close();
+                if (cache != null) {
                     try {
-                        System.out.println(analyzer.analyze(image, bImage));
-                    } catch (Exception e) {
-                        System.err.println("Exception analyzing '" + image + "' with " + analyzer.getName());
+                        cache.close();
+                    } catch (IOException e) {
+                        System.err.println("Unable to close the cache");
                         e.printStackTrace();
                     }
                 }
-            } catch (IOException e) {
-                System.err.println("Unable to open '" + image + "' as an image");
-                e.printStackTrace();
             }
+        }, "telltale-shutdown"));
+        server.start();
+        System.err.println("Listening on http://" + server.getAddress().getHostString() + ":"
+                           + server.getAddress().getPort() + "/analyze");
+        Thread.currentThread().join();
+    }
+
+    // The factors are checked here, so that invalid ones are reported as a usage error
+    private static double[] parseFactors(String value) {
+        String[] tokens = value.split(",");
+        double[] factors = new double[tokens.length];
+        try {
+            for (int i = 0 ; i < tokens.length ; i++) {
+                factors[i] = Double.parseDouble(tokens[i].trim());
+            }
+            new MultiFactorDetect(factors);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid factors '" + value + "': " + e.getMessage());
+            usage();
+        }
+        return factors;
+    }
+
+    private static int parseNumber(String option, String value) {
+        int number = 0;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number for " + option + ": '" + value + "'");
+            usage();
+        }
+        return number;
+    }
+
+    private static void usage() {
+        System.out.println(USAGE);
+        System.exit(2);
+    }
+
+    private void analyze(Iterator<File> images, int bandHeight, ResultCache cache, Checkpoint checkpoint,
+                         ResultWriter out) throws IOException {
+        final String signature = cache == null ? null : analyzer.getSignature();
+        long sequence = 0;
+        while (images.hasNext()) {
+            final File image = images.next();
+            final List<AnalysisResult> results = analyze(image, bandHeight, cache, signature);
+            if (results != null) {
+                out.write(results);
+                out.flush();
+            }
+            if (checkpoint != null) {
+                checkpoint.completed(sequence++, image);
+            }
+        }
+    }
+
+    // Problems with the images and the analysis are reported and skipped, problems with the cache are passed on.
+    // Missing images are not looked up, so that they are reported like other images that cannot be read.
+    // An analyzer that fails only loses its own result, but the results for the image are then not cached
+    @SuppressWarnings("CallToPrintStackTrace")
+    private List<AnalysisResult> analyze(File image, int bandHeight, ResultCache cache, String signature)
+            throws IOException {
+        String key = null;
+        if (cache != null && image.isFile()) {
+            key = cache.getKey(image, signature);
+            List<AnalysisResult> cached = cache.get(key, image);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final List<AnalysisResult> results;
+        final List<CompositeAnalyzer.Failure> failures = new ArrayList<>();
+        try {
+            results = bandHeight > 0 ? analyzeBanded(image, bandHeight, failures) : analyzeFull(image, failures);
+        } catch (IOException e) {
+            System.err.println("Unable to open '" + image + "' as an image");
+            e.printStackTrace();
+            return null;
+        } catch (Exception e) {
+            System.err.println("Exception analyzing '" + image + "' with " + analyzer.getName());
+            e.printStackTrace();
+            return null;
+        }
+        for (CompositeAnalyzer.Failure failure: failures) {
+            System.err.println("Exception analyzing '" + image + "' with " + failure.getAnalyzer().getName());
+            failure.getException().printStackTrace();
+        }
+        if (key != null && failures.isEmpty()) {
+            cache.put(key, results);
+        }
+        return results;
+    }
+
+    private List<AnalysisResult> analyzeFull(File image, List<CompositeAnalyzer.Failure> failures)
+            throws IOException {
+        final BufferedImage bImage = ImageIO.read(image);
+        if (bImage == null) {
+            throw new IOException("No ImageReader for the format of the image");
+        }
+        return analyzer.analyze(image, PixelAccess.create(bImage), failures);
+    }
+
+    // All analyzers share a single pass through the bands, so only a single band is in memory at any time
+    private List<AnalysisResult> analyzeBanded(File image, int bandHeight, List<CompositeAnalyzer.Failure> failures)
+            throws IOException {
+        try (BandedPixelAccess pixels = BandedPixelAccess.open(image, bandHeight)) {
+            return analyzer.analyze(image, pixels, failures);
         }
     }
 }
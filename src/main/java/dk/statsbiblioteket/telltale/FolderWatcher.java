@@ -0,0 +1,271 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches folders for images and hands them out when they have been fully written, so that images dropped into
+ * hot folders are analyzed as they arrive.
+ * </p><p>
+ * The folders and the folders created in them are watched with a {@link WatchService}. An image is considered
+ * fully written when there has been no events for it for the settle time and its size and modification time are
+ * unchanged since the last event. Images that are written again are handed out again when they have settled.
+ * Only files with a suffix known by ImageIO are handed out, so images written under a temporary name and renamed
+ * when complete are handed out once, right after the rename. Images that are present when the watch is started are
+ * also handed out.
+ * </p><p>
+ * The size and modification time of the images that have been handed out are remembered, so that events that do
+ * not change the content, such as those from a rescan after lost events, do not hand them out again. Only the most
+ * recently handed out images are remembered, so the memory use does not grow with the number of images.
+ * </p><p>
+ * {@link #hasNext()} blocks until an image is ready and returns false when the watcher is closed or the thread is
+ * interrupted. The watcher can be closed from any thread.
+ */
+public class FolderWatcher implements Iterator<File>, Closeable {
+    public static final long DEFAULT_SETTLE_MS = 1000;
+    public static final int DEFAULT_MAX_HANDED_OUT = 100000;
+
+    private final WatchService watcher;
+    private final long settleMS;
+    private final PrintStream err;
+    private final Map<WatchKey, Path> folders = new HashMap<>();
+    private final Map<Path, State> pending = new LinkedHashMap<>();
+    private final Map<Path, State> handedOut;
+    private final Queue<File> ready = new ArrayDeque<>();
+
+    /**
+     * Start watching the folders.
+     * @param folders  the folders to watch, including sub folders.
+     * @param settleMS the number of milliseconds without changes before an image is considered fully written.
+     * @param err      problems with watching folders are written here.
+     * @throws IOException if the folders could not be watched.
+     */
+    public FolderWatcher(List<File> folders, long settleMS, PrintStream err) throws IOException {
+        this(folders, settleMS, err, DEFAULT_MAX_HANDED_OUT);
+    }
+
+    /**
+     * Start watching the folders.
+     * @param folders      the folders to watch, including sub folders.
+     * @param settleMS     the number of milliseconds without changes before an image is considered fully written.
+     * @param err          problems with watching folders are written here.
+     * @param maxHandedOut the number of handed out images to remember. Images that are forgotten are handed out
+     *                     again if they are seen again, even if they are unchanged.
+     * @throws IOException if the folders could not be watched.
+     */
+    public FolderWatcher(List<File> folders, long settleMS, PrintStream err, final int maxHandedOut)
+            throws IOException {
+        if (maxHandedOut < 1) {
+            throw new IllegalArgumentException("At least 1 handed out image must be remembered but was " +
+                                               maxHandedOut);
+        }
+        this.settleMS = settleMS;
+        this.err = err;
+        handedOut = new LinkedHashMap<Path, State>(16, 0.75f, true) {
+            private static final long serialVersionUID = 5310238641839527915L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, State> eldest) {
+                return size() > maxHandedOut;
+            }
+        };
+        watcher = FileSystems.getDefault().newWatchService();
+        try {
+            for (File folder: folders) {
+                if (!folder.isDirectory()) {
+                    throw new IOException("The folder '" + folder + "' does not exist");
+                }
+                register(folder.toPath());
+            }
+        } catch (IOException e) {
+            watcher.close();
+            throw e;
+        }
+    }
+
+    // Registers before listing, so that files written in between are seen by at least one of them
+    private void register(Path folder) throws IOException {
+        folders.put(folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE),
+                    folder);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            for (Path entry: entries) {
+                changed(entry);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        try {
+            while (ready.isEmpty()) {
+                final long wait = getWait();
+                WatchKey key = wait < 0 ? watcher.take() : watcher.poll(wait, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    process(key);
+                    key = watcher.poll();
+                }
+                settle();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ClosedWatchServiceException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return ready.remove();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("The watched images are read only");
+    }
+
+    // Milliseconds until the first pending image might have settled, -1 if there are none
+    private long getWait() {
+        if (pending.isEmpty()) {
+            return -1;
+        }
+        long first = Long.MAX_VALUE;
+        for (State state: pending.values()) {
+            first = Math.min(first, state.changed);
+        }
+        return Math.max(1, first + settleMS - System.currentTimeMillis());
+    }
+
+    private void process(WatchKey key) {
+        final Path folder = folders.get(key);
+        for (WatchEvent<?> event: key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescan();
+                continue;
+            }
+            final Path path = folder.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                pending.remove(path);
+                handedOut.remove(path);
+            } else {
+                changed(path);
+            }
+        }
+        if (!key.reset()) {
+            folders.remove(key);
+        }
+    }
+
+    // Events were lost, so everything is checked again
+    private void rescan() {
+        for (Path folder: folders.values().toArray(new Path[folders.size()])) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+                for (Path entry: entries) {
+                    changed(entry);
+                }
+            } catch (IOException e) {
+                err.println("Unable to read the folder '" + folder + "': " + e.getMessage());
+            }
+        }
+    }
+
+    private void changed(Path path) {
+        if (ImageSource.isImage(path.getFileName().toString())) {
+            pending.put(path, new State(path));
+        } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS) && !folders.containsValue(path)) {
+            try {
+                register(path);
+            } catch (IOException e) {
+                err.println("Unable to watch the folder '" + path + "': " + e.getMessage());
+            }
+        }
+    }
+
+    // Moves the images without changes for the settle time to ready
+    private void settle() {
+        final long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, State>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, State> entry = entries.next();
+            if (now - entry.getValue().changed < settleMS) {
+                continue;
+            }
+            State current = new State(entry.getKey());
+            if (current.size < 0) { // Deleted or renamed
+                entries.remove();
+            } else if (!current.isSame(entry.getValue())) {
+                entry.setValue(current);
+            } else {
+                entries.remove();
+                if (!current.isSame(handedOut.put(entry.getKey(), current))) {
+                    ready.add(entry.getKey().toFile());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops watching. A thread waiting in {@link #hasNext()} gets false.
+     */
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    private static class State {
+        private final long size;
+        private final long modified;
+        private final long changed = System.currentTimeMillis();
+
+        // Size -1 if the file does not exist
+        private State(Path path) {
+            File file = path.toFile();
+            size = file.isFile() ? file.length() : -1;
+            modified = file.lastModified();
+        }
+
+        private boolean isSame(State other) {
+            return other != null && size == other.size && modified == other.modified;
+        }
+    }
+}
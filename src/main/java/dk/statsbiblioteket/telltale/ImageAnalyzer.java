@@ -22,5 +22,14 @@ import java.io.File;
  */
 public interface ImageAnalyzer {
     AnalysisResult analyze(File imageFile, BufferedImage image);
+
+    /**
+     * Analyze an image that is delivered row by row, such as a {@link BandedPixelAccess} that is decoded
+     * incrementally. The result is the same as for {@link #analyze(File, BufferedImage)} with the full image.
+     * @param imageFile the file that the pixels are from.
+     * @param pixels    the pixels to analyze.
+     * @return the result of the analysis.
+     */
+    AnalysisResult analyze(File imageFile, PixelAccess pixels);
     String getName();
 }
@@ -15,42 +15,330 @@
 package dk.statsbiblioteket.telltale;
 
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
 
 public abstract class ImageAnalyzerImpl implements ImageAnalyzer {
+    public static final int DEFAULT_STRIP_HEIGHT = RowTraversal.DEFAULT_STRIP_HEIGHT;
 
+    private RowTraversal traversal = new RowTraversal();
+    private BandSampler sampler = null;
+
+    /**
+     * Analyze each image in parallel by splitting it into horizontal strips of rows, which are processed
+     * independently on the pool. The partial results for the strips are merged in a fixed order, so the result
+     * is the same as for sequential analysis with the same strip height, for any number of threads in the pool.
+     * @param pool        the pool to run the strips on. null means sequential analysis, which is the default.
+     * @param stripHeight the number of rows in each strip. This is rounded up to the strip alignment of the
+     *                    {@link #getRowVisitor()}.
+     * @return the analyzer, for chaining.
+     */
+    public ImageAnalyzerImpl setParallel(ForkJoinPool pool, int stripHeight) {
+        return setTraversal(new RowTraversal(pool, stripHeight));
+    }
+
+    /**
+     * @param traversal the traversal used for feeding the rows of the images to {@link #getRowVisitor()}.
+     * @return the analyzer, for chaining.
+     */
+    public ImageAnalyzerImpl setTraversal(RowTraversal traversal) {
+        this.traversal = traversal;
+        return this;
+    }
+
+    /**
+     * @param pool the pool to run the strips on. null means sequential analysis, which is the default.
+     * @return the analyzer, for chaining.
+     * @see #setParallel(ForkJoinPool, int)
+     */
+    public ImageAnalyzerImpl setParallel(ForkJoinPool pool) {
+        return setParallel(pool, DEFAULT_STRIP_HEIGHT);
+    }
+
+    /**
+     * Analyze a sample of each image instead of all of it, stopping as soon as the outcome is statistically
+     * settled. The result states the fraction of the image that was examined and the confidence intervals.
+     * Parallel settings are not used for sampling.
+     * @param sampler the sampling to use. null means full analysis, which is the default.
+     * @return the analyzer, for chaining.
+     * @throws UnsupportedOperationException if the analyzer has no {@link #getSamplingModel()}.
+     */
+    public ImageAnalyzerImpl setSampling(BandSampler sampler) {
+        if (sampler != null && getSamplingModel() == null) {
+            throw new UnsupportedOperationException(getName() + " does not support sampling");
+        }
+        this.sampler = sampler;
+        return this;
+    }
+
+    /**
+     * @return the sampling used for the analysis, null if the full image is analyzed.
+     */
+    public BandSampler getSampling() {
+        return sampler;
+    }
+
+    /**
+     * @return the version of the analysis. Analyzers must return a new version whenever a change to the code
+     *         changes their results, as this invalidates the results stored in a {@link ResultCache}.
+     */
+    public String getVersion() {
+        return "1";
+    }
+
+    /**
+     * Parallel settings are not part of the parameters. The strip height changes the order of summation and thus
+     * the last bits of the sums, which are below the reported precision, and the {@link AssignmentSolver} treats
+     * scores that only differ by rounding errors as ties, so the order of the candidates does not change either.
+     * @return the settings that affect the results. Subclasses with settings of their own must add them.
+     */
+    public String getParameters() {
+        return sampler == null ? "full" : "sampled " + sampler;
+    }
+
+    /**
+     * @return the model for analyzing samples of the image, null if the analyzer does not support sampling.
+     *         This is null by default.
+     */
+    protected BandSampler.Model<?> getSamplingModel() {
+        return null;
+    }
+
+    /**
+     * @return the visitor that collects the statistics for the analysis and produces the result. Use it with a
+     *         {@link RowTraversal} to feed several analyzers from a single read of the pixels.
+     */
+    public abstract RowVisitor<?> getRowVisitor();
+
+    @Override
+    public AnalysisResult analyze(File imageFile, BufferedImage image) {
+        return analyze(imageFile, PixelAccess.create(image));
+    }
+
+    @Override
+    public AnalysisResult analyze(File imageFile, PixelAccess pixels) {
+        final long startTime = System.nanoTime();
+        AnalysisResult result = prescreen(imageFile, pixels);
+        if (result == null) {
+            result = sampler == null ? analyze(imageFile, pixels, getRowVisitor()) :
+                    analyzeSampled(imageFile, pixels, getSamplingModel());
+        }
+        return result.setNanos(System.nanoTime() - startTime);
+    }
+
+    private <T> AnalysisResult analyzeSampled(File imageFile, PixelAccess pixels, BandSampler.Model<T> model) {
+        return model.finish(imageFile, sampler.sample(pixels, model, traversal));
+    }
+
+    /**
+     * Called before the full analysis of an image, to allow for a cheap check that makes the analysis
+     * unnecessary. The default implementation does nothing.
+     * @param imageFile the file that the pixels are from.
+     * @param pixels    the pixels to analyze.
+     * @return the result of the analysis if the check was conclusive, else null and the full analysis is run.
+     */
+    protected AnalysisResult prescreen(File imageFile, PixelAccess pixels) {
+        return null;
+    }
+
+    private <T> AnalysisResult analyze(File imageFile, PixelAccess pixels, RowVisitor<T> visitor) {
+        return visitor.finish(imageFile, traversal.run(pixels, visitor));
+    }
+
+    /**
+     * Visits all rows in the image in strips, either one after the other or in parallel, depending on
+     * {@link #setParallel(ForkJoinPool, int)}.
+     * @param pixels  the image to sweep.
+     * @param visitor the visitor to feed the rows to.
+     * @return the merged result for all rows.
+     */
+    protected <T> T sweepStrips(PixelAccess pixels, RowVisitor<T> visitor) {
+        return traversal.run(pixels, visitor);
+    }
+
+    /**
+     * Streams through the image with only {@code rectSide} rows in memory at a time.
+     * @param image    the image to measure.
+     * @param rectSide the width and height of the blocks.
+     * @return the average of the maximum channel deviation for blocks in a grid, ignoring the partial blocks at
+     *         the right and bottom edges.
+     */
     protected double averageContrast(BufferedImage image, int rectSide) {
-        final long[][] rectRGB = new long[3][rectSide*rectSide];
-        final double[] maxCache = new double[3];
+        final PixelAccess pixels = PixelAccess.create(image);
+        final int[][][] rows = createRows(pixels, rectSide);
+        final Stats.Accumulator[] accumulators = createAccumulators();
         double sumMaxDeviationABCD = 0.0;
         int rectCount = 0;
 
         for (int y = 0 ; y < image.getHeight()-rectSide ; y+=rectSide) {
+            readRows(pixels, y, rows);
             for (int x = 0 ; x < image.getWidth()-rectSide ; x+=rectSide) {
                 rectCount++;
-                extractChannelValues(image, y, x, rectSide, rectSide, rectRGB);
-                for (int channel = 0 ; channel < 3 ; channel++) {
-                    maxCache[channel] = Stats.standardDeviation(rectRGB[channel]);
-                }
-                sumMaxDeviationABCD += Stats.max(maxCache);
+                sumMaxDeviationABCD += getMaxDeviation(rows, x, rectSide, rectSide, accumulators, 3);
             }
         }
         return 1.0 * sumMaxDeviationABCD / rectCount;
     }
 
-    protected void extractChannelValues(BufferedImage image, int y, int x, int width, int height, long[][] rectRGB) {
-        int index = 0;
-        for (int rectY = y ; rectY < y+ height; rectY++) {
-            for (int rectX = x ; rectX < x+ width; rectX++) {
-                final int clr = image.getRGB(rectX, rectY);
-                rectRGB[0][index] = (clr & 0x00ff0000) >> 16; // red
-                rectRGB[1][index] = (clr & 0x0000ff00) >> 8;  // green
-                rectRGB[2][index++] = clr & 0x000000ff;       // blue
+    /**
+     * @param pixels the pixels that will be read into the rows.
+     * @param height the number of rows.
+     * @return a buffer for {@link #readRows(PixelAccess, int, int[][][])}, as {@code rows[row][channel][x]}.
+     */
+    protected int[][][] createRows(PixelAccess pixels, int height) {
+        return new int[height][3][pixels.getWidth()];
+    }
+
+    /**
+     * Read {@code rows.length} full rows from the pixels, starting at row {@code y}.
+     * @param pixels the source of the rows.
+     * @param y      the first row to read.
+     * @param rows   destination for the channel values, as created by {@link #createRows(PixelAccess, int)}.
+     */
+    protected void readRows(PixelAccess pixels, int y, int[][][] rows) {
+        for (int i = 0 ; i < rows.length ; i++) {
+            pixels.readRow(y+i, rows[i]);
+        }
+    }
+
+    /**
+     * Copy the channel values for a rectangle from previously read rows.
+     * @param rows    the rows to extract from, as {@code rows[row][channel][x]}. The top of the rectangle is row 0.
+     * @param x       the horizontal start of the rectangle.
+     * @param width   the width of the rectangle.
+     * @param height  the height of the rectangle.
+     * @param rectRGB destination for the channel values as {@code rectRGB[channel][pixel]}, with the pixels
+     *                stored row by row.
+     */
+    protected void extractChannelValues(int[][][] rows, int x, int width, int height, long[][] rectRGB) {
+        extractChannelValues(rows, x, width, height, rectRGB, 3);
+    }
+
+    /**
+     * Copy the channel values for a rectangle from previously read rows, for the first {@code bands} channels.
+     * With bands == 1, only the red channel is copied, which holds all information for grey rows.
+     * @see #extractChannelValues(int[][][], int, int, int, long[][])
+     */
+    protected void extractChannelValues(int[][][] rows, int x, int width, int height, long[][] rectRGB, int bands) {
+        for (int channel = 0 ; channel < bands ; channel++) {
+            final long[] values = rectRGB[channel];
+            int index = 0;
+            for (int rectY = 0 ; rectY < height; rectY++) {
+                final int[] row = rows[rectY][channel];
+                for (int rectX = x ; rectX < x+width; rectX++) {
+                    values[index++] = row[rectX];
+                }
+            }
+        }
+    }
+
+    /**
+     * @param rectRGB  channel values as {@code rectRGB[channel][pixel]}.
+     * @param maxCache buffer for the deviations for the channels. Must be of length 3.
+     * @return the maximum standard deviation of all the values in a channel, over all channels.
+     */
+    protected double getMaxDeviation(long[][] rectRGB, double[] maxCache) {
+        return getMaxDeviation(rectRGB, maxCache, 3);
+    }
+
+    /**
+     * Single channel aware version of {@link #getMaxDeviation(long[][], double[])}. For grey pixels, where all
+     * channels hold the same values, the maximum over 1 channel is the same as the maximum over all 3.
+     * @param bands the number of channels to process, starting with red.
+     */
+    protected double getMaxDeviation(long[][] rectRGB, double[] maxCache, int bands) {
+        for (int channel = 0 ; channel < bands ; channel++) {
+            maxCache[channel] = Stats.standardDeviation(rectRGB[channel]);
+        }
+        return Stats.max(maxCache, 0, bands);
+    }
+
+    /**
+     * The same as {@link #getMaxDeviation(long[][], double[], int)} for a rectangle in previously read rows, with
+     * the sums accumulated directly from the rows instead of copying the values first.
+     * @param rows         the rows of the rectangle, as {@code rows[row][channel][x]}. The top is row 0.
+     * @param x            the horizontal start of the rectangle.
+     * @param width        the width of the rectangle.
+     * @param height       the height of the rectangle.
+     * @param accumulators one per channel, cleared before use. Re-use them between calls to avoid allocations.
+     * @param bands        the number of channels to process, starting with red.
+     * @return the maximum standard deviation of all the values in a channel, over the channels.
+     */
+    protected double getMaxDeviation(int[][][] rows, int x, int width, int height,
+                                     Stats.Accumulator[] accumulators, int bands) {
+        double maxVariance = 0.0;
+        for (int channel = 0 ; channel < bands ; channel++) {
+            final Stats.Accumulator accumulator = accumulators[channel];
+            accumulator.clear();
+            for (int rectY = 0 ; rectY < height ; rectY++) {
+                final int[] row = rows[rectY][channel];
+                for (int rectX = x ; rectX < x+width ; rectX++) {
+                    accumulator.add(row[rectX]);
+                }
             }
+            maxVariance = Math.max(maxVariance, accumulator.getVariance());
         }
+        return Math.sqrt(maxVariance);
     }
 
+    /**
+     * @return one accumulator per channel, for the row based {@code getMaxDeviation}.
+     */
+    protected static Stats.Accumulator[] createAccumulators() {
+        return new Stats.Accumulator[]{new Stats.Accumulator(), new Stats.Accumulator(), new Stats.Accumulator()};
+    }
+
+    /**
+     * Single channel aware version of {@link #getMaxDeviation(long[][], int, int)}. Not an overload, as it would
+     * take precedence over {@link #getMaxDeviation(long[][], int...)} for 3 entries.
+     * @param bands 1 for grey pixels, where only the red channel is used, else 3.
+     */
+    protected double getMaxDeviationBands(long[][] rectRGB, int a, int b, int bands) {
+        if (bands == 1) {
+            return Stats.standardDeviation(rectRGB[0][a], rectRGB[0][b]);
+        }
+        return getMaxDeviation(rectRGB, a, b);
+    }
+
+    /**
+     * Allocation free version of {@link #getMaxDeviation(long[][], int...)} for 2 entries.
+     */
+    protected double getMaxDeviation(long[][] rectRGB, int a, int b) {
+        return Stats.max(Stats.standardDeviation(rectRGB[0][a], rectRGB[0][b]),
+                         Stats.standardDeviation(rectRGB[1][a], rectRGB[1][b]),
+                         Stats.standardDeviation(rectRGB[2][a], rectRGB[2][b]));
+    }
+
+    /**
+     * Single channel aware version of {@link #getMaxDeviation(long[][], int, int, int, int)}. Not an overload, as it
+     * would take precedence over {@link #getMaxDeviation(long[][], int...)} for 5 entries.
+     * @param bands 1 for grey pixels, where only the red channel is used, else 3.
+     */
+    protected double getMaxDeviationBands(long[][] rectRGB, int a, int b, int c, int d, int bands) {
+        if (bands == 1) {
+            final long[] gray = rectRGB[0];
+            return Stats.standardDeviation(gray[a], gray[b], gray[c], gray[d]);
+        }
+        return getMaxDeviation(rectRGB, a, b, c, d);
+    }
+
+    /**
+     * Allocation free version of {@link #getMaxDeviation(long[][], int...)} for 4 entries.
+     */
+    protected double getMaxDeviation(long[][] rectRGB, int a, int b, int c, int d) {
+        final long[] red = rectRGB[0];
+        final long[] green = rectRGB[1];
+        final long[] blue = rectRGB[2];
+        return Stats.max(Stats.standardDeviation(red[a], red[b], red[c], red[d]),
+                         Stats.standardDeviation(green[a], green[b], green[c], green[d]),
+                         Stats.standardDeviation(blue[a], blue[b], blue[c], blue[d]));
+    }
+
+    /**
+     * @param rectRGB channel values as {@code rectRGB[channel][pixel]}.
+     * @param entries the pixels to calculate the deviation for.
+     * @return the maximum standard deviation of the values for the entries in a channel, over all channels.
+     */
     protected double getMaxDeviation(long[][] rectRGB, int... entries) {
         final double[] maxCache = new double[3];
         final long[] channelValues = new long[entries.length];
@@ -64,21 +352,4 @@ public abstract class ImageAnalyzerImpl implements ImageAnalyzer {
         return Stats.max(maxCache);
     }
 
-    // Create all permutations of elements in the list
-    protected <T> List<List<T>> permute(List<T> candidates) {
-        List<List<T>> permutations = new ArrayList<>();
-        if (candidates.size() == 1) {
-            permutations.add(new ArrayList<T>(candidates));
-        }
-        for (T candidate: candidates) {
-            List<T> sub = new ArrayList<>(candidates);
-            sub.remove(candidate);
-            for (List<T> subPermutation: permute(sub)) {
-                subPermutation.add(0, candidate);
-                permutations.add(subPermutation);
-            }
-        }
-        return permutations;
-    }
-
 }
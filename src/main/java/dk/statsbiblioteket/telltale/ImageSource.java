@@ -0,0 +1,231 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import javax.imageio.ImageIO;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Lazily resolves a list of inputs to the images to process, so that processing starts immediately, no matter the
+ * number of images.
+ * </p><p>
+ * An input is either an image, a folder or a manifest, which is stated as {@code @file} or {@code @-} for standard
+ * in. Folders are crawled recursively for files with a suffix known by ImageIO. Symbolic links to folders are not
+ * followed, to avoid cycles. A manifest holds an input per line, except for manifests. Empty lines and lines
+ * starting with {@code #} are ignored.
+ * </p><p>
+ * The order is the same for the same inputs, as the content of each folder is sorted. Only the names in a single
+ * folder are held in memory at a time, besides the position in each of the parent folders. Images that are stated
+ * explicitly are passed on without checking that they exist, so that problems are reported when they are read.
+ * Folders and manifests that cannot be read are reported to the error stream and skipped.
+ */
+public class ImageSource implements Iterator<File>, Closeable {
+    private static final Set<String> SUFFIXES = new HashSet<>();
+    static {
+        for (String suffix: ImageIO.getReaderFileSuffixes()) {
+            SUFFIXES.add(suffix.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    private final PrintStream err;
+    private final Iterator<String> inputs;
+    private final Deque<Iterator<File>> folders = new ArrayDeque<>();
+    private BufferedReader manifest = null;
+    private String manifestName = null;
+    private File next = null;
+
+    /**
+     * @param inputs images, folders and {@code @manifests}.
+     * @param err    problems with reading folders and manifests are written here.
+     */
+    public ImageSource(List<String> inputs, PrintStream err) {
+        this.inputs = inputs.iterator();
+        this.err = err;
+    }
+
+    /**
+     * @param inputs images, folders and {@code @manifests}.
+     */
+    public ImageSource(String... inputs) {
+        this(Arrays.asList(inputs), System.err);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (!folders.isEmpty()) {
+                Iterator<File> folder = folders.peek();
+                if (!folder.hasNext()) {
+                    folders.pop();
+                    continue;
+                }
+                File file = folder.next();
+                // Only entries with an unknown suffix are checked for being folders, to avoid a lookup per image
+                if (isImage(file.getName())) {
+                    next = file;
+                } else if (Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                    push(file);
+                }
+                continue;
+            }
+            String input = nextInput();
+            if (input == null) {
+                return false;
+            }
+            if (input.startsWith("@") && manifest == null) {
+                openManifest(input.substring(1));
+                continue;
+            }
+            File file = new File(input);
+            if (file.isDirectory()) {
+                push(file);
+            } else {
+                next = file;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        File result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("The inputs are read only");
+    }
+
+    /**
+     * @param name a file name.
+     * @return true if the suffix of the name is known by ImageIO, ignoring case.
+     */
+    static boolean isImage(String name) {
+        final int dot = name.lastIndexOf('.');
+        return dot >= 0 && SUFFIXES.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    // The next line from the current manifest, else the next argument
+    private String nextInput() {
+        while (manifest != null) {
+            String line;
+            try {
+                line = manifest.readLine();
+            } catch (IOException e) {
+                err.println("Unable to read the manifest '" + manifestName + "': " + e.getMessage());
+                line = null;
+            }
+            if (line == null) {
+                closeManifest();
+                break;
+            }
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                return line;
+            }
+        }
+        return inputs.hasNext() ? inputs.next() : null;
+    }
+
+    private void openManifest(String name) {
+        try {
+            manifest = new BufferedReader(new InputStreamReader(
+                    "-".equals(name) ? System.in : new FileInputStream(name), StandardCharsets.UTF_8));
+            manifestName = name;
+        } catch (IOException e) {
+            err.println("Unable to open the manifest '" + name + "': " + e.getMessage());
+        }
+    }
+
+    private void closeManifest() {
+        try {
+            if (!"-".equals(manifestName)) {
+                manifest.close();
+            }
+        } catch (IOException e) {
+            err.println("Unable to close the manifest '" + manifestName + "': " + e.getMessage());
+        }
+        manifest = null;
+        manifestName = null;
+    }
+
+    private void push(File folder) {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder.toPath())) {
+            for (Path entry: entries) {
+                names.add(entry.getFileName().toString());
+            }
+        } catch (IOException e) {
+            err.println("Unable to read the folder '" + folder + "': " + e.getMessage());
+            return;
+        }
+        Collections.sort(names);
+        final Iterator<String> iterator = names.iterator();
+        final File parent = folder;
+        folders.push(new Iterator<File>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public File next() {
+                return new File(parent, iterator.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("The folder content is read only");
+            }
+        });
+    }
+
+    /**
+     * Closes the current manifest, if any.
+     */
+    @Override
+    public void close() {
+        if (manifest != null) {
+            closeManifest();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A heap budget for decoded images, shared between the workers of a {@link BatchPipeline}.
+ * </p><p>
+ * Before decoding, the cost of an image is estimated from the dimensions and pixel layout stated by the
+ * ImageReader and that amount is reserved from the budget. Small images can thus be processed densely in parallel,
+ * while a large image waits until enough of the budget has been released. An image that costs more than the full
+ * budget reserves all of it and is processed alone.
+ * </p><p>
+ * Reservations are granted in request order so that large images are not starved by a steady flow of small ones.
+ */
+public class MemoryBudget {
+    // The Semaphore counts ints, so the budget is handled in KB
+    private static final int UNIT = 1024;
+    // Rough upper limit for the rows held by each analyzer while processing an image, measured in ints per pixel
+    // in a single row (3 channels for up to 5 rows for BilinearDetect and 3 rows for NearestNeighbourDetect)
+    static final long ANALYSIS_ROW_INTS = 3 * (5 + 3);
+
+    private final long budget;
+    private final int units;
+    private final Semaphore available;
+
+    /**
+     * @param budget the number of bytes that decoded images are allowed to occupy in total.
+     */
+    public MemoryBudget(long budget) {
+        if (budget < UNIT) {
+            throw new IllegalArgumentException("The budget must be at least " + UNIT + " bytes but was " + budget);
+        }
+        this.budget = budget;
+        units = (int) Math.min(Integer.MAX_VALUE, budget / UNIT);
+        available = new Semaphore(units, true);
+    }
+
+    /**
+     * @return a budget of 3/4 of the maximum heap, leaving the rest for the JVM and the analysis structures.
+     */
+    public static MemoryBudget fromHeap() {
+        return new MemoryBudget(Runtime.getRuntime().maxMemory() / 4 * 3);
+    }
+
+    /**
+     * Reserve memory for an image, waiting until enough is available.
+     * @param bytes the estimated cost of the image. If this is more than the full budget, all of it is reserved.
+     * @return the reservation to hand to {@link #release(long)} when the image has been processed.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public long acquire(long bytes) throws InterruptedException {
+        int reservation = toUnits(bytes);
+        available.acquire(reservation);
+        return reservation;
+    }
+
+    /**
+     * @param reservation the value returned by {@link #acquire(long)}.
+     */
+    public void release(long reservation) {
+        if (reservation > 0) {
+            available.release((int) reservation);
+        }
+    }
+
+    /**
+     * @return the total budget in bytes.
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the number of bytes not currently reserved.
+     */
+    public long getAvailable() {
+        return (long) available.availablePermits() * UNIT;
+    }
+
+    private int toUnits(long bytes) {
+        return (int) Math.max(1, Math.min(units, (bytes + UNIT - 1) / UNIT));
+    }
+
+    /**
+     * Estimate the heap needed for decoding and analyzing the first image from the given reader, without decoding
+     * any pixels.
+     * @param reader    a reader with its input set.
+     * @param analyzers the number of analyzers that will process the image.
+     * @return the estimated number of bytes.
+     * @throws IOException if the header of the image could not be read.
+     */
+    public static long estimate(ImageReader reader, int analyzers) throws IOException {
+        long width = reader.getWidth(0);
+        long height = reader.getHeight(0);
+        return width * height * getBytesPerPixel(reader) + width * 4 * ANALYSIS_ROW_INTS * analyzers;
+    }
+
+    // The layout of the decoded raster. If the reader does not tell, assume packed ARGB ints
+    private static int getBytesPerPixel(ImageReader reader) throws IOException {
+        ImageTypeSpecifier type = reader.getRawImageType(0);
+        if (type == null) {
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            type = types.hasNext() ? types.next() : null;
+        }
+        if (type == null) {
+            return 4;
+        }
+        SampleModel model = type.getSampleModel();
+        return Math.max(1, model.getNumDataElements() * DataBuffer.getDataTypeSize(model.getTransferType()) / 8);
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Detects Nearest-Neighbour upscaling for a configurable set of scale factors, including non-integer ones such as
+ * x1.5, in a single pass over the image.
+ * </p><p>
+ * A Nearest-Neighbour upscale by the factor p/q (in lowest terms) replicates every source pixel into a cell of
+ * output pixels. The cell widths and heights follow a pattern that repeats every p pixels, so there are p possible
+ * offsets of the cell grid on each axis. For integer factors the offset is the first column (row) of the first
+ * complete cell, as in {@link NearestNeighbourDetect}. For the correct factor and offset, the pixels within each
+ * cell are identical or, after compression or sharpening, close to each other.
+ * </p><p>
+ * For each factor and offset, the maximum channel deviation of all complete cells with at least 2 pixels is
+ * averaged. The rows are turned into prefix sums of the channel values and their squares once, and the sums for
+ * all factors and offsets are taken from those. The sums for a cell thus cost one lookup per row of the cell,
+ * independent of the cell width, and adding a factor costs no extra pixel reads.
+ * </p><p>
+ * The ratio between the deviation at the best offset and the average for all offsets of a factor is close to 1
+ * when the factor does not match and close to 0 when it does. As a cell grid for a factor also fits the images
+ * upscaled by multiples of that factor, the largest factor with a ratio below {@link #MATCH_RATIO} is reported.
+ */
+public class MultiFactorDetect extends ImageAnalyzerImpl {
+    public static final double[] DEFAULT_FACTORS = new double[]{1.5, 2, 3, 4};
+    /**
+     * A factor matches if the deviation at the best offset is below this fraction of the average for all offsets.
+     */
+    public static final double MATCH_RATIO = 0.5;
+    private static final int MAX_DENOMINATOR = 12;
+
+    private final Factor[] factors;
+    private final int maxCellSide;
+    private final int alignment;
+
+    public MultiFactorDetect() {
+        this(DEFAULT_FACTORS);
+    }
+
+    /**
+     * @param factors the scale factors to look for. They must be larger than 1 and expressible as a fraction with
+     *                a denominator of at most 12.
+     */
+    public MultiFactorDetect(double... factors) {
+        if (factors.length == 0) {
+            throw new IllegalArgumentException("At least one factor must be given");
+        }
+        this.factors = new Factor[factors.length];
+        int maxCellSide = 1;
+        int alignment = 1;
+        for (int i = 0 ; i < factors.length ; i++) {
+            this.factors[i] = new Factor(factors[i]);
+            maxCellSide = Math.max(maxCellSide, (this.factors[i].period + this.factors[i].sources - 1) /
+                                                this.factors[i].sources);
+            alignment = Stats.lcm(alignment, this.factors[i].period);
+        }
+        this.maxCellSide = maxCellSide;
+        this.alignment = alignment;
+    }
+
+    @Override
+    public RowVisitor<?> getRowVisitor() {
+        return VISITOR;
+    }
+
+    // A scale factor as the fraction period/sources: period output pixels are replicated from sources input pixels
+    private static class Factor {
+        private final double value;
+        private final int period;
+        private final int sources;
+
+        private Factor(double value) {
+            if (!(value > 1)) {
+                throw new IllegalArgumentException("Factors must be larger than 1 but got " + value);
+            }
+            for (int sources = 1 ; sources <= MAX_DENOMINATOR ; sources++) {
+                final long period = Math.round(value * sources);
+                if (Math.abs(period - value * sources) < 1.0E-9) {
+                    this.value = value;
+                    this.period = (int) period;
+                    this.sources = sources;
+                    return;
+                }
+            }
+            throw new IllegalArgumentException(
+                    "The factor " + value + " cannot be expressed with a denominator of at most " + MAX_DENOMINATOR);
+        }
+
+        // The index of the source pixel that the output pixel at position is replicated from
+        private long getSource(int position, int offset) {
+            final long scaled = (long) (position - offset) * sources;
+            return scaled >= 0 ? scaled / period : -((period - 1 - scaled) / period);
+        }
+
+        // The positions in [0, length] where a new cell starts. Consecutive starts delimit the complete cells
+        private int[] getStarts(int length, int offset) {
+            final int[] starts = new int[length+1];
+            int count = 0;
+            for (int position = 0 ; position <= length ; position++) {
+                if (getSource(position, offset) != getSource(position-1, offset)) {
+                    starts[count++] = position;
+                }
+            }
+            return Arrays.copyOf(starts, count);
+        }
+
+        @Override
+        public String toString() {
+            return formatFactor(value);
+        }
+    }
+
+    // The cell grids for all factors and offsets, which only depend on the image size. Shared read only by strips
+    private class Grid {
+        private final int width;
+        private final int height;
+        // [factor][offsetX] -> the columns where cells start
+        private final int[][][] columnStarts = new int[factors.length][][];
+        // [factor][offsetY][y] -> the top row of the complete cell that has y as its bottom row, else -1
+        private final int[][][] cellTops = new int[factors.length][][];
+
+        private Grid(int width, int height) {
+            this.width = width;
+            this.height = height;
+            for (int f = 0 ; f < factors.length ; f++) {
+                final Factor factor = factors[f];
+                columnStarts[f] = new int[factor.period][];
+                cellTops[f] = new int[factor.period][];
+                for (int offset = 0 ; offset < factor.period ; offset++) {
+                    columnStarts[f][offset] = factor.getStarts(width, offset);
+                    cellTops[f][offset] = new int[height];
+                    Arrays.fill(cellTops[f][offset], -1);
+                    final int[] rowStarts = factor.getStarts(height, offset);
+                    for (int i = 1 ; i < rowStarts.length ; i++) {
+                        cellTops[f][offset][rowStarts[i]-1] = rowStarts[i-1];
+                    }
+                }
+            }
+        }
+    }
+
+    // The grid for the last image size. All strips of an image, and usually the next images, share it
+    private volatile Grid grid = null;
+
+    private Grid getGrid(int width, int height) {
+        Grid current = grid;
+        if (current == null || current.width != width || current.height != height) {
+            current = new Grid(width, height);
+            grid = current;
+        }
+        return current;
+    }
+
+    // Deviation sums for [factor][offsetX*period + offsetY] and prefix sums for the recent rows
+    private class Sums {
+        private final int width;
+        private final Grid grid;
+        private final double[][] deviationSums = new double[factors.length][];
+        private final long[][] cellCounts = new long[factors.length][];
+
+        // Prefix sums of the values and their squares for the recent rows, as [slot][channel][x+1]
+        private final long[][][] prefixSums;
+        private final long[][][] prefixSquares;
+        private final int[] prefixRows;
+        // Grey rows only have prefix sums for the first channel
+        private final boolean[] prefixGray;
+        private final int[] slots = new int[maxCellSide];
+
+        private Sums(Grid grid) {
+            this.width = grid.width;
+            this.grid = grid;
+            for (int f = 0 ; f < factors.length ; f++) {
+                deviationSums[f] = new double[factors[f].period * factors[f].period];
+                cellCounts[f] = new long[factors[f].period * factors[f].period];
+            }
+            prefixSums = new long[maxCellSide][3][width+1];
+            prefixSquares = new long[maxCellSide][3][width+1];
+            prefixRows = new int[maxCellSide];
+            prefixGray = new boolean[maxCellSide];
+            Arrays.fill(prefixRows, -1);
+        }
+
+        // The prefix sums are also calculated for context rows, which are not visited in the current strip
+        private int getSlot(RowWindow rows, int y) {
+            final int slot = y % maxCellSide;
+            if (prefixRows[slot] != y) {
+                final int[][] row = rows.getRow(y);
+                prefixGray[slot] = rows.isGray(y);
+                for (int channel = 0 ; channel < (prefixGray[slot] ? 1 : 3) ; channel++) {
+                    final int[] values = row[channel];
+                    final long[] sums = prefixSums[slot][channel];
+                    final long[] squares = prefixSquares[slot][channel];
+                    for (int x = 0 ; x < width ; x++) {
+                        final long value = values[x];
+                        sums[x+1] = sums[x] + value;
+                        squares[x+1] = squares[x] + value*value;
+                    }
+                }
+                prefixRows[slot] = y;
+            }
+            return slot;
+        }
+    }
+
+    // Cells are processed when their bottom row is visited, with the rows above as context
+    private final RowVisitor<Sums> VISITOR = new RowVisitor<Sums>() {
+        @Override
+        public int getContextRows() {
+            return maxCellSide-1;
+        }
+
+        @Override
+        public int getStripAlignment() {
+            return alignment;
+        }
+
+        @Override
+        public Sums begin(int width, int height) {
+            return new Sums(getGrid(width, height));
+        }
+
+        @Override
+        public void visit(RowWindow rows, int y, Sums sums) {
+            for (int f = 0 ; f < factors.length ; f++) {
+                final int period = factors[f].period;
+                for (int offsetY = 0 ; offsetY < period ; offsetY++) {
+                    final int top = sums.grid.cellTops[f][offsetY][y];
+                    if (top < 0) {
+                        continue;
+                    }
+                    final int cellHeight = y - top + 1;
+                    for (int row = top ; row <= y ; row++) {
+                        sums.slots[row-top] = sums.getSlot(rows, row);
+                    }
+                    final int bands = rows.getBands(top, y+1);
+                    for (int offsetX = 0 ; offsetX < period ; offsetX++) {
+                        final int offset = offsetX*period + offsetY;
+                        final int[] starts = sums.grid.columnStarts[f][offsetX];
+                        for (int cell = 1 ; cell < starts.length ; cell++) {
+                            final int left = starts[cell-1];
+                            final int right = starts[cell];
+                            final long pixels = (long) (right - left) * cellHeight;
+                            if (pixels < 2) {
+                                continue;
+                            }
+                            double max = 0;
+                            for (int channel = 0 ; channel < bands ; channel++) {
+                                long sum = 0;
+                                long squares = 0;
+                                for (int i = 0 ; i < cellHeight ; i++) {
+                                    final int slot = sums.slots[i];
+                                    final int rowChannel = sums.prefixGray[slot] ? 0 : channel;
+                                    final long[] rowSums = sums.prefixSums[slot][rowChannel];
+                                    final long[] rowSquares = sums.prefixSquares[slot][rowChannel];
+                                    sum += rowSums[right] - rowSums[left];
+                                    squares += rowSquares[right] - rowSquares[left];
+                                }
+                                max = Math.max(max, Stats.variance(pixels, sum, squares));
+                            }
+                            sums.deviationSums[f][offset] += Math.sqrt(max);
+                            sums.cellCounts[f][offset]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void merge(Sums target, Sums source) {
+            for (int f = 0 ; f < factors.length ; f++) {
+                for (int offset = 0 ; offset < target.deviationSums[f].length ; offset++) {
+                    target.deviationSums[f][offset] += source.deviationSums[f][offset];
+                    target.cellCounts[f][offset] += source.cellCounts[f][offset];
+                }
+            }
+        }
+
+        @Override
+        public AnalysisResult finish(File imageFile, Sums sums) {
+            AnalysisResult result = new AnalysisResult(imageFile, getName(), RENDERER).setMetricNames(METRICS);
+            int bestFactor = -1;
+            int bestOffset = -1;
+            for (int f = 0 ; f < factors.length ; f++) {
+                final int period = factors[f].period;
+                int best = -1;
+                double bestDeviation = Double.MAX_VALUE;
+                double sumDeviations = 0;
+                int offsets = 0;
+                for (int offset = 0 ; offset < period*period ; offset++) {
+                    if (sums.cellCounts[f][offset] == 0) {
+                        continue;
+                    }
+                    final double deviation = sums.deviationSums[f][offset] / sums.cellCounts[f][offset];
+                    sumDeviations += deviation;
+                    offsets++;
+                    if (deviation < bestDeviation) {
+                        bestDeviation = deviation;
+                        best = offset;
+                    }
+                }
+                final double value = factors[f].value;
+                if (best == -1) {
+                    result.addCandidate(value, value, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+                    continue;
+                }
+                final double average = sumDeviations / offsets;
+                final double ratio = average == 0 ? 1 : bestDeviation / average;
+                result.addCandidate(value, value, best / period, best % period, bestDeviation, average, ratio);
+                if (ratio < MATCH_RATIO && (bestFactor == -1 || factors[f].value > factors[bestFactor].value)) {
+                    bestFactor = f;
+                    bestOffset = best;
+                }
+            }
+            if (bestFactor != -1) {
+                final int period = factors[bestFactor].period;
+                result.setUpscale(factors[bestFactor].value, factors[bestFactor].value,
+                                  bestOffset / period, bestOffset % period);
+            }
+            return result;
+        }
+    };
+
+    private static final String[] METRICS = {"Deviation", "Average", "Ratio"};
+
+    private static final AnalysisResult.Renderer RENDERER = new AnalysisResult.Renderer() {
+        @Override
+        public String render(AnalysisResult result) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Factor  Offset  Deviation    Average  Ratio\n");
+            for (AnalysisResult.Candidate candidate: result.getCandidates()) {
+                if (Double.isNaN(candidate.getOffsetX())) {
+                    sb.append(String.format("%-6s  too small for the factor\n", formatFactor(candidate.getFactorX())));
+                } else {
+                    sb.append(String.format("%-6s  %-6s  %9.2f  %9.2f  %5.2f\n", formatFactor(candidate.getFactorX()),
+                                            formatOffset(candidate.getOffsetX(), candidate.getOffsetY()),
+                                            candidate.getMetric(0), candidate.getMetric(1), candidate.getMetric(2)));
+                }
+            }
+            if (result.isUpscaled()) {
+                sb.append(String.format("Best matching factor: %s at offset %s\n", formatFactor(result.getFactorX()),
+                                        formatOffset(result.getOffsetX(), result.getOffsetY())));
+            } else {
+                sb.append("Best matching factor: none\n");
+            }
+            return sb.toString();
+        }
+    };
+
+    private static String formatFactor(double value) {
+        return value == Math.rint(value) ? "x" + (long) value : "x" + value;
+    }
+
+    private static String formatOffset(double offsetX, double offsetY) {
+        return "(" + (int) offsetX + ", " + (int) offsetY + ")";
+    }
+
+    @Override
+    public String getParameters() {
+        return super.getParameters() + ", factors " + Arrays.toString(factors);
+    }
+
+    @Override
+    public String getName() {
+        return "Multi-factor Nearest-Neighbour upscale detector";
+    }
+}
@@ -23,81 +23,445 @@ import java.util.List;
 // TODO: x1½
 public class NearestNeighbourDetect extends ImageAnalyzerImpl {
 
+    private static final int CONTRAST_SIDE = 3; // Something small that is not likely to match a scale factor
+    private static final int RECT_WIDTH = 2;
+    private static final int RECT_HEIGHT = 2;
+
+    private ReplicationScreen screen = new ReplicationScreen();
+
     @Override
-    public AnalysisResult analyze(File imageFile, BufferedImage image) {
-        final int CONTRAST_SIDE = 3; // Something small that is not likely to match a scale factor
-        final int RECT_WIDTH = 2;
-        final int RECT_HEIGHT = 2;
-        final long[][] rectRGB = new long[3][RECT_WIDTH*RECT_HEIGHT];
-        final int a = 0;
-        final int b = 1;
-        final int c = 2;
-        final int d = 3;
+    public RowVisitor<?> getRowVisitor() {
+        return VISITOR;
+    }
+
+    /**
+     * Images that are exact x2 replications are reported directly by the screen, without the deviation analysis.
+     * @param screen the screen to run before the analysis. null disables screening.
+     * @return the detector, for chaining.
+     */
+    public NearestNeighbourDetect setScreen(ReplicationScreen screen) {
+        this.screen = screen;
+        return this;
+    }
+
+    @Override
+    public String getParameters() {
+        return super.getParameters() + ", screen " + screen;
+    }
+
+    @Override
+    protected AnalysisResult prescreen(File imageFile, PixelAccess pixels) {
+        if (screen == null) {
+            return null;
+        }
+        ReplicationScreen.Result result = screen.screen(pixels);
+        if (!result.isReplicated()) {
+            return null;
+        }
+        return new AnalysisResult(imageFile, getName(), SCREEN_RENDERER)
+                .setUpscale(RECT_WIDTH, RECT_HEIGHT, result.getOffsetX(), result.getOffsetY());
+    }
+
+    private static final AnalysisResult.Renderer SCREEN_RENDERER = new AnalysisResult.Renderer() {
+        @Override
+        public String render(AnalysisResult result) {
+            return String.format("Exact x2 pixel replication at offset (%d, %d), deviation analysis skipped\n",
+                                 (int) result.getOffsetX(), (int) result.getOffsetY());
+        }
+    };
+
+    // Sums for the offsets, indexed by offsetX*RECT_HEIGHT + offsetY, and buffers for the visits
+    private static class Sums {
+        private final double[] sumMaxDeviationABCD = new double[RECT_WIDTH*RECT_HEIGHT];
+        private final double[] sumMaxDeviationAB_CD = new double[RECT_WIDTH*RECT_HEIGHT];
+        private final double[] sumMaxDeviationAC_BD = new double[RECT_WIDTH*RECT_HEIGHT];
+        private final int[] blockCounts = new int[RECT_WIDTH*RECT_HEIGHT];
+        private double sumContrast = 0.0;
+        private int contrastCount = 0;
+
+        private final long[][] rectRGB = new long[3][RECT_WIDTH*RECT_HEIGHT];
+        private final Stats.Accumulator[] contrastAccumulators = createAccumulators();
+        private final int[][][] rectRows = new int[RECT_HEIGHT][][];
+        private final int[][][] contrastRows = new int[CONTRAST_SIDE][][];
+
+        // Only used for bilevel images
+        private BilevelTables bilevel = null;
+        private long[] shiftedUpper = null;
+        private long[] shiftedLower = null;
+    }
+
+    // All statistics are collected in a single pass over the rows, so that each row is only read once
+    private final RowVisitor<Sums> VISITOR = new RowVisitor<Sums>() {
+        @Override
+        public int getContextRows() {
+            return Math.max(RECT_HEIGHT, CONTRAST_SIDE)-1;
+        }
+
+        @Override
+        public int getStripAlignment() {
+            return RECT_HEIGHT*CONTRAST_SIDE;
+        }
+
+        @Override
+        public Sums begin(int width, int height) {
+            return new Sums();
+        }
+
+        @Override
+        public void visit(RowWindow rows, int y, Sums sums) {
+            if (rows.isBilevel()) {
+                visitBilevel(rows, y, sums);
+                return;
+            }
+            final int width = rows.getWidth();
+            final int height = rows.getHeight();
+
+            // 2x2 blocks with the current row at the bottom
+            // We ignore the last row and column if they are 1 pixel wide
+            final int top = y-RECT_HEIGHT+1;
+            if (top >= 0) {
+                for (int i = 0 ; i < RECT_HEIGHT ; i++) {
+                    sums.rectRows[i] = rows.getRow(top+i);
+                }
+                final int bands = rows.getBands(top, top+RECT_HEIGHT);
+                for (int offsetX = 0 ; offsetX < RECT_WIDTH ; offsetX++) {
+                    final int offset = offsetX*RECT_HEIGHT + top%RECT_HEIGHT;
+                    for (int x = offsetX ; x < width-1 ; x+=RECT_WIDTH) {
+                        sums.blockCounts[offset]++;
+                        // Calculate max standard deviation for all color channels within the rectangle
+                        extractChannelValues(sums.rectRows, x, RECT_WIDTH, RECT_HEIGHT, sums.rectRGB, bands);
+                        addDeviations(sums.rectRGB, offset, bands, sums);
+                    }
+                }
+            }
+
+            // Contrast blocks with the current row at the bottom
+            final int contrastTop = y-CONTRAST_SIDE+1;
+            if (contrastTop >= 0 && contrastTop % CONTRAST_SIDE == 0 && contrastTop < height-CONTRAST_SIDE) {
+                for (int i = 0 ; i < CONTRAST_SIDE ; i++) {
+                    sums.contrastRows[i] = rows.getRow(contrastTop+i);
+                }
+                final int bands = rows.getBands(contrastTop, contrastTop+CONTRAST_SIDE);
+                for (int x = 0 ; x < width-CONTRAST_SIDE ; x+=CONTRAST_SIDE) {
+                    sums.contrastCount++;
+                    sums.sumContrast += getMaxDeviation(
+                            sums.contrastRows, x, CONTRAST_SIDE, CONTRAST_SIDE, sums.contrastAccumulators, bands);
+                }
+            }
+        }
+
+        @Override
+        public void merge(Sums target, Sums source) {
+            for (int offset = 0 ; offset < RECT_WIDTH*RECT_HEIGHT ; offset++) {
+                target.sumMaxDeviationABCD[offset] += source.sumMaxDeviationABCD[offset];
+                target.sumMaxDeviationAB_CD[offset] += source.sumMaxDeviationAB_CD[offset];
+                target.sumMaxDeviationAC_BD[offset] += source.sumMaxDeviationAC_BD[offset];
+                target.blockCounts[offset] += source.blockCounts[offset];
+            }
+            target.sumContrast += source.sumContrast;
+            target.contrastCount += source.contrastCount;
+        }
+
+        @Override
+        public AnalysisResult finish(File imageFile, Sums sums) {
+            return getResult(imageFile, sums, RENDERER);
+        }
+    };
+
+    // Sampling estimates the candidates from bands of rows
+    private final BandSampler.Model<Sums> SAMPLING_MODEL = new BandSampler.Model<Sums>() {
+        @Override
+        public RowVisitor<Sums> getRowVisitor() {
+            return VISITOR;
+        }
+
+        @Override
+        public double[][] getMetrics(Sums sums) {
+            List<Candidate> candidates = getCandidates(sums);
+            double[][] metrics = new double[candidates.size()][];
+            for (int i = 0 ; i < candidates.size() ; i++) {
+                Candidate candidate = candidates.get(i);
+                metrics[i] = new double[]{candidate.getABCD(), candidate.getAB_CD(), candidate.getAC_BD()};
+            }
+            return metrics;
+        }
+
+        @Override
+        public AssignmentSolver.Objective getObjective(Sums sums) {
+            return NearestNeighbourDetect.this.getObjective(getCandidates(sums), getAverageContrast(sums));
+        }
+
+        @Override
+        public AnalysisResult finish(File imageFile, final BandSampler.Estimate<Sums> estimate) {
+            return getResult(imageFile, estimate.getResult(), new AnalysisResult.Renderer() {
+                @Override
+                public String render(AnalysisResult result) {
+                    return RENDERER.render(result) + estimate + estimate.formatHalfWidths(OFFSET_LABELS, METRICS);
+                }
+            }).setFractionExamined(estimate.getFractionExamined());
+        }
+    };
+
+    private static final String[] OFFSET_LABELS = {"(0, 0)", "(0, 1)", "(1, 0)", "(1, 1)"};
+    private static final String[] METRICS = {"ABCD", "AB_CD", "AC_BD"};
+
+    @Override
+    protected BandSampler.Model<?> getSamplingModel() {
+        return SAMPLING_MODEL;
+    }
+
+    // The candidates are added in the order of the best assignment to the hypotheses
+    private AnalysisResult getResult(File imageFile, Sums sums, AnalysisResult.Renderer renderer) {
+        final double averageContrast = getAverageContrast(sums);
+        final List<Candidate> sortedCandidates = getBestPermutation(getCandidates(sums), averageContrast);
+        AnalysisResult result = new AnalysisResult(imageFile, getName(), renderer).setMetricNames(METRICS)
+                .setContrast(averageContrast).setScore(score(sortedCandidates, averageContrast));
+        for (Candidate candidate: sortedCandidates) {
+            result.addCandidate(RECT_WIDTH, RECT_HEIGHT, candidate.offsetX, candidate.offsetY,
+                                candidate.abcd, candidate.ab_cd, candidate.ac_bd);
+        }
+        return result;
+    }
+
+    private static final AnalysisResult.Renderer RENDERER = new AnalysisResult.Renderer() {
+        @Override
+        public String render(AnalysisResult result) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Overall image contrast (average %dx%d block deviation): %.2f\n",
+                                    CONTRAST_SIDE, CONTRAST_SIDE, result.getContrast()));
+            sb.append("2x2 blocks\n");
+            sb.append("Offset   ABCD  AB_CD  AC_BD\n");
+            for (AnalysisResult.Candidate candidate: result.getCandidates()) {
+                sb.append(String.format("(%d, %d)  %5.2f  %5.2f  %5.2f\n",
+                                        (int) candidate.getOffsetX(), (int) candidate.getOffsetY(),
+                                        candidate.getMetric(0), candidate.getMetric(1), candidate.getMetric(2)));
+            }
+            sb.append(String.format("Upscale model conformance score (lower is better): %.2f\n", result.getScore()));
+            return sb.toString();
+        }
+    };
 
-        StringBuilder sb = new StringBuilder();
+    private double getAverageContrast(Sums sums) {
+        return 1.0 * sums.sumContrast / sums.contrastCount;
+    }
 
-        double averageContrast = averageContrast(image, CONTRAST_SIDE);
-        sb.append(String.format("Overall image contrast (average %dx%d block deviation): %.2f\n",
-                                CONTRAST_SIDE, CONTRAST_SIDE, averageContrast));
-        sb.append("2x2 blocks\n");
-        sb.append("Offset   ABCD  AB_CD  AC_BD\n");
+    // A Candidate for each offset, ordered by offsetX, then offsetY
+    private List<Candidate> getCandidates(Sums sums) {
         List<Candidate> candidates = new ArrayList<>(RECT_WIDTH*RECT_HEIGHT);
         for (int offsetX = 0 ; offsetX < RECT_WIDTH ; offsetX++) {
             for (int offsetY = 0 ; offsetY < RECT_HEIGHT ; offsetY++) {
-                // AB
-                // CD
-                double sumMaxDeviationABCD = 0.0;
-                double sumMaxDeviationAB_CD = 0.0;
-                double sumMaxDeviationAC_BD = 0.0;
-
-                // Iterate over all the rectangles in the image
-                // We ignore the last row and column if they are 1 pixel wide
-                int blockCount = 0;
-                for (int y = offsetY ; y < image.getHeight()-1 ; y+=RECT_HEIGHT) {
-                    for (int x = offsetX ; x < image.getWidth()-1 ; x+=RECT_WIDTH) {
-                        blockCount++;
-                        // Calculate max standard deviation for all color channels within the pixels in the rectangle
-                        extractChannelValues(image, y, x, RECT_WIDTH, RECT_HEIGHT, rectRGB);
-                        sumMaxDeviationABCD += getMaxDeviation(rectRGB, a, b, c, d);
-                        sumMaxDeviationAB_CD += (getMaxDeviation(rectRGB, a, b) + getMaxDeviation(rectRGB, c, d)) / 2;
-                        sumMaxDeviationAC_BD += (getMaxDeviation(rectRGB, a, c) + getMaxDeviation(rectRGB, b, d)) / 2;
-                    }
-                }
+                final int offset = offsetX*RECT_HEIGHT + offsetY;
+                final int blockCount = sums.blockCounts[offset];
                 candidates.add(new Candidate(
-                        offsetX, offsetY, sumMaxDeviationABCD / blockCount, sumMaxDeviationAB_CD / blockCount,
-                        sumMaxDeviationAC_BD / blockCount));
+                        offsetX, offsetY, sums.sumMaxDeviationABCD[offset] / blockCount,
+                        sums.sumMaxDeviationAB_CD[offset] / blockCount,
+                        sums.sumMaxDeviationAC_BD[offset] / blockCount));
+            }
+        }
+        return candidates;
+    }
 
+    // Same as the visit in VISITOR, but for packed bilevel rows. A block of bilevel pixels has only a few possible
+    // deviations, depending on the number of pixels with each colour and which pairs differ. Instead of calculating
+    // the deviations for each block, the blocks are counted for each case with bit operations on 64 pixels at a time
+    private void visitBilevel(RowWindow rows, int y, Sums sums) {
+        final int width = rows.getWidth();
+        final int height = rows.getHeight();
+        if (sums.bilevel == null) {
+            sums.bilevel = new BilevelTables(rows.getBilevelColor(0), rows.getBilevelColor(1));
+            sums.shiftedUpper = new long[(width+63)/64];
+            sums.shiftedLower = new long[(width+63)/64];
+        }
 
-                /*sb.append(String.format("(%d, %d)  %5.2f  %5.2f  %5.2f\n", offsetX, offsetY,
-                                        sumMaxDeviationABCD / blockCount, sumMaxDeviationAB_CD / blockCount,
-                                        sumMaxDeviationAC_BD / blockCount));*/
-/*                deviations[deviationIndex] =   sumMaxDeviationABCD / blockCount;
-                deviations[deviationIndex+1] = sumMaxDeviationAB_CD / blockCount;
-                deviations[deviationIndex+2] = sumMaxDeviationAC_BD / blockCount;
-                deviationIndex += 3;*/
+        // 2x2 blocks with the current row at the bottom
+        final int top = y-RECT_HEIGHT+1;
+        if (top >= 0) {
+            final long[] upper = rows.getPackedRow(top);
+            final long[] lower = rows.getPackedRow(y);
+            for (int offsetX = 0 ; offsetX < RECT_WIDTH ; offsetX++) {
+                final int offset = offsetX*RECT_HEIGHT + top%RECT_HEIGHT;
+                final int blocks = width-1 > offsetX ? (width-2-offsetX)/RECT_WIDTH + 1 : 0;
+                if (offsetX == 0) {
+                    addBilevelBlocks(upper, lower, blocks, offset, sums);
+                } else {
+                    // Shift the rows so that the blocks start at even pixels
+                    addBilevelBlocks(shiftLeft(upper, offsetX, sums.shiftedUpper),
+                                     shiftLeft(lower, offsetX, sums.shiftedLower), blocks, offset, sums);
+                }
             }
         }
-        List<Candidate> sortedCandidates = getBestPermutation(candidates, averageContrast, sb);
-        for (Candidate candidate: sortedCandidates) {
-            sb.append(candidate);
+
+        // Contrast blocks with the current row at the bottom
+        final int contrastTop = y-CONTRAST_SIDE+1;
+        if (contrastTop >= 0 && contrastTop % CONTRAST_SIDE == 0 && contrastTop < height-CONTRAST_SIDE) {
+            final long[] row0 = rows.getPackedRow(contrastTop);
+            final long[] row1 = rows.getPackedRow(contrastTop+1);
+            final long[] row2 = rows.getPackedRow(contrastTop+2);
+            final double[] contrast = sums.bilevel.contrast;
+            for (int x = 0 ; x < width-CONTRAST_SIDE ; x+=CONTRAST_SIDE) {
+                sums.contrastCount++;
+                sums.sumContrast += contrast[countBits3(row0, x) + countBits3(row1, x) + countBits3(row2, x)];
+            }
         }
-        sb.append(String.format("Upscale model conformance score (lower is better): %.2f\n",
-                                score(sortedCandidates, averageContrast)));
-        return new AnalysisResult(imageFile, getName(), sb.toString());
     }
 
-    // Attempts to classify candidates according to the overall hypothesis of 2x2 up-scaled super pixels
-    private List<Candidate> getBestPermutation(List<Candidate> candidates, double averageContrast, StringBuilder sb) {
-        List<Candidate> best = null;
-        double bestScore = Double.MAX_VALUE;
-        for (List<Candidate> permutation : permute(candidates)) {
-            double modelScore = score(permutation, averageContrast);
-            if (modelScore < bestScore) {
-                bestScore = modelScore;
-                best = permutation;
+    // Blocks start at bits 0, 2, 4... in the packed rows
+    private void addBilevelBlocks(long[] upper, long[] lower, int blocks, int offset, Sums sums) {
+        final long pairHigh = 0xAAAAAAAAAAAAAAAAL;
+        final long pairLow = 0x5555555555555555L;
+        long horizontal = 0;
+        long vertical = 0;
+        final long[] counts = new long[5]; // Number of blocks with 0-4 pixels of colour 1
+        final int bits = blocks*RECT_WIDTH;
+        for (int w = 0 ; w*64 < bits ; w++) {
+            final int validBits = bits - w*64;
+            final long mask = validBits >= 64 ? -1L : ~(-1L >>> validBits);
+            final long a = upper[w] & mask;
+            final long b = lower[w] & mask;
+            // AB and CD pairs that differ, counted at the first pixel of the pair
+            horizontal += Long.bitCount((a ^ (a << 1)) & pairHigh) + Long.bitCount((b ^ (b << 1)) & pairHigh);
+            // AC and BD pairs that differ
+            vertical += Long.bitCount(a ^ b);
+            // Number of colour 1 pixels in each block, as 4 bit lanes for even and odd blocks
+            final long pairsA = (a & pairLow) + ((a >>> 1) & pairLow);
+            final long pairsB = (b & pairLow) + ((b >>> 1) & pairLow);
+            countLanes((pairsA & LANES) + (pairsB & LANES), counts);
+            countLanes(((pairsA >>> 2) & LANES) + ((pairsB >>> 2) & LANES), counts);
+        }
+        final BilevelTables tables = sums.bilevel;
+        for (int k = 1 ; k <= 4 ; k++) {
+            sums.sumMaxDeviationABCD[offset] += counts[k] * tables.abcd[k];
+        }
+        sums.sumMaxDeviationAB_CD[offset] += horizontal * tables.halfPair;
+        sums.sumMaxDeviationAC_BD[offset] += vertical * tables.halfPair;
+        sums.blockCounts[offset] += blocks;
+    }
+
+    private static final long LANES = 0x3333333333333333L;
+    private static final long LANE_LOW = 0x1111111111111111L;
+
+    // Counts the 4 bit lanes in sum that holds the values 1, 2, 3 and 4
+    private static void countLanes(long sum, long[] counts) {
+        counts[4] += Long.bitCount((sum >>> 2) & LANE_LOW);
+        counts[3] += Long.bitCount(sum & (sum >>> 1) & LANE_LOW);
+        counts[2] += Long.bitCount((sum >>> 1) & ~sum & ~(sum >>> 2) & LANE_LOW);
+        counts[1] += Long.bitCount(sum & ~(sum >>> 1) & ~(sum >>> 2) & LANE_LOW);
+    }
+
+    private static long[] shiftLeft(long[] words, int bits, long[] shifted) {
+        for (int w = 0 ; w < words.length ; w++) {
+            shifted[w] = (words[w] << bits) | (w+1 < words.length ? words[w+1] >>> (64-bits) : 0);
+        }
+        return shifted;
+    }
+
+    // The number of set bits for pixels x, x+1 and x+2
+    private static int countBits3(long[] words, int x) {
+        final int word = x >>> 6;
+        final int bit = x & 63;
+        final long bits = bit <= 61 ? words[word] >>> (61-bit) :
+                (words[word] << (bit-61)) | (words[word+1] >>> (125-bit));
+        return Long.bitCount(bits & 7);
+    }
+
+    // The possible deviations for bilevel blocks, calculated the same way as for the general case
+    private class BilevelTables {
+        // By the number of pixels with colour 1 in a 2x2 block
+        private final double[] abcd = new double[RECT_WIDTH*RECT_HEIGHT+1];
+        // Half the deviation for a pair of pixels with different colours
+        private final double halfPair;
+        // By the number of pixels with colour 1 in a contrast block
+        private final double[] contrast = new double[CONTRAST_SIDE*CONTRAST_SIDE+1];
+
+        private BilevelTables(int color0, int color1) {
+            final long[][] rectRGB = new long[3][RECT_WIDTH*RECT_HEIGHT];
+            for (int k = 0 ; k < abcd.length ; k++) {
+                fill(rectRGB, color0, color1, k);
+                abcd[k] = getMaxDeviation(rectRGB, 0, 1, 2, 3);
             }
+            fill(rectRGB, color0, color1, 1);
+            halfPair = getMaxDeviation(rectRGB, 2, 3) / 2;
+
+            final long[][] contrastRGB = new long[3][CONTRAST_SIDE*CONTRAST_SIDE];
+            final double[] maxCache = new double[3];
+            for (int k = 0 ; k < contrast.length ; k++) {
+                fill(contrastRGB, color0, color1, k);
+                contrast[k] = getMaxDeviation(contrastRGB, maxCache);
+            }
+        }
+
+        // The last ones pixels get color1, the rest color0
+        private void fill(long[][] rectRGB, int color0, int color1, int ones) {
+            final int pixels = rectRGB[0].length;
+            for (int i = 0 ; i < pixels ; i++) {
+                final int color = i < pixels-ones ? color0 : color1;
+                rectRGB[0][i] = (color & 0x00ff0000) >> 16;
+                rectRGB[1][i] = (color & 0x0000ff00) >> 8;
+                rectRGB[2][i] = color & 0x000000ff;
+            }
+        }
+    }
+
+    // AB
+    // CD
+    // bands is 1 for grey blocks, where only the red channel is processed
+    private void addDeviations(long[][] rectRGB, int offset, int bands, Sums sums) {
+        final int a = 0;
+        final int b = 1;
+        final int c = 2;
+        final int d = 3;
+        sums.sumMaxDeviationABCD[offset] += getMaxDeviationBands(rectRGB, a, b, c, d, bands);
+        sums.sumMaxDeviationAB_CD[offset] +=
+                (getMaxDeviationBands(rectRGB, a, b, bands) + getMaxDeviationBands(rectRGB, c, d, bands)) / 2;
+        sums.sumMaxDeviationAC_BD[offset] +=
+                (getMaxDeviationBands(rectRGB, a, c, bands) + getMaxDeviationBands(rectRGB, b, d, bands)) / 2;
+    }
+
+    // Attempts to classify candidates according to the overall hypothesis of 2x2 up-scaled super pixels
+    private List<Candidate> getBestPermutation(List<Candidate> candidates, double averageContrast) {
+        return arrange(candidates, AssignmentSolver.solve(getObjective(candidates, averageContrast)));
+    }
+
+    private static List<Candidate> arrange(List<Candidate> candidates, int[] assignment) {
+        List<Candidate> arranged = new ArrayList<>(assignment.length);
+        for (int candidate: assignment) {
+            arranged.add(candidates.get(candidate));
         }
-        return best;
+        return arranged;
+    }
+
+    // The score of assigning the candidates to the hypotheses. The lower bound for a partial assignment uses the
+    // deviation of the known values and the ordering penalties that can already be decided
+    private AssignmentSolver.Objective getObjective(final List<Candidate> candidates, final double averageContrast) {
+        return new AssignmentSolver.Objective() {
+            @Override
+            public int getSize() {
+                return candidates.size();
+            }
+
+            @Override
+            public double getLowerBound(int[] assignment, int assigned) {
+                final Candidate c0 = candidates.get(assignment[0]);
+                if (assigned == 1) {
+                    return Stats.minStandardDeviation(4, c0.getAB_CD(), c0.getAC_BD());
+                }
+                final Candidate c1 = candidates.get(assignment[1]);
+                final double multiplier = c0.getABCD() > c1.getABCD() ? 10 : 1;
+                if (assigned == 2) {
+                    return multiplier * Stats.minStandardDeviation(4, c0.getAB_CD(), c0.getAC_BD(), c1.getAB_CD());
+                }
+                final Candidate c2 = candidates.get(assignment[2]);
+                return (c0.getABCD() > c2.getABCD() ? 10 : multiplier) * (
+                        Stats.standardDeviation(new double[]{
+                                c0.getAB_CD(), c0.getAC_BD(), c1.getAB_CD(), c2.getAC_BD()}) +
+                        Stats.standardDeviation(new double[]{c1.getABCD(), c2.getABCD()}));
+            }
+
+            @Override
+            public double getScore(int[] assignment) {
+                return score(arrange(candidates, assignment), averageContrast);
+            }
+        };
     }
 
     // Check for conformance to the model, where the first candidate is assumed to be hypothesis 1 etc.
@@ -166,15 +530,6 @@ public class NearestNeighbourDetect extends ImageAnalyzerImpl {
         public double getAC_BD() {
             return ac_bd;
         }
-
-        public String getOffsetHuman() {
-            return "(" + offsetX + ", " + offsetY + ")";
-        }
-
-        public String toString() {
-            return String.format("(%d, %d)  %5.2f  %5.2f  %5.2f\n",
-                                 offsetX, offsetY, abcd, ab_cd, ac_bd);
-        }
     }
 
     @Override
@@ -0,0 +1,435 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the scale factor and phase of an upscale from the periodicity of the differences between neighbouring
+ * columns and rows, without testing a list of factors.
+ * </p><p>
+ * A single pass over the image sums the absolute difference (maximum over the channels) between each pair of
+ * neighbouring columns and each pair of neighbouring rows into a column profile and a row profile. In an upscaled
+ * image, the differences are small within the cells that are interpolated from the same source pixels and large
+ * at the cell boundaries, which repeat with the scale factor as period, whether or not that is an integer.
+ * </p><p>
+ * Each profile is windowed and transformed with an FFT, so the cost of finding the period is O(n log n) in the
+ * width or height and independent of the factors. The spectral peaks are candidates for the fundamental frequency
+ * 1/f, but as the profile is sampled at whole pixels, factors below 2 show up at 1-1/f. The candidates are
+ * resolved by folding the profile: for a factor f and phase p the cells start at the columns ceil(p + k*f) and
+ * the contrast is the difference between the average profile value at the cell boundaries and elsewhere,
+ * relative to the overall average. It is about f for a clean Nearest Neighbour upscale and about 0 for an image
+ * without periodicity, and is used to choose between the candidates. The factor is refined around the peak and
+ * snapped to a fraction with a small denominator if that fits at least as well.
+ * </p><p>
+ * Whether the best candidate is reported as an upscale is decided by the separation, 1 minus the ratio between the
+ * average profile value away from and at the cell boundaries. It is 1 when the differences within the cells are
+ * 0 and does not grow with the factor. The phase is reported as the position in [0, f) where a cell starts exactly,
+ * which for integer factors is the first column (row) of the first complete cell.
+ */
+public class PeriodicityDetect extends ImageAnalyzerImpl {
+    /**
+     * Periods up to this number of pixels are searched.
+     */
+    public static final int MAX_FACTOR = 16;
+    /**
+     * A factor is reported if the separation of its folded profile is at least this.
+     */
+    public static final double MIN_SEPARATION = 0.75;
+
+    private static final String NAME = "Periodicity upscale detector";
+    // Spectral peaks with at least this fraction of the power of the highest peak are candidates. The lowest
+    // harmonics of a pulse train can be as strong as the fundamental
+    private static final double PEAK_FRACTION = 0.5;
+    private static final int MAX_PEAKS = 4;
+    // The profile is zero padded to this times its length before the FFT, for a finer frequency resolution
+    private static final int PADDING = 4;
+    private static final int REFINE_STEPS = 10;
+    private static final int PHASE_STEPS = 8;
+    private static final int MAX_DENOMINATOR = 12;
+
+    @Override
+    public RowVisitor<?> getRowVisitor() {
+        return VISITOR;
+    }
+
+    // The profiles are indexed by the left column or top row of each pair
+    private static class Sums {
+        private final long[] columnProfile;
+        private final long[] rowProfile;
+
+        private Sums(int width, int height) {
+            columnProfile = new long[Math.max(0, width-1)];
+            rowProfile = new long[Math.max(0, height-1)];
+        }
+    }
+
+    // Each row adds its column differences and the difference to the row above
+    private static final RowVisitor<Sums> VISITOR = new RowVisitor<Sums>() {
+        @Override
+        public int getContextRows() {
+            return 1;
+        }
+
+        @Override
+        public int getStripAlignment() {
+            return 1;
+        }
+
+        @Override
+        public Sums begin(int width, int height) {
+            return new Sums(width, height);
+        }
+
+        @Override
+        public void visit(RowWindow rows, int y, Sums sums) {
+            final int width = rows.getWidth();
+            final int[][] row = rows.getRow(y);
+            final long[] columnProfile = sums.columnProfile;
+            if (rows.isGray(y)) {
+                final int[] gray = row[0];
+                for (int x = 0 ; x < width-1 ; x++) {
+                    columnProfile[x] += Math.abs(gray[x+1] - gray[x]);
+                }
+            } else {
+                for (int x = 0 ; x < width-1 ; x++) {
+                    columnProfile[x] += Math.max(Math.abs(row[0][x+1] - row[0][x]), Math.max(
+                            Math.abs(row[1][x+1] - row[1][x]), Math.abs(row[2][x+1] - row[2][x])));
+                }
+            }
+            if (y == 0) {
+                return;
+            }
+            final int[][] above = rows.getRow(y-1);
+            long sum = 0;
+            if (rows.getBands(y-1, y+1) == 1) {
+                for (int x = 0 ; x < width ; x++) {
+                    sum += Math.abs(row[0][x] - above[0][x]);
+                }
+            } else {
+                for (int x = 0 ; x < width ; x++) {
+                    sum += Math.max(Math.abs(row[0][x] - above[0][x]), Math.max(
+                            Math.abs(row[1][x] - above[1][x]), Math.abs(row[2][x] - above[2][x])));
+                }
+            }
+            sums.rowProfile[y-1] = sum;
+        }
+
+        @Override
+        public void merge(Sums target, Sums source) {
+            for (int x = 0 ; x < target.columnProfile.length ; x++) {
+                target.columnProfile[x] += source.columnProfile[x];
+            }
+            for (int y = 0 ; y < target.rowProfile.length ; y++) {
+                target.rowProfile[y] += source.rowProfile[y];
+            }
+        }
+
+        @Override
+        public AnalysisResult finish(File imageFile, Sums sums) {
+            final Period columns = findPeriod(sums.columnProfile);
+            final Period rows = findPeriod(sums.rowProfile);
+            AnalysisResult result = new AnalysisResult(imageFile, NAME, RENDERER).setMetricNames(METRICS);
+            if (columns != null) {
+                result.addCandidate(columns.factor, Double.NaN, columns.phase, Double.NaN,
+                                    columns.peakRatio, columns.contrast, columns.separation);
+            }
+            if (rows != null) {
+                result.addCandidate(Double.NaN, rows.factor, Double.NaN, rows.phase,
+                                    rows.peakRatio, rows.contrast, rows.separation);
+            }
+            final boolean columnMatch = columns != null && columns.separation >= MIN_SEPARATION;
+            final boolean rowMatch = rows != null && rows.separation >= MIN_SEPARATION;
+            if (columnMatch || rowMatch) {
+                result.setUpscale(columnMatch ? columns.factor : 0, rowMatch ? rows.factor : 0,
+                                  columnMatch ? columns.phase : Double.NaN, rowMatch ? rows.phase : Double.NaN);
+            }
+            return result;
+        }
+    };
+
+    private static final String[] METRICS = {"Peak/mean", "Contrast", "Separation"};
+
+    // The candidates are the column period, with NaN for the vertical values, and the row period
+    private static final AnalysisResult.Renderer RENDERER = new AnalysisResult.Renderer() {
+        @Override
+        public String render(AnalysisResult result) {
+            AnalysisResult.Candidate columns = null;
+            AnalysisResult.Candidate rows = null;
+            for (AnalysisResult.Candidate candidate: result.getCandidates()) {
+                if (Double.isNaN(candidate.getFactorY())) {
+                    columns = candidate;
+                } else {
+                    rows = candidate;
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("Axis     Factor   Phase  Peak/mean  Contrast  Separation\n");
+            sb.append(format("Columns", columns, true));
+            sb.append(format("Rows", rows, false));
+            final double factorX = result.getFactorX();
+            final double factorY = result.getFactorY();
+            if (factorX > 0 && factorY > 0 && Math.abs(factorX - factorY) <= 0.01 * factorX) {
+                sb.append(String.format("Upscale factor: %.3f at phase (%.2f, %.2f)\n",
+                                        factorX, result.getOffsetX(), result.getOffsetY()));
+            } else if (result.isUpscaled()) {
+                sb.append(String.format("Upscale factor: %s horizontally, %s vertically\n",
+                                        factorX > 0 ? String.format("%.3f", factorX) : "none",
+                                        factorY > 0 ? String.format("%.3f", factorY) : "none"));
+            } else {
+                sb.append("Upscale factor: none\n");
+            }
+            return sb.toString();
+        }
+    };
+
+    private static String format(String axis, AnalysisResult.Candidate period, boolean horizontal) {
+        return period == null ? String.format("%-7s  too small\n", axis) :
+                String.format("%-7s  %6.3f  %6.2f  %9.1f  %8.2f  %10.2f\n", axis,
+                              horizontal ? period.getFactorX() : period.getFactorY(),
+                              horizontal ? period.getOffsetX() : period.getOffsetY(),
+                              period.getMetric(0), period.getMetric(1), period.getMetric(2));
+    }
+
+    // The best matching period of a profile
+    private static class Period {
+        private final double factor;
+        private final double phase;
+        private final double contrast;
+        private final double separation;
+        private final double peakRatio;
+
+        private Period(double factor, double phase, double contrast, double separation, double peakRatio) {
+            this.factor = factor;
+            this.phase = phase;
+            this.contrast = contrast;
+            this.separation = separation;
+            this.peakRatio = peakRatio;
+        }
+    }
+
+    // The best matching period, null if the profile is too short to contain one
+    private static Period findPeriod(long[] profile) {
+        final int n = profile.length;
+        if (n < 2*MAX_FACTOR) {
+            return null;
+        }
+        double mean = 0;
+        for (long value: profile) {
+            mean += value;
+        }
+        mean /= n;
+
+        // Hann windowed profile without DC, zero padded to a power of 2
+        int size = Integer.highestOneBit(n * PADDING - 1) << 1;
+        final double[] re = new double[size];
+        final double[] im = new double[size];
+        for (int i = 0 ; i < n ; i++) {
+            re[i] = (profile[i] - mean) * (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (n - 1)));
+        }
+        fft(re, im);
+        final double[] power = new double[size/2 + 1];
+        for (int k = 0 ; k < power.length ; k++) {
+            power[k] = re[k]*re[k] + im[k]*im[k];
+        }
+
+        // Peaks between the frequencies 1/MAX_FACTOR and 1/2 (the Nyquist frequency)
+        final int kMin = (size + MAX_FACTOR - 1) / MAX_FACTOR;
+        final int kMax = size/2;
+        double maxPower = 0;
+        double sumPower = 0;
+        for (int k = kMin ; k <= kMax ; k++) {
+            maxPower = Math.max(maxPower, power[k]);
+            sumPower += power[k];
+        }
+        if (maxPower == 0) {
+            return new Period(0, 0, 0, 0, 0);
+        }
+        final double peakRatio = maxPower / (sumPower / (kMax - kMin + 1));
+        List<Integer> peaks = new ArrayList<>();
+        for (int k = kMin ; k <= kMax ; k++) {
+            if (power[k] >= PEAK_FRACTION * maxPower && power[k] >= power[k-1] &&
+                (k == kMax || power[k] > power[k+1])) {
+                peaks.add(k);
+            }
+        }
+        while (peaks.size() > MAX_PEAKS) { // Keep the strongest
+            int weakest = 0;
+            for (int i = 1 ; i < peaks.size() ; i++) {
+                if (power[peaks.get(i)] < power[peaks.get(weakest)]) {
+                    weakest = i;
+                }
+            }
+            peaks.remove(weakest);
+        }
+
+        final double total = mean * n;
+        Period best = new Period(0, 0, -Double.MAX_VALUE, 0, peakRatio);
+        for (int k: peaks) {
+            // Parabolic interpolation of the peak position
+            double offset = 0;
+            if (k < kMax) {
+                final double denominator = power[k-1] - 2*power[k] + power[k+1];
+                offset = denominator == 0 ? 0 : 0.5 * (power[k-1] - power[k+1]) / denominator;
+            }
+            final double frequency = (k + offset) / size;
+            best = better(best, refine(profile, total, 1 / frequency, peakRatio));
+            if (frequency < 0.5) {
+                best = better(best, refine(profile, total, 1 / (1 - frequency), peakRatio));
+            }
+        }
+        return best;
+    }
+
+    private static Period better(Period a, Period b) {
+        return b.contrast > a.contrast ? b : a;
+    }
+
+    // Searches factors within the frequency resolution of the profile around the estimate, and the nearest
+    // fraction with a small denominator
+    private static Period refine(long[] profile, double total, double estimate, double peakRatio) {
+        final double frequency = 1 / estimate;
+        final double resolution = 1.0 / profile.length;
+        Period best = fold(profile, total, estimate, PHASE_STEPS, peakRatio);
+        for (int step = -REFINE_STEPS ; step <= REFINE_STEPS ; step++) {
+            final double candidate = frequency + resolution * step / REFINE_STEPS;
+            if (candidate > 0 && candidate <= 0.5 + resolution && 1 / candidate > 1) {
+                best = better(best, fold(profile, total, 1 / candidate, PHASE_STEPS, peakRatio));
+            }
+        }
+        final int denominator = nearestDenominator(best.factor);
+        final double fraction = Math.rint(best.factor * denominator) / denominator;
+        if (Math.abs(1 / fraction - 1 / best.factor) <= resolution) {
+            final Period snapped = fold(profile, total, fraction, denominator, peakRatio);
+            if (snapped.contrast >= best.contrast) {
+                best = snapped;
+            }
+        }
+        return best;
+    }
+
+    // The contrast for the factor at its best phase. The phases are tried in steps of 1/phaseSteps pixel. For a
+    // fraction p/q, all distinct sets of cell starts are visited with q steps
+    private static Period fold(long[] profile, double total, double factor, int phaseSteps, double peakRatio) {
+        final int n = profile.length;
+        double bestContrast = -Double.MAX_VALUE;
+        double bestRatio = 0;
+        double bestPhase = 0;
+        final int phases = (int) Math.ceil(factor * phaseSteps);
+        for (int i = 0 ; i < phases ; i++) {
+            final double phase = (double) i / phaseSteps;
+            // A cell starting at column x has the boundary x-1, x in the profile. The phase is moved to the
+            // latest one with the same cell starts, which is where a cell starts exactly
+            double boundarySum = 0;
+            int boundaries = 0;
+            double latest = Double.MAX_VALUE;
+            for (int cell = 0 ; ; cell++) {
+                final int start = (int) Math.ceil(phase + cell * factor - 1.0E-9);
+                if (start > n) {
+                    break;
+                }
+                latest = Math.min(latest, start - cell * factor);
+                if (start >= 1) {
+                    boundarySum += profile[start-1];
+                    boundaries++;
+                }
+            }
+            if (boundaries == 0 || boundaries == n || total == 0) {
+                continue;
+            }
+            final double boundaryMean = boundarySum / boundaries;
+            final double otherMean = (total - boundarySum) / (n - boundaries);
+            final double contrast = (boundaryMean - otherMean) / (total / n);
+            if (contrast > bestContrast) {
+                bestContrast = contrast;
+                bestRatio = boundaryMean == 0 ? 0 : 1 - otherMean / boundaryMean;
+                bestPhase = normalizePhase(latest, factor);
+            }
+        }
+        return new Period(factor, bestPhase, bestContrast, bestRatio, peakRatio);
+    }
+
+    // The phase in [0, factor), with rounding errors around 0 removed
+    private static double normalizePhase(double phase, double factor) {
+        phase %= factor;
+        if (phase < 0) {
+            phase += factor;
+        }
+        return phase > factor - 1.0E-9 ? 0 : phase;
+    }
+
+    // The denominator q <= MAX_DENOMINATOR of the nearest fraction p/q
+    private static int nearestDenominator(double value) {
+        int best = 1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int q = 1 ; q <= MAX_DENOMINATOR ; q++) {
+            final double distance = Math.abs(Math.rint(value * q) / q - value);
+            if (distance < bestDistance - 1.0E-12) {
+                best = q;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    // In-place iterative radix-2 FFT. The length must be a power of 2
+    private static void fft(double[] re, double[] im) {
+        final int n = re.length;
+        for (int i = 1, j = 0 ; i < n ; i++) {
+            int bit = n >> 1;
+            for ( ; (j & bit) != 0 ; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double tmp = re[i];
+                re[i] = re[j];
+                re[j] = tmp;
+                tmp = im[i];
+                im[i] = im[j];
+                im[j] = tmp;
+            }
+        }
+        for (int length = 2 ; length <= n ; length <<= 1) {
+            final double angle = -2 * Math.PI / length;
+            final double stepRe = Math.cos(angle);
+            final double stepIm = Math.sin(angle);
+            for (int i = 0 ; i < n ; i += length) {
+                double wRe = 1;
+                double wIm = 0;
+                for (int j = 0 ; j < length/2 ; j++) {
+                    final int a = i + j;
+                    final int b = a + length/2;
+                    final double bRe = re[b]*wRe - im[b]*wIm;
+                    final double bIm = re[b]*wIm + im[b]*wRe;
+                    re[b] = re[a] - bRe;
+                    im[b] = im[a] - bIm;
+                    re[a] += bRe;
+                    im[a] += bIm;
+                    final double nextRe = wRe*stepRe - wIm*stepIm;
+                    wIm = wRe*stepIm + wIm*stepRe;
+                    wRe = nextRe;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * Bulk access to the pixels of an image, delivered as rows of separate red, green and blue channel values.
+ * </p><p>
+ * {@link BufferedImage#getRGB(int, int)} passes every single pixel through the ColorModel, which dominates the
+ * runtime for large scans. The specialised implementations read directly from the DataBuffer for the common
+ * image types and only fall back to getRGB for exotic types. The delivered values are always the same as the
+ * ones returned by getRGB.
+ * </p><p>
+ * The implementations for BufferedImages are stateless and thus safe to use from multiple threads.
+ * @see BandedPixelAccess
+ */
+public abstract class PixelAccess {
+    protected final int width;
+    protected final int height;
+
+    protected PixelAccess(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param image the image to access.
+     * @return the fastest available pixel access for the given image.
+     */
+    public static PixelAccess create(BufferedImage image) {
+        final Raster raster = image.getRaster();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+                if (raster.getDataBuffer() instanceof DataBufferByte &&
+                    raster.getSampleModel() instanceof ComponentSampleModel) {
+                    return new ByteGray(image);
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                if (raster.getDataBuffer() instanceof DataBufferByte &&
+                    raster.getSampleModel() instanceof ComponentSampleModel) {
+                    return new ByteInterleaved(image);
+                }
+                break;
+            case BufferedImage.TYPE_BYTE_BINARY:
+                if (raster.getDataBuffer() instanceof DataBufferByte &&
+                    raster.getSampleModel() instanceof MultiPixelPackedSampleModel &&
+                    ((MultiPixelPackedSampleModel) raster.getSampleModel()).getPixelBitStride() == 1 &&
+                    image.getColorModel() instanceof IndexColorModel &&
+                    ((IndexColorModel) image.getColorModel()).getMapSize() == 2) {
+                    return new ByteBinary(image);
+                }
+                break;
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                if (raster.getDataBuffer() instanceof DataBufferInt &&
+                    raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+                    return new IntPacked(image);
+                }
+                break;
+            default: // Handled below
+        }
+        return createGeneric(image);
+    }
+
+    /**
+     * @param image the image to access.
+     * @return a pixel access that uses {@link BufferedImage#getRGB} for all image types.
+     */
+    public static PixelAccess createGeneric(BufferedImage image) {
+        return new Generic(image);
+    }
+
+    /**
+     * Read a full row of pixels.
+     * @param y   the row to read.
+     * @param rgb destination for the channel values as {@code rgb[channel][x]}, where channel 0 is red,
+     *            1 is green and 2 is blue. Each channel array must hold at least {@link #getWidth()} values.
+     */
+    public void readRow(int y, int[][] rgb) {
+        readRow(0, y, width, rgb);
+    }
+
+    /**
+     * Read a part of a row of pixels.
+     * @param x      the horizontal start of the pixels to read.
+     * @param y      the row to read.
+     * @param length the number of pixels to read.
+     * @param rgb    destination for the channel values as {@code rgb[channel][pixel]}, where channel 0 is red,
+     *               1 is green and 2 is blue. The first pixel is stored at index 0.
+     */
+    public abstract void readRow(int x, int y, int length, int[][] rgb);
+
+    /**
+     * @return true if rows can be read from multiple threads at the same time and in any order.
+     */
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    /**
+     * @return true if it is known without reading the pixels that red, green and blue are always the same.
+     *         If false, the pixels might still be grey.
+     */
+    public boolean isGray() {
+        return false;
+    }
+
+    /**
+     * @return true if all pixels are one of two colours and can be read with {@link #readPackedRow(int, long[])}.
+     */
+    public boolean isBilevel() {
+        return false;
+    }
+
+    /**
+     * Read a full row of a bilevel image as packed bits. Pixel x is stored in bit {@code 63 - x%64} of
+     * {@code words[x/64]}, where 0 means {@code getBilevelColor(0)} and 1 means {@code getBilevelColor(1)}.
+     * Bits after the last pixel are 0.
+     * @param y     the row to read.
+     * @param words destination for the bits. Must hold at least {@code (getWidth()+63)/64} words.
+     * @throws UnsupportedOperationException if the image is not {@link #isBilevel()}.
+     */
+    public void readPackedRow(int y, long[] words) {
+        throw new UnsupportedOperationException("Packed rows are only available for bilevel images");
+    }
+
+    /**
+     * @param bit 0 or 1.
+     * @return the sRGB colour for the bit value in packed rows, as delivered by {@link BufferedImage#getRGB}.
+     * @throws UnsupportedOperationException if the image is not {@link #isBilevel()}.
+     */
+    public int getBilevelColor(int bit) {
+        throw new UnsupportedOperationException("Colours for packed bits are only available for bilevel images");
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Uses the bulk {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}.
+     */
+    private static class Generic extends PixelAccess {
+        private final BufferedImage image;
+
+        private Generic(BufferedImage image) {
+            super(image.getWidth(), image.getHeight());
+            this.image = image;
+        }
+
+        @Override
+        public void readRow(int x, int y, int length, int[][] rgb) {
+            final int[] row = image.getRGB(x, y, length, 1, null, 0, length);
+            final int[] red = rgb[0];
+            final int[] green = rgb[1];
+            final int[] blue = rgb[2];
+            for (int i = 0 ; i < length ; i++) {
+                final int clr = row[i];
+                red[i] = (clr & 0x00ff0000) >> 16;
+                green[i] = (clr & 0x0000ff00) >> 8;
+                blue[i] = clr & 0x000000ff;
+            }
+        }
+    }
+
+    /**
+     * TYPE_BYTE_GRAY. getRGB converts the linear grey values to sRGB, so a lookup table is used to get the same
+     * values without calling the ColorModel for every pixel.
+     */
+    private static class ByteGray extends PixelAccess {
+        private final byte[] data;
+        private final int base;
+        private final int scanlineStride;
+        private final int pixelStride;
+        private final int[] redLUT = new int[256];
+        private final int[] greenLUT = new int[256];
+        private final int[] blueLUT = new int[256];
+        private final boolean neutral;
+
+        private ByteGray(BufferedImage image) {
+            super(image.getWidth(), image.getHeight());
+            final Raster raster = image.getRaster();
+            final ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            final DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            data = buffer.getData();
+            scanlineStride = sm.getScanlineStride();
+            pixelStride = sm.getPixelStride();
+            base = buffer.getOffset() + sm.getBandOffsets()[0]
+                   - raster.getSampleModelTranslateY()*scanlineStride - raster.getSampleModelTranslateX()*pixelStride;
+
+            final ColorModel cm = image.getColorModel();
+            final byte[] gray = new byte[1];
+            for (int i = 0 ; i < 256 ; i++) {
+                gray[0] = (byte) i;
+                final int clr = cm.getRGB(gray);
+                redLUT[i] = (clr & 0x00ff0000) >> 16;
+                greenLUT[i] = (clr & 0x0000ff00) >> 8;
+                blueLUT[i] = clr & 0x000000ff;
+            }
+            neutral = Arrays.equals(redLUT, greenLUT) && Arrays.equals(redLUT, blueLUT);
+        }
+
+        @Override
+        public boolean isGray() {
+            return neutral;
+        }
+
+        @Override
+        public void readRow(int x, int y, int length, int[][] rgb) {
+            final int[] red = rgb[0];
+            final int[] green = rgb[1];
+            final int[] blue = rgb[2];
+            int index = base + y*scanlineStride + x*pixelStride;
+            for (int i = 0 ; i < length ; i++) {
+                final int gray = data[index] & 0xFF;
+                red[i] = redLUT[gray];
+                green[i] = greenLUT[gray];
+                blue[i] = blueLUT[gray];
+                index += pixelStride;
+            }
+        }
+    }
+
+    /**
+     * TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR, where the bytes in the DataBuffer are the sRGB values.
+     */
+    private static class ByteInterleaved extends PixelAccess {
+        private final byte[] data;
+        private final int base;
+        private final int scanlineStride;
+        private final int pixelStride;
+        private final int redOffset;
+        private final int greenOffset;
+        private final int blueOffset;
+
+        private ByteInterleaved(BufferedImage image) {
+            super(image.getWidth(), image.getHeight());
+            final Raster raster = image.getRaster();
+            final ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            final DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            data = buffer.getData();
+            scanlineStride = sm.getScanlineStride();
+            pixelStride = sm.getPixelStride();
+            base = buffer.getOffset()
+                   - raster.getSampleModelTranslateY()*scanlineStride - raster.getSampleModelTranslateX()*pixelStride;
+            final int[] bandOffsets = sm.getBandOffsets();
+            redOffset = bandOffsets[0];
+            greenOffset = bandOffsets[1];
+            blueOffset = bandOffsets[2];
+        }
+
+        @Override
+        public void readRow(int x, int y, int length, int[][] rgb) {
+            final int[] red = rgb[0];
+            final int[] green = rgb[1];
+            final int[] blue = rgb[2];
+            int index = base + y*scanlineStride + x*pixelStride;
+            for (int i = 0 ; i < length ; i++) {
+                red[i] = data[index + redOffset] & 0xFF;
+                green[i] = data[index + greenOffset] & 0xFF;
+                blue[i] = data[index + blueOffset] & 0xFF;
+                index += pixelStride;
+            }
+        }
+    }
+
+    /**
+     * TYPE_INT_RGB and TYPE_INT_ARGB, where the ints in the DataBuffer are the same as the ones from getRGB.
+     */
+    private static class IntPacked extends PixelAccess {
+        private final int[] data;
+        private final int base;
+        private final int scanlineStride;
+
+        private IntPacked(BufferedImage image) {
+            super(image.getWidth(), image.getHeight());
+            final Raster raster = image.getRaster();
+            final SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            final DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            data = buffer.getData();
+            scanlineStride = sm.getScanlineStride();
+            base = buffer.getOffset()
+                   - raster.getSampleModelTranslateY()*scanlineStride - raster.getSampleModelTranslateX();
+        }
+
+        @Override
+        public void readRow(int x, int y, int length, int[][] rgb) {
+            final int[] red = rgb[0];
+            final int[] green = rgb[1];
+            final int[] blue = rgb[2];
+            final int start = base + y*scanlineStride + x;
+            for (int i = 0 ; i < length ; i++) {
+                final int clr = data[start + i];
+                red[i] = (clr & 0x00ff0000) >> 16;
+                green[i] = (clr & 0x0000ff00) >> 8;
+                blue[i] = clr & 0x000000ff;
+            }
+        }
+    }
+
+    /**
+     * TYPE_BYTE_BINARY with 1 bit per pixel and 2 colours, which is the common representation of bilevel scans.
+     */
+    private static class ByteBinary extends PixelAccess {
+        private final byte[] data;
+        // Position of the first bit of row 0
+        private final long baseBit;
+        private final int scanlineStride;
+        private final int[] colors = new int[2];
+        private final int[] redLUT = new int[2];
+        private final int[] greenLUT = new int[2];
+        private final int[] blueLUT = new int[2];
+
+        private ByteBinary(BufferedImage image) {
+            super(image.getWidth(), image.getHeight());
+            final Raster raster = image.getRaster();
+            final MultiPixelPackedSampleModel sm = (MultiPixelPackedSampleModel) raster.getSampleModel();
+            final DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            data = buffer.getData();
+            scanlineStride = sm.getScanlineStride();
+            baseBit = (buffer.getOffset() - (long) raster.getSampleModelTranslateY()*scanlineStride) * 8
+                      + sm.getDataBitOffset() - raster.getSampleModelTranslateX();
+            final IndexColorModel cm = (IndexColorModel) image.getColorModel();
+            for (int i = 0 ; i < 2 ; i++) {
+                colors[i] = cm.getRGB(i);
+                redLUT[i] = (colors[i] & 0x00ff0000) >> 16;
+                greenLUT[i] = (colors[i] & 0x0000ff00) >> 8;
+                blueLUT[i] = colors[i] & 0x000000ff;
+            }
+        }
+
+        @Override
+        public boolean isBilevel() {
+            return true;
+        }
+
+        @Override
+        public boolean isGray() {
+            return redLUT[0] == greenLUT[0] && redLUT[0] == blueLUT[0] &&
+                   redLUT[1] == greenLUT[1] && redLUT[1] == blueLUT[1];
+        }
+
+        @Override
+        public int getBilevelColor(int bit) {
+            return colors[bit];
+        }
+
+        @Override
+        public void readRow(int x, int y, int length, int[][] rgb) {
+            final int[] red = rgb[0];
+            final int[] green = rgb[1];
+            final int[] blue = rgb[2];
+            long bit = baseBit + (long) y*scanlineStride*8 + x;
+            for (int i = 0 ; i < length ; i++, bit++) {
+                final int value = (data[(int) (bit >>> 3)] >>> (7 - (int) (bit & 7))) & 1;
+                red[i] = redLUT[value];
+                green[i] = greenLUT[value];
+                blue[i] = blueLUT[value];
+            }
+        }
+
+        @Override
+        public void readPackedRow(int y, long[] words) {
+            final long rowBit = baseBit + (long) y*scanlineStride*8;
+            final int firstByte = (int) (rowBit >>> 3);
+            final int shift = (int) (rowBit & 7);
+            final int rowBytes = (width + 7) / 8;
+            final int wordCount = (width + 63) / 64;
+            for (int w = 0 ; w < wordCount ; w++) {
+                long word = 0;
+                for (int b = w*8 ; b < w*8+8 ; b++) {
+                    int value = 0;
+                    if (b < rowBytes) {
+                        value = (data[firstByte + b] << shift) & 0xFF;
+                        if (shift != 0 && b*8 + 8 - shift < width) {
+                            value |= (data[firstByte + b + 1] & 0xFF) >>> (8 - shift);
+                        }
+                    }
+                    word = (word << 8) | value;
+                }
+                words[w] = word;
+            }
+            final int tailBits = width % 64;
+            if (tailBits != 0) {
+                words[wordCount-1] &= ~(-1L >>> tailBits);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+/**
+ * Fast check for exact x2 pixel replication, the trivial result of Nearest Neighbour upscaling.
+ * </p><p>
+ * Each row is packed into longs, with 64 pixels per long for bilevel images, 8 for grey and 2 for colour. Every
+ * pair of neighbouring columns in a row is compared by XORing the packed row with itself shifted a single pixel
+ * and every pair of neighbouring rows by XORing the packed rows, so 8 bytes are compared at a time. The mismatches
+ * are counted per offset: the pair (x, x+1) belongs to horizontal offset x%2 and the pair (y, y+1) to vertical
+ * offset y%2.
+ * </p><p>
+ * The image is replicated if exactly one horizontal and one vertical offset has no more than the tolerated number
+ * of mismatching pixels. If both offsets are clean, as for a flat image, the factor cannot be determined and the
+ * image is not considered replicated. The screen stops as soon as both offsets in a direction have too many
+ * mismatches, which for most images that are not replicated happens within the first few rows.
+ */
+public class ReplicationScreen {
+    public static final int DEFAULT_TOLERANCE = 0;
+
+    private final int tolerance;
+
+    public ReplicationScreen() {
+        this(DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * @param tolerance the number of mismatching pixels allowed for an offset, to accept stray edits.
+     */
+    public ReplicationScreen(int tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("The tolerance must be at least 0 but was " + tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationScreen(tolerance=" + tolerance + ")";
+    }
+
+    /**
+     * Screen the image for exact x2 pixel replication. The rows are read in increasing order, so this works with
+     * {@link BandedPixelAccess} too.
+     * @param pixels the image to screen.
+     * @return the outcome of the screen.
+     */
+    public Result screen(PixelAccess pixels) {
+        final int width = pixels.getWidth();
+        final int height = pixels.getHeight();
+        final long[] columnMismatches = new long[2];
+        final long[] rowMismatches = new long[2];
+        if (width < 3 || height < 3) {
+            return new Result(columnMismatches, rowMismatches, 0, height);
+        }
+        final int bits = pixels.isBilevel() ? 1 : pixels.isGray() ? 8 : 32;
+        final int words = (int) (((long) width * bits + 63) / 64);
+        final int[][] rgb = bits == 1 ? null : new int[3][width];
+        long[] previous = new long[words];
+        long[] current = new long[words];
+
+        // Lanes for pixels at even positions, with the first pixel in the most significant bits
+        long even = 0;
+        for (int lane = 0 ; lane < 64 ; lane += 2*bits) {
+            even |= ((1L << bits) - 1) << (64 - bits - lane);
+        }
+        final long laneLow = laneLow(bits);
+
+        int y = 0;
+        while (y < height) {
+            pack(pixels, y, bits, rgb, current);
+            countColumns(current, width, bits, even, laneLow, columnMismatches);
+            if (y > 0) {
+                rowMismatches[(y-1) & 1] += countRows(previous, current, laneLow, bits);
+            }
+            y++;
+            if ((columnMismatches[0] > tolerance && columnMismatches[1] > tolerance) ||
+                (rowMismatches[0] > tolerance && rowMismatches[1] > tolerance)) {
+                break;
+            }
+            long[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return new Result(columnMismatches, rowMismatches, y, height);
+    }
+
+    private static void pack(PixelAccess pixels, int y, int bits, int[][] rgb, long[] packed) {
+        if (bits == 1) {
+            pixels.readPackedRow(y, packed);
+            return;
+        }
+        pixels.readRow(y, rgb);
+        final int perWord = 64 / bits;
+        final int width = rgb[0].length;
+        int x = 0;
+        for (int w = 0 ; w < packed.length ; w++) {
+            long word = 0;
+            for (int i = 0 ; i < perWord ; i++, x++) {
+                word <<= bits;
+                if (x < width) {
+                    word |= bits == 8 ? rgb[0][x] : (rgb[0][x] << 16) | (rgb[1][x] << 8) | rgb[2][x];
+                }
+            }
+            packed[w] = word;
+        }
+    }
+
+    // Compares pixel x with pixel x+1 for all x < width-1
+    private static void countColumns(
+            long[] packed, int width, int bits, long even, long laneLow, long[] mismatches) {
+        final long pairs = width - 1L;
+        for (int w = 0 ; w < packed.length ; w++) {
+            final long first = (long) w * 64 / bits;
+            if (first >= pairs) {
+                break;
+            }
+            final long next = w+1 < packed.length ? packed[w+1] >>> (64 - bits) : 0;
+            long diff = packed[w] ^ ((packed[w] << bits) | next);
+            if (pairs - first < 64 / bits) {
+                diff &= ~(-1L >>> ((pairs - first) * bits));
+            }
+            if (diff != 0) {
+                mismatches[0] += countLanes(diff & even, bits, laneLow);
+                mismatches[1] += countLanes(diff & ~even, bits, laneLow);
+            }
+        }
+    }
+
+    // The padding after the last pixel is 0 in both rows
+    private static long countRows(long[] upper, long[] lower, long laneLow, int bits) {
+        long mismatches = 0;
+        for (int w = 0 ; w < upper.length ; w++) {
+            final long diff = upper[w] ^ lower[w];
+            if (diff != 0) {
+                mismatches += countLanes(diff, bits, laneLow);
+            }
+        }
+        return mismatches;
+    }
+
+    // The number of lanes with at least one bit set
+    private static int countLanes(long diff, int bits, long laneLow) {
+        for (int shift = 1 ; shift < bits ; shift <<= 1) {
+            diff |= diff >>> shift;
+        }
+        return Long.bitCount(diff & laneLow);
+    }
+
+    // The least significant bit of each lane
+    private static long laneLow(int bits) {
+        long low = 0;
+        for (int lane = 0 ; lane < 64 ; lane += bits) {
+            low |= 1L << lane;
+        }
+        return low;
+    }
+
+    /**
+     * The outcome of a screen.
+     */
+    public class Result {
+        private final long[] columnMismatches;
+        private final long[] rowMismatches;
+        private final int rowsExamined;
+        private final int height;
+
+        private Result(long[] columnMismatches, long[] rowMismatches, int rowsExamined, int height) {
+            this.columnMismatches = columnMismatches;
+            this.rowMismatches = rowMismatches;
+            this.rowsExamined = rowsExamined;
+            this.height = height;
+        }
+
+        /**
+         * @return true if the image is an exact x2 replication at {@link #getOffsetX()}, {@link #getOffsetY()}.
+         */
+        public boolean isReplicated() {
+            return rowsExamined == height && getOffsetX() != -1 && getOffsetY() != -1;
+        }
+
+        /**
+         * @return the only horizontal offset (0 or 1) with no more than the tolerated mismatches, else -1.
+         */
+        public int getOffsetX() {
+            return getCleanOffset(columnMismatches);
+        }
+
+        /**
+         * @return the only vertical offset (0 or 1) with no more than the tolerated mismatches, else -1.
+         */
+        public int getOffsetY() {
+            return getCleanOffset(rowMismatches);
+        }
+
+        private int getCleanOffset(long[] mismatches) {
+            final boolean clean0 = mismatches[0] <= tolerance;
+            final boolean clean1 = mismatches[1] <= tolerance;
+            return clean0 == clean1 ? -1 : clean0 ? 0 : 1;
+        }
+
+        /**
+         * @return the number of rows read before the screen finished or gave up.
+         */
+        public int getRowsExamined() {
+            return rowsExamined;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "Replication screen: %s after %d of %d rows, column mismatches %d/%d, row mismatches %d/%d",
+                    isReplicated() ? "x2 at offset (" + getOffsetX() + ", " + getOffsetY() + ")" : "not x2",
+                    rowsExamined, height, columnMismatches[0], columnMismatches[1],
+                    rowMismatches[0], rowMismatches[1]);
+        }
+    }
+}
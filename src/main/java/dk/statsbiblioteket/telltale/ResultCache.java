@@ -0,0 +1,342 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent store of analysis results, so that images that have not changed since the last run are answered
+ * without being decoded and analyzed.
+ * </p><p>
+ * The results are stored in an append-only log. Each record holds the key, the text and the typed values (in the
+ * {@link ResultWriter.Format#BINARY} format) of all results for an image, protected by a CRC. An index file holds a
+ * 64 bit hash of the key and the log offset for each record. It is memory mapped and loaded into a hash map when the
+ * cache is opened, so a lookup costs a hash map access and a single read from the log. Newer records for the same
+ * key replace older ones. The key is verified on lookup, so hash collisions only cost a miss.
+ * </p><p>
+ * The key is the canonical path, size and modification time of the image, optionally a SHA-256 of the content, and
+ * the {@link CompositeAnalyzer#getSignature() signature} of the analyzers. A new analyzer version or changed
+ * parameters thus give new keys and the old results are no longer used. They stay in the log, which can be deleted
+ * to reclaim the space.
+ * </p><p>
+ * Records that were only partly written, e.g. when the process was killed, are ignored. The log is locked while the
+ * cache is open, so only one process can use a cache folder at a time. The methods are
+ * synchronized, except {@link #getKey(File, String)} which can thus hash the content of images in parallel.
+ */
+public class ResultCache implements Closeable {
+    public static final String LOG = "results.log";
+    public static final String INDEX = "results.idx";
+
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final boolean hashContent;
+    private final FileChannel log;
+    private final FileChannel index;
+    private final FileLock lock;
+    private final Map<Long, Long> offsets = new HashMap<>();
+    private long logSize;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Open the cache in the folder, creating it if it does not exist.
+     * @param folder      the folder for the log and the index.
+     * @param hashContent if true, the key contains a hash of the content of the image, which catches changes that
+     *                    keep the size and modification time, at the cost of reading the full image.
+     * @throws IOException if the cache could not be opened or is used by another process.
+     */
+    public ResultCache(File folder, boolean hashContent) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create the cache folder '" + folder + "'");
+        }
+        this.hashContent = hashContent;
+        log = FileChannel.open(new File(folder, LOG).toPath(),
+                               StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lock = lock(log, folder);
+            index = FileChannel.open(new File(folder, INDEX).toPath(),
+                                     StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            log.close();
+            throw e;
+        }
+        logSize = log.size();
+        loadIndex();
+    }
+
+    // Two processes appending at their own end of the log would overwrite each other's records
+    private static FileLock lock(FileChannel log, File folder) throws IOException {
+        FileLock lock;
+        try {
+            lock = log.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null; // Held by this JVM
+        }
+        if (lock == null) {
+            throw new IOException("The cache '" + folder + "' is already in use by another cache instance or process");
+        }
+        return lock;
+    }
+
+    // Entries pointing past the end of the log and a partly written last entry are dropped
+    private void loadIndex() throws IOException {
+        final long entries = index.size() / INDEX_ENTRY_SIZE;
+        index.truncate(entries * INDEX_ENTRY_SIZE);
+        if (entries == 0) {
+            return;
+        }
+        final MappedByteBuffer mapped = index.map(FileChannel.MapMode.READ_ONLY, 0, entries * INDEX_ENTRY_SIZE);
+        for (long i = 0 ; i < entries ; i++) {
+            final long hash = mapped.getLong();
+            final long offset = mapped.getLong();
+            if (offset < logSize) {
+                offsets.put(hash, offset);
+            }
+        }
+    }
+
+    /**
+     * Calculate the key for the image. The key should be calculated before the image is analyzed, so that changes
+     * to the image during the analysis give a new key the next time.
+     * @param image     the image to get the key for.
+     * @param signature the signature of the analyzers, see {@link CompositeAnalyzer#getSignature()}.
+     * @return the key for the image.
+     * @throws IOException if the path could not be resolved or the image could not be read for hashing.
+     */
+    public String getKey(File image, String signature) throws IOException {
+        StringBuilder key = new StringBuilder();
+        key.append(image.getCanonicalPath()).append('\n');
+        key.append(image.length()).append('\n');
+        key.append(image.lastModified()).append('\n');
+        if (hashContent) {
+            key.append(hash(image)).append('\n');
+        }
+        key.append(signature);
+        return key.toString();
+    }
+
+    private static String hash(File image) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported by all JVMs", e);
+        }
+        final byte[] buffer = new byte[65536];
+        try (InputStream in = new FileInputStream(image)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b: digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @param key   the key for the image, from {@link #getKey(File, String)}.
+     * @param image the image that the results should refer to.
+     * @return the stored results for the key, null if there are none.
+     * @throws IOException if the log could not be read.
+     */
+    public synchronized List<AnalysisResult> get(String key, File image) throws IOException {
+        final Long offset = offsets.get(hash(key));
+        final List<AnalysisResult> results = offset == null ? null : read(offset, key, image);
+        if (results == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return results;
+    }
+
+    /**
+     * Store the results for an image, replacing earlier results for the key.
+     * @param key     the key for the image, from {@link #getKey(File, String)}.
+     * @param results all the results for the image.
+     * @throws IOException if the results could not be written.
+     */
+    public synchronized void put(String key, List<AnalysisResult> results) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeUTF(key);
+        out.writeInt(results.size());
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        for (AnalysisResult result: results) {
+            final byte[] text = result.getText().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(text.length);
+            out.write(text);
+            binary.reset();
+            try (ResultWriter writer = ResultWriter.create(ResultWriter.Format.BINARY, binary)) {
+                writer.write(result);
+            }
+            binary.writeTo(out);
+        }
+        out.flush();
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.size());
+        record.putInt(payload.size()).putInt((int) crc.getValue()).put(payload.toByteArray());
+        record.flip();
+        final long offset = logSize;
+        writeFully(log, record, offset);
+        logSize += record.limit();
+
+        final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putLong(hash(key)).putLong(offset);
+        entry.flip();
+        writeFully(index, entry, index.size());
+        offsets.put(hash(key), offset);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // null if the record is damaged or for another key with the same hash
+    private List<AnalysisResult> read(long offset, String key, File image) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        if (!readFully(header, offset)) {
+            return null;
+        }
+        final int length = header.getInt(0);
+        if (length < 0 || offset + RECORD_HEADER_SIZE + length > logSize) {
+            return null;
+        }
+        final ByteBuffer payload = ByteBuffer.allocate(length);
+        if (!readFully(payload, offset + RECORD_HEADER_SIZE)) {
+            return null;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        if ((int) crc.getValue() != header.getInt(4)) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array()));
+        if (!key.equals(in.readUTF())) {
+            return null;
+        }
+        final int count = in.readInt();
+        final List<AnalysisResult> results = new ArrayList<>(count);
+        for (int i = 0 ; i < count ; i++) {
+            final byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            results.add(ResultWriter.readBinary(in, image, new StoredText(new String(text, StandardCharsets.UTF_8))));
+        }
+        return results;
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = log.read(buffer, position);
+            if (read == -1) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    // 64 bit FNV-1a
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b: key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the number of lookups that were answered from the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that were not in the cache.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of keys in the cache, including those of outdated images and analyzers.
+     */
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    /**
+     * Writes all changes to the storage device and closes the cache.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            log.force(false);
+            index.force(false);
+        } finally {
+            try {
+                log.close();
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    private static class StoredText implements AnalysisResult.Renderer {
+        private final String text;
+
+        private StoredText(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String render(AnalysisResult result) {
+            return text;
+        }
+    }
+}
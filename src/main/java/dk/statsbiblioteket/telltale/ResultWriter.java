@@ -0,0 +1,391 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Buffered streaming output of {@link AnalysisResult}s in a machine readable format, or as the human readable text.
+ * </p><p>
+ * {@link Format#JSONL} writes a JSON object per result and line. {@link Format#CSV} writes a row per candidate and
+ * metric (long format), so that all rows have the same columns regardless of the analyzer. {@link Format#BINARY}
+ * writes compact records that can be read back with {@link #readBinary(DataInputStream)}. None of these include
+ * the text of the results.
+ * </p><p>
+ * The output is buffered: call {@link #flush()} to push it to the underlying stream. This class is not thread safe.
+ */
+public abstract class ResultWriter implements Closeable, Flushable {
+    public enum Format {TEXT, JSONL, CSV, BINARY}
+
+    public static final int BINARY_VERSION = 1;
+
+    /**
+     * @param format the output format.
+     * @param out    the destination. It is closed when the writer is closed.
+     * @return a writer for the format.
+     */
+    public static ResultWriter create(Format format, OutputStream out) {
+        switch (format) {
+            case TEXT: return new TextWriter(out);
+            case JSONL: return new JsonLinesWriter(out);
+            case CSV: return new CsvWriter(out);
+            case BINARY: return new BinaryWriter(out);
+            default: throw new IllegalArgumentException("Unknown format " + format);
+        }
+    }
+
+    /**
+     * @param format the name of a format, case insensitive.
+     * @return the format.
+     * @throws IllegalArgumentException if there is no format with the name.
+     */
+    public static Format getFormat(String format) {
+        return Format.valueOf(format.toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @param result the result to write.
+     * @throws IOException if the result could not be written.
+     */
+    public abstract void write(AnalysisResult result) throws IOException;
+
+    /**
+     * Write all results in order.
+     * @throws IOException if a result could not be written.
+     */
+    public void write(List<AnalysisResult> results) throws IOException {
+        for (AnalysisResult result: results) {
+            write(result);
+        }
+    }
+
+    /**
+     * Read a result written in {@link Format#BINARY}. The text of the result is rendered from the typed values with
+     * {@link AnalysisResult#GENERIC_RENDERER}.
+     * @param in the stream to read from.
+     * @return the next result, null at the end of the stream.
+     * @throws IOException if the stream could not be read or is not in the binary format.
+     */
+    public static AnalysisResult readBinary(DataInputStream in) throws IOException {
+        return readBinary(in, null, null);
+    }
+
+    /**
+     * @param image    if not null, the result is for this image instead of the one in the record.
+     * @param renderer produces the text for the result. null means {@link AnalysisResult#GENERIC_RENDERER}.
+     * @see #readBinary(DataInputStream)
+     */
+    static AnalysisResult readBinary(DataInputStream in, File image, AnalysisResult.Renderer renderer)
+            throws IOException {
+        final int version = in.read();
+        if (version == -1) {
+            return null;
+        }
+        if (version != BINARY_VERSION) {
+            throw new IOException("Expected a binary result of version " + BINARY_VERSION + " but got " + version);
+        }
+        try {
+            final String path = in.readUTF();
+            final AnalysisResult result = new AnalysisResult(
+                    image != null ? image : path.isEmpty() ? null : new File(path), in.readUTF(), renderer);
+            final String[] metricNames = new String[in.readUnsignedShort()];
+            for (int i = 0 ; i < metricNames.length ; i++) {
+                metricNames[i] = in.readUTF();
+            }
+            result.setMetricNames(metricNames);
+            result.setUpscale(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+            result.setScore(in.readDouble()).setContrast(in.readDouble()).setFractionExamined(in.readDouble());
+            result.setNanos(in.readLong());
+            final int candidates = in.readInt();
+            for (int c = 0 ; c < candidates ; c++) {
+                final double factorX = in.readDouble();
+                final double factorY = in.readDouble();
+                final double offsetX = in.readDouble();
+                final double offsetY = in.readDouble();
+                final double[] metrics = new double[metricNames.length];
+                for (int m = 0 ; m < metrics.length ; m++) {
+                    metrics[m] = in.readDouble();
+                }
+                result.addCandidate(factorX, factorY, offsetX, offsetY, metrics);
+            }
+            return result;
+        } catch (EOFException e) {
+            throw new IOException("The binary result was truncated", e);
+        }
+    }
+
+    // Writes the text of the results as Detect always did, separated by empty lines
+    private static class TextWriter extends ResultWriter {
+        private final Writer out;
+
+        private TextWriter(OutputStream out) {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()));
+        }
+
+        @Override
+        public void write(AnalysisResult result) throws IOException {
+            out.write(result.toString());
+            out.write(System.lineSeparator());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private abstract static class CharacterWriter extends ResultWriter {
+        protected final Writer out;
+        protected final StringBuilder line = new StringBuilder();
+
+        private CharacterWriter(OutputStream out) {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class JsonLinesWriter extends CharacterWriter {
+        private JsonLinesWriter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(AnalysisResult result) throws IOException {
+            line.setLength(0);
+            line.append("{\"image\":");
+            appendString(result.getImage() == null ? null : result.getImage().getPath());
+            line.append(",\"analyzer\":");
+            appendString(result.getTestName());
+            line.append(",\"upscaled\":").append(result.isUpscaled());
+            appendNumber(",\"factorX\":", result.getFactorX());
+            appendNumber(",\"factorY\":", result.getFactorY());
+            appendNumber(",\"offsetX\":", result.getOffsetX());
+            appendNumber(",\"offsetY\":", result.getOffsetY());
+            appendNumber(",\"score\":", result.getScore());
+            appendNumber(",\"contrast\":", result.getContrast());
+            appendNumber(",\"fractionExamined\":", result.getFractionExamined());
+            line.append(",\"nanos\":").append(result.getNanos());
+            line.append(",\"metrics\":[");
+            final String[] metricNames = result.getMetricNames();
+            for (int i = 0 ; i < metricNames.length ; i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                appendString(metricNames[i]);
+            }
+            line.append("],\"candidates\":[");
+            boolean first = true;
+            for (AnalysisResult.Candidate candidate: result.getCandidates()) {
+                line.append(first ? "{" : ",{");
+                first = false;
+                appendNumber("\"factorX\":", candidate.getFactorX());
+                appendNumber(",\"factorY\":", candidate.getFactorY());
+                appendNumber(",\"offsetX\":", candidate.getOffsetX());
+                appendNumber(",\"offsetY\":", candidate.getOffsetY());
+                line.append(",\"values\":[");
+                for (int i = 0 ; i < metricNames.length ; i++) {
+                    appendNumber(i == 0 ? "" : ",", candidate.getMetric(i));
+                }
+                line.append("]}");
+            }
+            line.append("]}\n");
+            out.append(line);
+        }
+
+        // NaN and infinity are not valid JSON numbers
+        private void appendNumber(String prefix, double value) {
+            line.append(prefix);
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                line.append("null");
+            } else {
+                line.append(value);
+            }
+        }
+
+        private void appendString(String value) {
+            if (value == null) {
+                line.append("null");
+                return;
+            }
+            line.append('"');
+            for (int i = 0 ; i < value.length() ; i++) {
+                final char c = value.charAt(i);
+                switch (c) {
+                    case '"': line.append("\\\""); break;
+                    case '\\': line.append("\\\\"); break;
+                    case '\n': line.append("\\n"); break;
+                    case '\r': line.append("\\r"); break;
+                    case '\t': line.append("\\t"); break;
+                    default: {
+                        if (c < 0x20) {
+                            line.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            line.append(c);
+                        }
+                    }
+                }
+            }
+            line.append('"');
+        }
+    }
+
+    private static class CsvWriter extends CharacterWriter {
+        private static final String HEADER = "image,analyzer,factorX,factorY,offsetX,offsetY,score,contrast,"
+                + "fractionExamined,nanos,candidate,candidateFactorX,candidateFactorY,candidateOffsetX,"
+                + "candidateOffsetY,metric,value\n";
+
+        private boolean headerWritten = false;
+
+        private CsvWriter(OutputStream out) {
+            super(out);
+        }
+
+        // A row per candidate and metric, or a single row without candidate values if there are no candidates
+        @Override
+        public void write(AnalysisResult result) throws IOException {
+            if (!headerWritten) {
+                out.write(HEADER);
+                headerWritten = true;
+            }
+            line.setLength(0);
+            appendString(result.getImage() == null ? "" : result.getImage().getPath());
+            appendString(result.getTestName());
+            appendNumber(result.getFactorX());
+            appendNumber(result.getFactorY());
+            appendNumber(result.getOffsetX());
+            appendNumber(result.getOffsetY());
+            appendNumber(result.getScore());
+            appendNumber(result.getContrast());
+            appendNumber(result.getFractionExamined());
+            line.append(result.getNanos()).append(',');
+            final String prefix = line.toString();
+            final List<AnalysisResult.Candidate> candidates = result.getCandidates();
+            final String[] metricNames = result.getMetricNames();
+            if (candidates.isEmpty() || metricNames.length == 0) {
+                out.append(prefix).append(",,,,,,\n");
+                return;
+            }
+            for (int c = 0 ; c < candidates.size() ; c++) {
+                final AnalysisResult.Candidate candidate = candidates.get(c);
+                for (int m = 0 ; m < metricNames.length ; m++) {
+                    line.setLength(0);
+                    line.append(prefix).append(c).append(',');
+                    appendNumber(candidate.getFactorX());
+                    appendNumber(candidate.getFactorY());
+                    appendNumber(candidate.getOffsetX());
+                    appendNumber(candidate.getOffsetY());
+                    appendString(metricNames[m]);
+                    appendNumber(candidate.getMetric(m));
+                    line.setCharAt(line.length()-1, '\n');
+                    out.append(line);
+                }
+            }
+        }
+
+        // NaN is written as an empty cell
+        private void appendNumber(double value) {
+            if (!Double.isNaN(value)) {
+                line.append(value);
+            }
+            line.append(',');
+        }
+
+        private void appendString(String value) {
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0) {
+                line.append('"').append(value.replace("\"", "\"\"")).append('"');
+            } else {
+                line.append(value);
+            }
+            line.append(',');
+        }
+    }
+
+    private static class BinaryWriter extends ResultWriter {
+        private final DataOutputStream out;
+
+        private BinaryWriter(OutputStream out) {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+        }
+
+        @Override
+        public void write(AnalysisResult result) throws IOException {
+            out.write(BINARY_VERSION);
+            out.writeUTF(result.getImage() == null ? "" : result.getImage().getPath());
+            out.writeUTF(result.getTestName());
+            final String[] metricNames = result.getMetricNames();
+            out.writeShort(metricNames.length);
+            for (String name: metricNames) {
+                out.writeUTF(name);
+            }
+            out.writeDouble(result.getFactorX());
+            out.writeDouble(result.getFactorY());
+            out.writeDouble(result.getOffsetX());
+            out.writeDouble(result.getOffsetY());
+            out.writeDouble(result.getScore());
+            out.writeDouble(result.getContrast());
+            out.writeDouble(result.getFractionExamined());
+            out.writeLong(result.getNanos());
+            out.writeInt(result.getCandidates().size());
+            for (AnalysisResult.Candidate candidate: result.getCandidates()) {
+                out.writeDouble(candidate.getFactorX());
+                out.writeDouble(candidate.getFactorY());
+                out.writeDouble(candidate.getOffsetX());
+                out.writeDouble(candidate.getOffsetY());
+                for (int m = 0 ; m < metricNames.length ; m++) {
+                    out.writeDouble(candidate.getMetric(m));
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Feeds the rows of an image to a number of {@link RowVisitor}s, reading each row only once.
+ * </p><p>
+ * The rows are read into a {@link RowWindow} that is large enough for the visitor needing the most context.
+ * The image is split into horizontal strips of rows, which are processed independently on the pool, or one after
+ * the other on the calling thread if there is no pool. The partial results for the strips are merged in a fixed
+ * order that only depends on the number of strips, so the result is the same with or without a pool and for any
+ * number of threads. It might differ in the last bits for different strip heights.
+ */
+public class RowTraversal {
+    public static final int DEFAULT_STRIP_HEIGHT = 240;
+
+    private final ForkJoinPool pool;
+    private final int stripHeight;
+    private final boolean grayDetection;
+
+    /**
+     * Create a sequential traversal with strips of {@link #DEFAULT_STRIP_HEIGHT} rows.
+     */
+    public RowTraversal() {
+        this(null, DEFAULT_STRIP_HEIGHT);
+    }
+
+    /**
+     * @param pool        the pool to run the strips on. null means that they are run on the calling thread.
+     * @param stripHeight the number of rows in each strip. This is rounded up to the strip alignment of the
+     *                    visitors.
+     */
+    public RowTraversal(ForkJoinPool pool, int stripHeight) {
+        this(pool, stripHeight, true);
+    }
+
+    /**
+     * @param pool          the pool to run the strips on. null means that they are run on the calling thread.
+     * @param stripHeight   the number of rows in each strip. This is rounded up to the strip alignment of the
+     *                      visitors.
+     * @param grayDetection if true, rows with the same red, green and blue values are marked as grey, so that only
+     *                      one channel is processed for them. The results are the same either way.
+     */
+    public RowTraversal(ForkJoinPool pool, int stripHeight, boolean grayDetection) {
+        if (stripHeight < 1) {
+            throw new IllegalArgumentException("The strip height must be at least 1 but was " + stripHeight);
+        }
+        this.pool = pool;
+        this.stripHeight = stripHeight;
+        this.grayDetection = grayDetection;
+    }
+
+    /**
+     * Visit all rows in the image with a single visitor.
+     * @param pixels  the image to traverse.
+     * @param visitor the visitor to feed the rows to.
+     * @return the merged partial result for all rows.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T run(PixelAccess pixels, RowVisitor<T> visitor) {
+        return (T) run(pixels, Collections.singletonList(visitor))[0];
+    }
+
+    /**
+     * Visit all rows in the image with all the given visitors.
+     * @param pixels   the image to traverse.
+     * @param visitors the visitors to feed the rows to.
+     * @return the merged partial results for all rows, in the same order as the visitors.
+     */
+    public Object[] run(PixelAccess pixels, List<? extends RowVisitor<?>> visitors) {
+        final Sweep sweep = new Sweep(visitors, grayDetection);
+        final int height = sweep.alignStripHeight(stripHeight);
+        final int strips = (pixels.getHeight() + height - 1) / height;
+        if (strips <= 1) {
+            return sweep.sweep(pixels, 0, pixels.getHeight());
+        }
+        if (pool == null || !pixels.isConcurrent()) {
+            return sweep.sweepStrips(pixels, 0, pixels.getHeight(), height);
+        }
+        return pool.invoke(new StripTask(pixels, sweep, height, 0, strips));
+    }
+
+    /**
+     * Visit a range of rows in the image with a single visitor, sequentially. The range is split into strips from
+     * {@code fromRow}, so the result for the full image is the same as from {@link #run(PixelAccess, RowVisitor)}.
+     * @param pixels  the image to traverse.
+     * @param visitor the visitor to feed the rows to.
+     * @param fromRow the first row to visit. The context rows above it are read, but not visited.
+     * @param toRow   the row after the last row to visit.
+     * @return the partial result for the rows.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T run(PixelAccess pixels, RowVisitor<T> visitor, int fromRow, int toRow) {
+        final Sweep sweep = new Sweep(Collections.singletonList(visitor), grayDetection);
+        return (T) sweep.sweepStrips(pixels, fromRow, toRow, sweep.alignStripHeight(stripHeight))[0];
+    }
+
+    /**
+     * @param visitor   the visitor that produced the result.
+     * @param imageFile the image that has been visited.
+     * @param result    the merged result from {@link #run(PixelAccess, List)} for the visitor.
+     * @return the analysis from {@link RowVisitor#finish(File, Object)}.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> AnalysisResult finish(RowVisitor<T> visitor, File imageFile, Object result) {
+        return visitor.finish(imageFile, (T) result);
+    }
+
+    // The visitors as one, with partial results as arrays of the partial results for the visitors
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static class Sweep {
+        private final RowVisitor[] visitors;
+        private final int contextRows;
+        private final int alignment;
+        private final boolean grayDetection;
+
+        private Sweep(List<? extends RowVisitor<?>> visitors, boolean grayDetection) {
+            this.grayDetection = grayDetection;
+            this.visitors = visitors.toArray(new RowVisitor[visitors.size()]);
+            int contextRows = 0;
+            int alignment = 1;
+            for (RowVisitor visitor: this.visitors) {
+                contextRows = Math.max(contextRows, visitor.getContextRows());
+                alignment = Stats.lcm(alignment, visitor.getStripAlignment());
+            }
+            this.contextRows = contextRows;
+            this.alignment = alignment;
+        }
+
+        private int alignStripHeight(int stripHeight) {
+            return (stripHeight + alignment - 1) / alignment * alignment;
+        }
+
+        // All elements whose bottom row is within the range are processed. Rows above are read as context
+        private Object[] sweep(PixelAccess pixels, int fromRow, int toRow) {
+            return sweep(pixels, new RowWindow(pixels, contextRows+1, grayDetection), Math.max(0, fromRow-contextRows),
+                         fromRow, toRow);
+        }
+
+        // The window must hold the rows above readRow, so that it can continue from a previous sweep
+        private Object[] sweep(PixelAccess pixels, RowWindow window, int readRow, int fromRow, int toRow) {
+            final Object[] partials = new Object[visitors.length];
+            for (int i = 0 ; i < visitors.length ; i++) {
+                partials[i] = visitors[i].begin(pixels.getWidth(), pixels.getHeight());
+            }
+            for (int y = readRow ; y < toRow ; y++) {
+                window.read(y);
+                if (y < fromRow) { // Context for the first rows in the strip
+                    continue;
+                }
+                for (int i = 0 ; i < visitors.length ; i++) {
+                    visitors[i].visit(window, y, partials[i]);
+                }
+            }
+            return partials;
+        }
+
+        // The strips are visited in order with a single window, so that each row is read only once, and the
+        // partials are merged with the same tree as StripTask
+        private Object[] sweepStrips(PixelAccess pixels, int fromRow, int toRow, int stripHeight) {
+            final int strips = (toRow - fromRow + stripHeight - 1) / stripHeight;
+            if (strips <= 1) {
+                return sweep(pixels, fromRow, toRow);
+            }
+            final RowWindow window = new RowWindow(pixels, contextRows+1, grayDetection);
+            return sweepStrips(pixels, window, fromRow, toRow, stripHeight, 0, strips);
+        }
+
+        private Object[] sweepStrips(PixelAccess pixels, RowWindow window, int fromRow, int toRow, int stripHeight,
+                                     int fromStrip, int toStrip) {
+            if (toStrip - fromStrip == 1) {
+                final int stripStart = fromRow + fromStrip*stripHeight;
+                final int readRow = fromStrip == 0 ? Math.max(0, fromRow-contextRows) : stripStart;
+                return sweep(pixels, window, readRow, stripStart, Math.min(toRow, stripStart+stripHeight));
+            }
+            final int middle = (fromStrip + toStrip) / 2;
+            Object[] upperPartials = sweepStrips(pixels, window, fromRow, toRow, stripHeight, fromStrip, middle);
+            Object[] lowerPartials = sweepStrips(pixels, window, fromRow, toRow, stripHeight, middle, toStrip);
+            merge(upperPartials, lowerPartials);
+            return upperPartials;
+        }
+
+        private void merge(Object[] target, Object[] source) {
+            for (int i = 0 ; i < visitors.length ; i++) {
+                visitors[i].merge(target[i], source[i]);
+            }
+        }
+    }
+
+    // Splits the strips in halves until there is only 1 left. The merge tree only depends on the number of strips
+    private static class StripTask extends RecursiveTask<Object[]> {
+        private static final long serialVersionUID = -8462189165233426712L;
+        private final PixelAccess pixels;
+        private final Sweep sweep;
+        private final int stripHeight;
+        private final int fromStrip;
+        private final int toStrip;
+
+        private StripTask(PixelAccess pixels, Sweep sweep, int stripHeight, int fromStrip, int toStrip) {
+            this.pixels = pixels;
+            this.sweep = sweep;
+            this.stripHeight = stripHeight;
+            this.fromStrip = fromStrip;
+            this.toStrip = toStrip;
+        }
+
+        @Override
+        protected Object[] compute() {
+            if (toStrip - fromStrip == 1) {
+                return sweep.sweep(pixels, fromStrip*stripHeight, Math.min(pixels.getHeight(), toStrip*stripHeight));
+            }
+            final int middle = (fromStrip + toStrip) / 2;
+            StripTask upper = new StripTask(pixels, sweep, stripHeight, fromStrip, middle);
+            StripTask lower = new StripTask(pixels, sweep, stripHeight, middle, toStrip);
+            upper.fork();
+            Object[] lowerPartials = lower.compute();
+            Object[] upperPartials = upper.join();
+            sweep.merge(upperPartials, lowerPartials);
+            return upperPartials;
+        }
+    }
+}
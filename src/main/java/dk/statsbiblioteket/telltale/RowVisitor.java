@@ -0,0 +1,76 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import java.io.File;
+
+/**
+ * Push-style analysis of an image. Instead of reading pixels itself, the visitor is handed the rows of the image
+ * one at a time by a {@link RowTraversal}, which allows a single read of the pixels to feed any number of visitors.
+ * </p><p>
+ * The phases are
+ * <ol>
+ *   <li>{@link #begin(int, int)} creates an empty partial result for a strip of rows.</li>
+ *   <li>{@link #visit(RowWindow, int, Object)} is called for each row in the strip, top to bottom.</li>
+ *   <li>{@link #merge(Object, Object)} combines the partial results for neighbouring strips.</li>
+ *   <li>{@link #finish(File, Object)} produces the analysis from the partial result for all rows.</li>
+ * </ol>
+ * The visitor itself must be stateless, as strips can be processed in parallel. Buffers needed during the visits
+ * belong in the partial result.
+ * @param <T> the partial result.
+ */
+public interface RowVisitor<T> {
+    /**
+     * @return the number of rows above the visited row that must be available from the {@link RowWindow}.
+     */
+    int getContextRows();
+
+    /**
+     * Strips are aligned to this number of rows, which should be the least common multiple of the heights of
+     * the block grids used by the visitor.
+     * @return the number of rows that strip heights must be a multiple of.
+     */
+    int getStripAlignment();
+
+    /**
+     * @param width  the width of the image.
+     * @param height the height of the image.
+     * @return an empty partial result.
+     */
+    T begin(int width, int height);
+
+    /**
+     * Process all elements (blocks, samples etc.) whose bottom row is {@code y}. The rows from
+     * {@code y-getContextRows()} to {@code y} (where they exist) are available from the window.
+     * @param rows    the most recently read rows of the image.
+     * @param y       the row to visit.
+     * @param partial the sums for the elements are added to this.
+     */
+    void visit(RowWindow rows, int y, T partial);
+
+    /**
+     * Add the sums from source to target.
+     * @param target the partial result for the rows just above the rows for source.
+     * @param source the partial result for the rows just below the rows for target.
+     */
+    void merge(T target, T source);
+
+    /**
+     * @param imageFile the image that has been visited.
+     * @param result    the merged partial results for all rows in the image.
+     * @return the analysis of the image.
+     */
+    AnalysisResult finish(File imageFile, T result);
+}
@@ -0,0 +1,159 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+/**
+ * The most recently read rows of an image, shared by all {@link RowVisitor}s in a {@link RowTraversal}.
+ * The rows are delivered as separate red, green and blue channel values, as {@code row[channel][x]}.
+ * </p><p>
+ * Rows where all pixels have the same red, green and blue values are marked as grey, so that visitors can process
+ * only the red channel for them.
+ * </p><p>
+ * For bilevel images, the rows are read as packed bits and only expanded to channel values if a visitor asks for
+ * them with {@link #getRow(int)}.
+ */
+public final class RowWindow {
+    private final PixelAccess pixels;
+    private final boolean detectGray;
+    private final boolean grayPixels;
+    private final int[][][] ring;
+    private final boolean[] gray;
+    private final long[][] packed;
+    // For bilevel images: The row held in the slot and whether it has been expanded to channel values
+    private final int[] rows;
+    private final boolean[] expanded;
+
+    /**
+     * @param pixels     the source of the rows.
+     * @param size       the number of rows to keep.
+     * @param detectGray if false, no rows are marked as grey.
+     */
+    RowWindow(PixelAccess pixels, int size, boolean detectGray) {
+        this.pixels = pixels;
+        this.detectGray = detectGray;
+        grayPixels = pixels.isGray();
+        ring = new int[size][3][pixels.getWidth()];
+        gray = new boolean[size];
+        if (pixels.isBilevel()) {
+            packed = new long[size][(pixels.getWidth()+63)/64];
+            rows = new int[size];
+            expanded = new boolean[size];
+        } else {
+            packed = null;
+            rows = null;
+            expanded = null;
+        }
+    }
+
+    // Reads the row, replacing the row size rows above it
+    void read(int y) {
+        final int index = y % ring.length;
+        if (packed != null) {
+            pixels.readPackedRow(y, packed[index]);
+            rows[index] = y;
+            expanded[index] = false;
+            gray[index] = detectGray && grayPixels;
+            return;
+        }
+        pixels.readRow(y, ring[index]);
+        gray[index] = detectGray && (grayPixels || isGray(ring[index]));
+    }
+
+    private static boolean isGray(int[][] row) {
+        final int[] red = row[0];
+        final int[] green = row[1];
+        final int[] blue = row[2];
+        for (int x = 0 ; x < red.length ; x++) {
+            if (red[x] != green[x] || red[x] != blue[x]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param y a row that is at most {@link #getSize()}-1 rows above the last read row.
+     * @return the channel values for the row as {@code row[channel][x]}. Must not be modified.
+     */
+    public int[][] getRow(int y) {
+        final int index = y % ring.length;
+        if (packed != null && !expanded[index]) {
+            pixels.readRow(rows[index], ring[index]);
+            expanded[index] = true;
+        }
+        return ring[index];
+    }
+
+    /**
+     * @return true if the rows are available as packed bits from {@link #getPackedRow(int)}.
+     */
+    public boolean isBilevel() {
+        return packed != null;
+    }
+
+    /**
+     * @param y a row that is at most {@link #getSize()}-1 rows above the last read row.
+     * @return the row as packed bits, as described in {@link PixelAccess#readPackedRow(int, long[])}.
+     *         Must not be modified.
+     */
+    public long[] getPackedRow(int y) {
+        return packed[y % ring.length];
+    }
+
+    /**
+     * @param bit 0 or 1.
+     * @return the sRGB colour for the bit value in packed rows.
+     */
+    public int getBilevelColor(int bit) {
+        return pixels.getBilevelColor(bit);
+    }
+
+    /**
+     * @param y a row that is at most {@link #getSize()}-1 rows above the last read row.
+     * @return true if red, green and blue are the same for all pixels in the row.
+     */
+    public boolean isGray(int y) {
+        return gray[y % ring.length];
+    }
+
+    /**
+     * @param fromRow the first row (inclusive), at most {@link #getSize()}-1 rows above the last read row.
+     * @param toRow   the last row (exclusive).
+     * @return 1 if all rows in the range are grey, else 3. This is the number of channels that must be processed.
+     */
+    public int getBands(int fromRow, int toRow) {
+        for (int y = fromRow ; y < toRow ; y++) {
+            if (!gray[y % ring.length]) {
+                return 3;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return the number of rows available.
+     */
+    public int getSize() {
+        return ring.length;
+    }
+
+    public int getWidth() {
+        return pixels.getWidth();
+    }
+
+    public int getHeight() {
+        return pixels.getHeight();
+    }
+}
@@ -21,6 +21,42 @@ package dk.statsbiblioteket.telltale;
 public class Stats {
 
 
+    /**
+     * Closed form of {@link #standardDeviation(long[])} for 2 values, giving the exact same result without
+     * allocating an array.
+     * @return the standard deviation of the values.
+     */
+    public static double standardDeviation(long a, long b) {
+        final double mean = 1.0 * (a + b) / 2;
+        final double diffA = mean - a;
+        final double diffB = mean - b;
+        return Math.sqrt(diffA*diffA + diffB*diffB);
+    }
+    /**
+     * Closed form of {@link #standardDeviation(long[])} for 4 values, giving the exact same result without
+     * allocating an array.
+     * @return the standard deviation of the values.
+     */
+    public static double standardDeviation(long a, long b, long c, long d) {
+        final double mean = 1.0 * (a + b + c + d) / 4;
+        final double diffA = mean - a;
+        final double diffB = mean - b;
+        final double diffC = mean - c;
+        final double diffD = mean - d;
+        return Math.sqrt((diffA*diffA + diffB*diffB + diffC*diffC + diffD*diffD) / 3);
+    }
+    /**
+     * Closed form of {@link #standardDeviation(double[])} for 2 values, giving the exact same result without
+     * allocating an array.
+     * @return the standard deviation of the values.
+     */
+    public static double standardDeviation(double a, double b) {
+        final double mean = (a + b) / 2;
+        final double diffA = mean - a;
+        final double diffB = mean - b;
+        return Math.sqrt(diffA*diffA + diffB*diffB);
+    }
+
     /**
      * @param vals the values to process.
      * @return the standard deviation of the values.
@@ -28,6 +64,25 @@ public class Stats {
     public static double standardDeviation(double[] vals) {
         return Math.sqrt(variance(vals, 0, vals.length));
     }
+    /**
+     * A lower bound for {@link #standardDeviation(double[])} of count values when only some of them are known.
+     * The squared differences from the mean of all values are at least those from the mean of the known values.
+     * @param count the total number of values.
+     * @param known the known values.
+     * @return the smallest possible standard deviation of the values.
+     */
+    public static double minStandardDeviation(int count, double... known) {
+        if (known.length < 2) {
+            return 0;
+        }
+        final double mean = mean(known, 0, known.length);
+        double squareDiffSum = 0.0;
+        for (int i = 0 ; i < known.length ; i++) {
+            final double diff = mean - known[i];
+            squareDiffSum += diff*diff;
+        }
+        return Math.sqrt(squareDiffSum / (count-1));
+    }
     /**
      * @param vals the values to process.
      * @return the standard deviation of the values.
@@ -54,6 +109,29 @@ public class Stats {
         return Math.sqrt(variance);
     }
 
+    /**
+     * Calculates the standard deviation of values in the range 0 to {@code counts.length-1} in constant memory.
+     * The result is the same as {@link #standardDeviation(long[])} for the values themselves, except for rounding
+     * errors from summing in another order.
+     * @param counts counts[value] is the number of times the value occurs.
+     * @return the standard deviation of the values.
+     */
+    public static double standardDeviationFromHistogram(long[] counts) {
+        long n = 0;
+        long sum = 0;
+        for (int value = 0 ; value < counts.length ; value++) {
+            n += counts[value];
+            sum += value*counts[value];
+        }
+        final double mean = 1.0 * sum / n;
+        double squareDiffSum = 0.0;
+        for (int value = 0 ; value < counts.length ; value++) {
+            final double diff = mean - value;
+            squareDiffSum += diff*diff*counts[value];
+        }
+        return Math.sqrt(squareDiffSum / (n-1));
+    }
+
     public static double variance(double[] vals) {
         return variance(vals, 0, vals.length);
     }
@@ -182,6 +260,15 @@ public class Stats {
     public static long max(long... vals) {
         return max(vals, 0, vals.length);
     }
+    /**
+     * Same as {@link #max(double[])} with 3 values, without allocating an array.
+     * @return the maximum of the values.
+     */
+    public static double max(double a, double b, double c) {
+        double max = a;
+        max = b > max ? b : max;
+        return c > max ? c : max;
+    }
     /**
      * @param vals the values to process.
      * @return the maximum of the values.
@@ -216,4 +303,209 @@ public class Stats {
         return max;
     }
 
+    /**
+     * The sample variance from the count, sum and sum of squares of integer values, using n-1 like
+     * {@link #variance(long[])}. The numerator {@code n*sumSquares - sum*sum} is calculated with longs so it is
+     * exact as long as it does not overflow, which is the case for up to about 10 million values of 8 bits.
+     * @return the variance of the values.
+     */
+    public static double variance(long count, long sum, long sumSquares) {
+        return 1.0 * (count*sumSquares - sum*sum) / count / (count-1);
+    }
+
+    /**
+     * @return the least common multiple of the two positive values.
+     */
+    public static int lcm(int a, int b) {
+        int gcd = a;
+        int rest = b;
+        while (rest != 0) {
+            int tmp = gcd % rest;
+            gcd = rest;
+            rest = tmp;
+        }
+        return a / gcd * b;
+    }
+
+    /**
+     * The inverse of the standard normal cumulative distribution, using the rational approximation by Peter Acklam
+     * with a relative error below 1.15E-9.
+     * @param p a probability, 0 &lt; p &lt; 1.
+     * @return the value that a standard normal variable is below with probability p.
+     */
+    public static double normalQuantile(double p) {
+        if (!(p > 0 && p < 1)) {
+            throw new IllegalArgumentException("The probability must be between 0 and 1 (exclusive) but was " + p);
+        }
+        if (p < QUANTILE_LOW) {
+            return quantileTail(Math.sqrt(-2 * Math.log(p)));
+        }
+        if (p > 1 - QUANTILE_LOW) {
+            return -quantileTail(Math.sqrt(-2 * Math.log(1 - p)));
+        }
+        final double q = p - 0.5;
+        final double r = q*q;
+        final double[] a = QUANTILE_A;
+        final double[] b = QUANTILE_B;
+        return (((((a[0]*r + a[1])*r + a[2])*r + a[3])*r + a[4])*r + a[5])*q /
+               (((((b[0]*r + b[1])*r + b[2])*r + b[3])*r + b[4])*r + 1);
+    }
+    private static double quantileTail(double q) {
+        final double[] c = QUANTILE_C;
+        final double[] d = QUANTILE_D;
+        return (((((c[0]*q + c[1])*q + c[2])*q + c[3])*q + c[4])*q + c[5]) /
+               ((((d[0]*q + d[1])*q + d[2])*q + d[3])*q + 1);
+    }
+    private static final double QUANTILE_LOW = 0.02425;
+    private static final double[] QUANTILE_A = {
+            -3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02,
+            1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+    private static final double[] QUANTILE_B = {
+            -5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02,
+            6.680131188771972e+01, -1.328068155288572e+01};
+    private static final double[] QUANTILE_C = {
+            -7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00,
+            -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+    private static final double[] QUANTILE_D = {
+            7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+
+    /**
+     * Accumulates count, sum and sum of squares for integer values, such as pixel channel values.
+     * All sums are kept as longs, so merging partial results from tiles or threads is exact and independent
+     * of the order of the merges.
+     * </p><p>
+     * Instances are mutable and not thread safe. Re-use them with {@link #clear()} to avoid allocations in
+     * hot loops.
+     */
+    public static class Accumulator {
+        private long count = 0;
+        private long sum = 0;
+        private long sumSquares = 0;
+
+        public void add(long value) {
+            count++;
+            sum += value;
+            sumSquares += value*value;
+        }
+
+        /**
+         * Adds value {@code count} times.
+         */
+        public void add(long value, long count) {
+            this.count += count;
+            sum += value*count;
+            sumSquares += value*value*count;
+        }
+
+        /**
+         * Adds all values from other to this accumulator.
+         * @param other a partial result.
+         */
+        public void merge(Accumulator other) {
+            count += other.count;
+            sum += other.sum;
+            sumSquares += other.sumSquares;
+        }
+
+        public void clear() {
+            count = 0;
+            sum = 0;
+            sumSquares = 0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getSumSquares() {
+            return sumSquares;
+        }
+
+        public double getMean() {
+            return 1.0 * sum / count;
+        }
+
+        /**
+         * @return the sample variance of the added values.
+         * @see Stats#variance(long, long, long)
+         */
+        public double getVariance() {
+            return variance(count, sum, sumSquares);
+        }
+
+        public double getStandardDeviation() {
+            return Math.sqrt(getVariance());
+        }
+    }
+
+    /**
+     * Accumulates count, mean and the sum of squared differences from the mean for floating point values,
+     * using Welford's online algorithm. Partial results are merged with the pairwise update by Chan et al.,
+     * which is numerically stable but not exact: Merge in a fixed order to get deterministic results.
+     * </p><p>
+     * Instances are mutable and not thread safe. Re-use them with {@link #clear()} to avoid allocations in
+     * hot loops.
+     */
+    public static class Welford {
+        private long count = 0;
+        private double mean = 0.0;
+        private double m2 = 0.0;
+
+        public void add(double value) {
+            count++;
+            final double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+
+        /**
+         * Adds all values from other to this accumulator.
+         * @param other a partial result.
+         */
+        public void merge(Welford other) {
+            if (other.count == 0) {
+                return;
+            }
+            if (count == 0) {
+                count = other.count;
+                mean = other.mean;
+                m2 = other.m2;
+                return;
+            }
+            final long total = count + other.count;
+            final double delta = other.mean - mean;
+            mean += delta * other.count / total;
+            m2 += other.m2 + delta * delta * count * other.count / total;
+            count = total;
+        }
+
+        public void clear() {
+            count = 0;
+            mean = 0.0;
+            m2 = 0.0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * @return the sample variance, using n-1 like {@link Stats#variance(double[])}.
+         */
+        public double getVariance() {
+            return m2 / (count-1);
+        }
+
+        public double getStandardDeviation() {
+            return Math.sqrt(getVariance());
+        }
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class AnalysisServerTest extends TestCase {
+    private final File image = TelltaleBaseCase.getFile("gimp/car_near.png");
+
+    public AnalysisServerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AnalysisServerTest.class);
+    }
+
+    public void testPath() throws IOException {
+        try (AnalysisServer server = new AnalysisServer(new Detect().getAnalyzer(), 0, 2, 2)) {
+            server.start();
+            HttpURLConnection connection = post(server, "path=" + encode(image.getPath()), null);
+            assertEquals("Status", 200, connection.getResponseCode());
+            String[] lines = read(connection).split("\n");
+            assertEquals("There should be a line per analyzer", 2, lines.length);
+            assertTrue("The Nearest Neighbour result should state an upscale", lines[0].contains("\"upscaled\":true"));
+        }
+    }
+
+    public void testBytes() throws IOException {
+        try (AnalysisServer server = new AnalysisServer(new Detect().getAnalyzer(), 0, 2, 2)) {
+            server.start();
+            HttpURLConnection connection = post(server, "name=upload.png&format=text",
+                                                Files.readAllBytes(image.toPath()));
+            assertEquals("Status", 200, connection.getResponseCode());
+            String text = read(connection);
+            assertTrue("The result should be for the named image", text.contains("for image upload.png"));
+        }
+    }
+
+    public void testCache() throws IOException {
+        File folder = File.createTempFile("telltale_server_cache_", "");
+        assertTrue("The temporary file should be deletable", folder.delete());
+        File log = new File(folder, ResultCache.LOG);
+        try (ResultCache cache = new ResultCache(folder, false);
+             AnalysisServer server = new AnalysisServer(new Detect().getAnalyzer(), 0, 2, 2).setCache(cache)) {
+            server.start();
+            String first = read(post(server, "path=" + encode(image.getPath()), null));
+            final long logSize = log.length();
+            String second = read(post(server, "path=" + encode(image.getPath()), null));
+            assertEquals("The cached results should be the same", first, second);
+            assertEquals("Entries", 1, cache.size());
+            assertEquals("Hits", 1, cache.getHits());
+            assertEquals("A hit should not write to the log", logSize, log.length());
+        } finally {
+            for (File file: folder.listFiles()) {
+                assertTrue("It should be possible to delete " + file, file.delete());
+            }
+            assertTrue("It should be possible to delete " + folder, folder.delete());
+        }
+    }
+
+    public void testBudget() throws IOException {
+        try (AnalysisServer server = new AnalysisServer(new Detect().getAnalyzer(), 0, 2, 2)
+                .setBudget(new MemoryBudget(16 * 1024))) {
+            server.start();
+            assertEquals("An image larger than the budget should be rejected", 413,
+                         post(server, "path=" + encode(image.getPath()), null).getResponseCode());
+            assertEquals("Uploaded images larger than the budget should be rejected", 413,
+                         post(server, null, Files.readAllBytes(image.toPath())).getResponseCode());
+        }
+    }
+
+    // The image claims to be huge but holds no pixels, so the size of the request does not reveal the size
+    public void testHugeHeader() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(png);
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeInt(200000); // Width
+        headerOut.writeInt(200000); // Height
+        headerOut.write(new byte[]{8, 2, 0, 0, 0}); // 8 bit RGB
+        writeChunk(out, "IHDR", header.toByteArray());
+        writeChunk(out, "IDAT", new byte[0]);
+        writeChunk(out, "IEND", new byte[0]);
+
+        try (AnalysisServer server = new AnalysisServer(new Detect().getAnalyzer(), 0, 1, 0)
+                .setBudget(new MemoryBudget(64 * 1024 * 1024))) {
+            server.start();
+            HttpURLConnection connection = post(server, null, png.toByteArray());
+            assertEquals("An image with huge dimensions should be rejected before decoding", 413,
+                         connection.getResponseCode());
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type.getBytes(StandardCharsets.US_ASCII));
+        crc.update(data);
+        out.writeInt(data.length);
+        out.writeBytes(type);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    public void testErrors() throws IOException {
+        try (AnalysisServer server = new AnalysisServer(new Detect().getAnalyzer(), 0, 1, 0)) {
+            server.start();
+            assertEquals("Missing file", 404,
+                         post(server, "path=" + encode(new File(image.getParentFile(), "missing.png").getPath()),
+                              null).getResponseCode());
+            assertEquals("Not an image", 415,
+                         post(server, null, "Not an image".getBytes(StandardCharsets.UTF_8)).getResponseCode());
+            assertEquals("Unknown format", 400,
+                         post(server, "format=xml&path=" + encode(image.getPath()), null).getResponseCode());
+        }
+    }
+
+    public void testBusy() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ImageAnalyzer blocking = new ImageAnalyzer() {
+            @Override
+            public AnalysisResult analyze(File imageFile, BufferedImage image) {
+                return analyze(imageFile, PixelAccess.create(image));
+            }
+
+            @Override
+            public AnalysisResult analyze(File imageFile, PixelAccess pixels) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new AnalysisResult(imageFile, getName(), "Done");
+            }
+
+            @Override
+            public String getName() {
+                return "Blocking";
+            }
+        };
+        try (final AnalysisServer server = new AnalysisServer(
+                new CompositeAnalyzer(Arrays.asList(blocking)), 0, 1, 0)) {
+            server.start();
+            final int[] first = new int[1];
+            Thread request = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        first[0] = post(server, "path=" + encode(image.getPath()), null).getResponseCode();
+                    } catch (IOException e) {
+                        throw new RuntimeException("Unable to request an analysis", e);
+                    }
+                }
+            });
+            request.start();
+            assertTrue("The first request should be analyzed", started.await(10, TimeUnit.SECONDS));
+            assertEquals("The second request should be rejected", 503,
+                         post(server, "path=" + encode(image.getPath()), null).getResponseCode());
+            release.countDown();
+            request.join();
+            assertEquals("The first request should succeed", 200, first[0]);
+        }
+    }
+
+    private static HttpURLConnection post(AnalysisServer server, String query, byte[] body) throws IOException {
+        URL url = new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(),
+                          "/analyze" + (query == null ? "" : "?" + query));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            if (body != null) {
+                out.write(body);
+            }
+        }
+        return connection;
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class AssignmentSolverTest extends TestCase {
+
+    public AssignmentSolverTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AssignmentSolverTest.class);
+    }
+
+    // The solver must find the same best and runner-up as scoring all permutations, including the order of ties
+    public void testFullSearch() {
+        Random random = new Random(87);
+        for (int run = 0 ; run < 200 ; run++) {
+            final int size = 2 + random.nextInt(5);
+            final double[][] costs = new double[size][size];
+            for (double[] row: costs) {
+                for (int i = 0 ; i < size ; i++) {
+                    row[i] = random.nextInt(4); // Few distinct values for plenty of ties
+                }
+            }
+            SquaredCosts objective = new SquaredCosts(costs);
+            int[] best = null;
+            for (int[] permutation: permutations(size)) {
+                if (best == null || objective.getScore(permutation) < objective.getScore(best)) {
+                    best = permutation;
+                }
+            }
+            int[] runnerUp = null;
+            for (int[] permutation: permutations(size)) {
+                final double score = objective.getScore(permutation);
+                if (score > objective.getScore(best) && (runnerUp == null || score < objective.getScore(runnerUp))) {
+                    runnerUp = permutation;
+                }
+            }
+            assertTrue("Best assignment for run " + run, Arrays.equals(best, AssignmentSolver.solve(objective)));
+            assertTrue("Runner-up assignment for run " + run,
+                       Arrays.equals(runnerUp, AssignmentSolver.solve(objective, objective.getScore(best))));
+        }
+    }
+
+    // 10! = 3,628,800 assignments, of which only a small part should be scored
+    public void testPruning() {
+        Random random = new Random(87);
+        final int size = 10;
+        final double[][] costs = new double[size][size];
+        for (int hypothesis = 0 ; hypothesis < size ; hypothesis++) {
+            for (int candidate = 0 ; candidate < size ; candidate++) {
+                costs[hypothesis][candidate] = random.nextDouble() + (hypothesis == candidate ? 0 : 1);
+            }
+        }
+        SquaredCosts objective = new SquaredCosts(costs);
+        int[] best = AssignmentSolver.solve(objective);
+        for (int hypothesis = 0 ; hypothesis < size ; hypothesis++) {
+            assertEquals("Candidate for hypothesis " + hypothesis, hypothesis, best[hypothesis]);
+        }
+        assertTrue("Only a fraction of the assignments should be scored, but " + objective.scored + " were",
+                   objective.scored < 10000);
+    }
+
+    // The square of the summed costs, which is not a sum over the hypotheses
+    private static class SquaredCosts implements AssignmentSolver.Objective {
+        private final double[][] costs;
+        private int scored = 0;
+
+        private SquaredCosts(double[][] costs) {
+            this.costs = costs;
+        }
+
+        @Override
+        public int getSize() {
+            return costs.length;
+        }
+
+        @Override
+        public double getLowerBound(int[] assignment, int assigned) {
+            double sum = 0;
+            for (int hypothesis = 0 ; hypothesis < assigned ; hypothesis++) {
+                sum += costs[hypothesis][assignment[hypothesis]];
+            }
+            return sum * sum;
+        }
+
+        @Override
+        public double getScore(int[] assignment) {
+            scored++;
+            return getLowerBound(assignment, assignment.length);
+        }
+    }
+
+    // All permutations of 0..size-1 in lexicographic order
+    private static int[][] permutations(int size) {
+        int count = 1;
+        for (int i = 2 ; i <= size ; i++) {
+            count *= i;
+        }
+        final int[][] permutations = new int[count][];
+        int[] permutation = new int[size];
+        for (int i = 0 ; i < size ; i++) {
+            permutation[i] = i;
+        }
+        for (int p = 0 ; p < count ; p++) {
+            permutations[p] = permutation.clone();
+            int i = size - 2;
+            while (i >= 0 && permutation[i] > permutation[i+1]) {
+                i--;
+            }
+            if (i < 0) {
+                break;
+            }
+            int j = size - 1;
+            while (permutation[j] < permutation[i]) {
+                j--;
+            }
+            swap(permutation, i, j);
+            for (int a = i+1, b = size-1 ; a < b ; a++, b--) {
+                swap(permutation, a, b);
+            }
+        }
+        return permutations;
+    }
+
+    private static void swap(int[] values, int a, int b) {
+        final int tmp = values[a];
+        values[a] = values[b];
+        values[b] = tmp;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class BandSamplerTest extends TestCase {
+
+    public BandSamplerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BandSamplerTest.class);
+    }
+
+    // With a single band, the full image is visited and the result must be the same as the full analysis
+    public void testSingleBand() throws IOException {
+        for (String path: PixelAccessTest.IMAGES) {
+            File file = TelltaleBaseCase.getFile(path);
+            BufferedImage image = ImageIO.read(file);
+            for (ImageAnalyzerImpl analyzer: new ImageAnalyzerImpl[]{
+                    new NearestNeighbourDetect().setScreen(null), new BilinearDetect()}) {
+                String full = analyzer.analyze(file, image).toString();
+                analyzer.setSampling(new BandSampler(100000, 0.95, 0.0, 87));
+                String sampled = analyzer.analyze(file, image).toString();
+                assertTrue("The sampled analysis of " + path + " by " + analyzer.getName()
+                           + " should start with the full analysis\n" + full + "but was\n" + sampled,
+                           sampled.startsWith(full));
+                assertTrue("All of " + path + " should be examined by " + analyzer.getName(),
+                           sampled.contains("Sampled 1 of 1 bands (100.0% of the image)"));
+            }
+        }
+    }
+
+    public void testEarlyStop() throws IOException {
+        BufferedImage replicated = createReplicated();
+        NearestNeighbourDetect detector = new NearestNeighbourDetect();
+        detector.setScreen(null).setSampling(new BandSampler());
+        BandSampler.Model<?> model = detector.getSamplingModel();
+        BandSampler.Estimate<?> estimate = new BandSampler().sample(
+                PixelAccess.create(replicated), model, new RowTraversal());
+        assertTrue("Sampling should stop early, but examined " + estimate.getFractionExamined(),
+                   estimate.isSampled() && estimate.getFractionExamined() < 0.5);
+
+        String sampled = detector.analyze(new File("replicated"), replicated).toString();
+        assertTrue("The best permutation should be separated:\n" + sampled,
+                   sampled.contains("best permutation separated from the runner-up"));
+        String full = detector.setSampling(null).analyze(new File("replicated"), replicated).toString();
+        assertEquals("The sampled analysis should find the same offset",
+                     full.split("\n")[4].substring(0, 6), sampled.split("\n")[4].substring(0, 6));
+    }
+
+    public void testDeterministic() throws IOException {
+        BufferedImage replicated = createReplicated();
+        BilinearDetect detector = new BilinearDetect();
+        detector.setSampling(new BandSampler());
+        assertEquals("The same seed should give the same sample",
+                     detector.analyze(new File("replicated"), replicated).toString(),
+                     detector.analyze(new File("replicated"), replicated).toString());
+    }
+
+    public void testComposite() throws IOException {
+        BufferedImage replicated = createReplicated();
+        File file = new File("replicated");
+        List<ImageAnalyzerImpl> analyzers = Arrays.<ImageAnalyzerImpl>asList(
+                new NearestNeighbourDetect().setScreen(null).setSampling(new BandSampler()), new BilinearDetect());
+        List<AnalysisResult> results = new CompositeAnalyzer(analyzers).analyze(file, replicated);
+        for (int i = 0 ; i < analyzers.size() ; i++) {
+            assertEquals("Result for " + analyzers.get(i).getName(),
+                         analyzers.get(i).analyze(file, replicated).toString(), results.get(i).toString());
+        }
+    }
+
+    // A tall Nearest Neighbour upscale of tiles of car_raw, with enough bands for sampling to stop early
+    private BufferedImage createReplicated() throws IOException {
+        BufferedImage raw = ImageIO.read(TelltaleBaseCase.getFile("gimp/car_raw.png"));
+        BufferedImage replicated = new BufferedImage(300, raw.getHeight()*8, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0 ; y < replicated.getHeight() ; y++) {
+            for (int x = 0 ; x < replicated.getWidth() ; x++) {
+                replicated.setRGB(x, y, raw.getRGB(x/2 + (y/2/raw.getHeight())*7, (y/2) % raw.getHeight()));
+            }
+        }
+        return replicated;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class BandedPixelAccessTest extends TestCase {
+    private static final int[] BAND_HEIGHTS = new int[]{3, 17, 100000};
+
+    public BandedPixelAccessTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BandedPixelAccessTest.class);
+    }
+
+    public void testSameRows() throws IOException {
+        for (String path: PixelAccessTest.IMAGES) {
+            File file = TelltaleBaseCase.getFile(path);
+            PixelAccess expected = PixelAccess.create(ImageIO.read(file));
+            for (int bandHeight: BAND_HEIGHTS) {
+                try (BandedPixelAccess banded = BandedPixelAccess.open(file, bandHeight)) {
+                    assertSameRows(path + " with band height " + bandHeight, expected, banded);
+                    assertEquals("Bands decoded for " + path + " with band height " + bandHeight,
+                                 (expected.getHeight() + bandHeight - 1) / bandHeight, banded.getBandsDecoded());
+                }
+            }
+        }
+    }
+
+    public void testBackwards() throws IOException {
+        File file = TelltaleBaseCase.getFile("gimp/car_raw.png");
+        PixelAccess expected = PixelAccess.create(ImageIO.read(file));
+        try (BandedPixelAccess banded = BandedPixelAccess.open(file, 10)) {
+            int[][] expectedRGB = new int[3][expected.getWidth()];
+            int[][] actualRGB = new int[3][expected.getWidth()];
+            for (int y: new int[]{55, 3, 54, 56, 0}) {
+                expected.readRow(y, expectedRGB);
+                banded.readRow(y, actualRGB);
+                assertTrue("Row " + y + " should be the same", Arrays.deepEquals(expectedRGB, actualRGB));
+            }
+        }
+    }
+
+    public void testIdenticalScores() throws IOException {
+        for (ImageAnalyzer analyzer: new ImageAnalyzer[]{new NearestNeighbourDetect(), new BilinearDetect()}) {
+            for (String path: PixelAccessTest.IMAGES) {
+                File file = TelltaleBaseCase.getFile(path);
+                String expected = analyzer.analyze(file, ImageIO.read(file)).toString();
+                for (int bandHeight: BAND_HEIGHTS) {
+                    try (BandedPixelAccess banded = BandedPixelAccess.open(file, bandHeight)) {
+                        assertEquals("Analysis of " + path + " by " + analyzer.getName() + " with band height " +
+                                     bandHeight, expected, analyzer.analyze(file, banded).toString());
+                        assertTrue("Bands for " + path + " should not be decoded more than once",
+                                   banded.getBandsDecoded() <= (banded.getHeight() + bandHeight - 1) / bandHeight);
+                    }
+                }
+            }
+        }
+    }
+
+    // Tiled TIFF is only supported by ImageIO from Java 9
+    public void testTiled() throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tiff");
+        if (!writers.hasNext()) {
+            System.out.println("No TIFF writer available, skipping testTiled");
+            return;
+        }
+        BufferedImage image = ImageIO.read(TelltaleBaseCase.getFile("gimp/car_raw.png"));
+        File tiff = File.createTempFile("telltale_tiled_", ".tif");
+        tiff.deleteOnExit();
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(tiff)) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setTiling(64, 48, 0, 0);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+
+        try (BandedPixelAccess banded = BandedPixelAccess.open(tiff, 50)) {
+            assertEquals("The band height should be aligned to the tile height", 96, banded.getBandHeight());
+            assertSameRows("Tiled TIFF", PixelAccess.create(image), banded);
+        }
+    }
+
+    private void assertSameRows(String message, PixelAccess expected, PixelAccess actual) {
+        assertEquals(message + ": width", expected.getWidth(), actual.getWidth());
+        assertEquals(message + ": height", expected.getHeight(), actual.getHeight());
+        int[][] expectedRGB = new int[3][expected.getWidth()];
+        int[][] actualRGB = new int[3][expected.getWidth()];
+        for (int y = 0 ; y < expected.getHeight() ; y++) {
+            expected.readRow(y, expectedRGB);
+            actual.readRow(y, actualRGB);
+            if (!Arrays.deepEquals(expectedRGB, actualRGB)) {
+                fail(message + ": Row " + y + " differs");
+            }
+        }
+    }
+}
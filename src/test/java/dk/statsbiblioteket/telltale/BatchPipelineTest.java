@@ -0,0 +1,155 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BatchPipelineTest extends TestCase {
+    private final List<File> images = new ArrayList<>();
+    private final List<ImageAnalyzer> analyzers = Arrays.<ImageAnalyzer>asList(
+            new NearestNeighbourDetect(), new BilinearDetect());
+
+    public BatchPipelineTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BatchPipelineTest.class);
+    }
+
+    @Override
+    public void setUp() {
+        for (String path: new String[]{"raw/text_300dpi.png", "raw/raster_300dpi.png", "raw/hvide_19340402_5.png",
+                "raw/hvide_19681224_1.png", "gimp/car_raw.png", "gimp/car_near.png", "gimp/car_linear_gimp.png"}) {
+            images.add(TelltaleBaseCase.getFile(path));
+        }
+    }
+
+    public void testOrdered() throws Exception {
+        String expected = sequential(images);
+        for (int decoders: new int[]{1, 3}) {
+            for (int workers: new int[]{1, 2, 4}) {
+                BatchPipeline pipeline = new BatchPipeline(analyzers, decoders, workers, 1, true);
+                assertEquals("Pipeline output with " + decoders + " decoders and " + workers + " analysis workers",
+                             expected, run(pipeline, images));
+            }
+        }
+    }
+
+    public void testUnordered() throws Exception {
+        String expected = sequential(images);
+        BatchPipeline pipeline = new BatchPipeline(analyzers, 2, 3, 2, false);
+        String actual = run(pipeline, images);
+        assertEquals("Unordered output should contain the same results", sortedResults(expected),
+                     sortedResults(actual));
+    }
+
+    public void testBudget() throws Exception {
+        String expected = sequential(images);
+        // Every image costs more than the budget and must thus be processed alone
+        MemoryBudget tiny = new MemoryBudget(1024);
+        assertEquals("Output with a budget smaller than any image",
+                     expected, run(new BatchPipeline(analyzers, 3, 3, 2, true, tiny), images));
+        assertEquals("The tiny budget should be fully released", tiny.getBudget(), tiny.getAvailable());
+
+        MemoryBudget roomy = new MemoryBudget(100L * 1024 * 1024);
+        assertEquals("Output with a budget larger than all images",
+                     expected, run(new BatchPipeline(analyzers, 3, 3, 2, true, roomy), images));
+        assertEquals("The roomy budget should be fully released", roomy.getBudget(), roomy.getAvailable());
+    }
+
+    public void testUnreadable() throws Exception {
+        List<File> withMissing = new ArrayList<>(images);
+        withMissing.add(2, new File("nonexisting_image.png"));
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        MemoryBudget budget = new MemoryBudget(10L * 1024 * 1024);
+        BatchPipeline pipeline = new BatchPipeline(analyzers, 2, 2, 1, true, budget);
+        assertEquals("The readable images should still be analyzed",
+                     sequential(images), run(pipeline, withMissing, new PrintStream(err, true)));
+        assertTrue("The missing image should be reported", err.toString().contains("nonexisting_image.png"));
+        assertEquals("The budget should be fully released", budget.getBudget(), budget.getAvailable());
+    }
+
+    // A failing cache is not a problem with the image, so it must stop the processing instead of marking the
+    // image as completed
+    public void testCacheFailure() throws Exception {
+        File folder = File.createTempFile("telltale_cache_", "");
+        assertTrue("The temporary file should be deletable", folder.delete());
+        List<File> first = images.subList(0, 2);
+        try {
+            ResultCache cache = new ResultCache(folder, false);
+            run(new BatchPipeline(analyzers, 2, 2, 1, true).setCache(cache), first);
+            cache.close(); // Lookups of the stored results now fail
+
+            Checkpoint checkpoint = new Checkpoint(new File(folder, "checkpoint"), null, 0);
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            try {
+                run(new BatchPipeline(analyzers, 2, 2, 1, true).setCache(cache).setCheckpoint(checkpoint),
+                    first, new PrintStream(err, true));
+                fail("Processing with a failing cache should throw an IOException");
+            } catch (IOException e) {
+                // Expected
+            }
+            assertEquals("No images should be marked as completed", 0, checkpoint.getCompleted());
+            assertFalse("The failure should not be reported as an unreadable image",
+                        err.toString().contains("Unable to open"));
+        } finally {
+            for (File file: folder.listFiles()) {
+                assertTrue("It should be possible to delete " + file, file.delete());
+            }
+            assertTrue("It should be possible to delete " + folder, folder.delete());
+        }
+    }
+
+    private String run(BatchPipeline pipeline, List<File> images) throws InterruptedException, IOException {
+        return run(pipeline, images, System.err);
+    }
+
+    private String run(BatchPipeline pipeline, List<File> images, PrintStream err)
+            throws InterruptedException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pipeline.process(images.iterator(), new PrintStream(out, true), err);
+        return out.toString();
+    }
+
+    private String sequential(List<File> images) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true);
+        for (File image: images) {
+            for (ImageAnalyzer analyzer: analyzers) {
+                out.println(analyzer.analyze(image, ImageIO.read(image)));
+            }
+        }
+        return bytes.toString();
+    }
+
+    private List<String> sortedResults(String output) {
+        List<String> results = Arrays.asList(output.split("Analysis "));
+        Collections.sort(results);
+        return results;
+    }
+}
@@ -5,8 +5,11 @@ import junit.framework.TestSuite;
 
 import javax.imageio.ImageIO;
 import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class BilinearDetectTest extends TelltaleBaseCase {
 
@@ -39,5 +42,143 @@ public class BilinearDetectTest extends TelltaleBaseCase {
         write(CAR_LOW_CONTRAST);
     }
 
+    // The histogram based full image deviation must match the original array based calculation
+    public void testCenterFullDeviation() throws IOException {
+        BilinearDetect detector = new BilinearDetect();
+        for (File file: ALL) {
+            BufferedImage image = ImageIO.read(file);
+            List<BilinearDetect.Candidate> candidates = detector.getCandidates(PixelAccess.create(image));
+            int index = 0;
+            for (int offsetX = 0 ; offsetX < 2 ; offsetX++) {
+                for (int offsetY = 0 ; offsetY < 2 ; offsetY++) {
+                    double expected = arrayCenterFullDeviation(offsetX, offsetY, 2, 2, image);
+                    assertEquals("Full image center deviation for " + file + " offset (" + offsetX + ", "
+                                 + offsetY + ")",
+                                 expected, candidates.get(index++).getOverallCenterDeviation(), expected * 1.0E-12);
+                }
+            }
+        }
+    }
+
+    // The single sweep must give the same values and candidate order as the original implementation, which made a
+    // pass over the image for each offset and for each of its full image and local center deviations
+    public void testOriginalImplementation() throws IOException {
+        BilinearDetect detector = new BilinearDetect();
+        for (File file: ALL) {
+            BufferedImage image = ImageIO.read(file);
+            assertEquals("Analysis of " + file, referenceAnalysis(image), detector.analyze(file, image).getText());
+        }
+    }
+
+    // The original implementation, with the candidates as
+    // {offsetX, offsetY, horizontal, vertical, center, avgCenter, fullImage}
+    private String referenceAnalysis(BufferedImage image) {
+        final long[][] rectRGB = new long[3][9];
+        final double[] deviationsH = new double[3];
+        final double[] deviationsV = new double[3];
+        final double[] deviationsC = new double[3];
+        final List<double[]> candidates = new ArrayList<>();
+        for (int offsetX = 0 ; offsetX < 2 ; offsetX++) {
+            for (int offsetY = 0 ; offsetY < 2 ; offsetY++) {
+                double sumMaxDeviationH = 0.0;
+                double sumMaxDeviationV = 0.0;
+                double sumMaxDeviationC = 0.0;
+                int blockCount = 0;
+                for (int y = offsetY ; y < image.getHeight()-2-1 ; y+=2) {
+                    for (int x = offsetX ; x < image.getWidth()-2-1 ; x+=2) {
+                        blockCount++;
+                        int index = 0;
+                        for (int rectY = y ; rectY < y+3 ; rectY++) {
+                            for (int rectX = x ; rectX < x+3 ; rectX++) {
+                                fillValues(rectRGB, index++, image.getRGB(rectX, rectY));
+                            }
+                        }
+                        for (int channel = 0 ; channel < 3 ; channel++) {
+                            long[] rgb = rectRGB[channel];
+                            deviationsH[channel] = Stats.standardDeviation(new double[]{
+                                    (double) rgb[3], 1.0 * (rgb[0] + rgb[6]) / 2});
+                            deviationsV[channel] = Stats.standardDeviation(new double[]{
+                                    (double) rgb[1], 1.0 * (rgb[0] + rgb[2]) / 2});
+                            deviationsC[channel] = Stats.standardDeviation(new double[]{
+                                    (double) rgb[4], 1.0 * (rgb[1] + rgb[7] + rgb[3] + rgb[5]) / 4});
+                        }
+                        sumMaxDeviationH += Stats.max(deviationsH);
+                        sumMaxDeviationV += Stats.max(deviationsV);
+                        sumMaxDeviationC += Stats.max(deviationsC);
+                    }
+                }
+                candidates.add(new double[]{offsetX, offsetY, sumMaxDeviationH / blockCount,
+                        sumMaxDeviationV / blockCount, sumMaxDeviationC / blockCount,
+                        avgCenterLocalDeviation(offsetX, offsetY, 2, 2, image),
+                        arrayCenterFullDeviation(offsetX, offsetY, 2, 2, image)});
+            }
+        }
 
+        List<double[]> best = null;
+        for (int[] permutation: permutations(candidates.size())) {
+            List<double[]> arranged = new ArrayList<>();
+            for (int index: permutation) {
+                arranged.add(candidates.get(index));
+            }
+            if (best == null || isLower(referenceScore(arranged), referenceScore(best))) {
+                best = arranged;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("Offset  Horizontal   Vertical     Center  avgCenter  fullImage\n");
+        for (double[] candidate: best) {
+            sb.append(String.format("(%d, %d)   %9.2f  %9.2f  %9.2f  %9.2f  %9.2f\n", (int) candidate[0],
+                                    (int) candidate[1], candidate[2], candidate[3], candidate[4], candidate[5],
+                                    candidate[6]));
+        }
+        sb.append(String.format("Upscale model conformance score (lower is better): %.4f\n", referenceScore(best)));
+        return sb.toString();
+    }
+
+    // The original Candidate.getCenter returned the vertical deviation
+    private double referenceScore(List<double[]> candidates) {
+        final int center = 3;
+        return Stats.standardDeviation(new double[]{candidates.get(0)[center], candidates.get(1)[center],
+                                                    candidates.get(2)[center], candidates.get(3)[center]});
+    }
+
+    private double avgCenterLocalDeviation(int offsetX, int offsetY, int scaleX, int scaleY, BufferedImage image) {
+        long[][] valRGB = new long[3][4];
+        int samples = 0;
+        double sum = 0.0;
+        for (int y = offsetY+scaleY+1 ; y < image.getHeight()-scaleY*2-1 ; y+=scaleY) {
+            for (int x = offsetX+scaleX+1 ; x < image.getWidth()-scaleX*2-1 ; x+=scaleX) {
+                fillValues(valRGB, 0, image.getRGB(x-scaleX, y-scaleY));
+                fillValues(valRGB, 1, image.getRGB(x-scaleX, y+scaleY));
+                fillValues(valRGB, 2, image.getRGB(x+scaleX, y-scaleY));
+                fillValues(valRGB, 3, image.getRGB(x+scaleX, y+scaleY));
+                sum += Stats.max(new double[]{Stats.standardDeviation(valRGB[0]), Stats.standardDeviation(valRGB[1]),
+                        Stats.standardDeviation(valRGB[2])});
+                samples++;
+            }
+        }
+        return sum / samples;
+    }
+
+    private static void fillValues(long[][] imgRGB, int index, int rgb) {
+        imgRGB[0][index] = (rgb & 0x00ff0000) >> 16; // red
+        imgRGB[1][index] = (rgb & 0x0000ff00) >> 8;  // green
+        imgRGB[2][index] = rgb & 0x000000ff;         // blue
+    }
+
+    // The original implementation of the full image center deviation
+    private double arrayCenterFullDeviation(int offsetX, int offsetY, int scaleX, int scaleY, BufferedImage image) {
+        long[][] imgRGB = new long[3][(image.getWidth()/scaleX)*(image.getHeight()/scaleY)];
+        int index = 0;
+        for (int y = offsetY+1 ; y < image.getHeight()-scaleY-1 ; y+=scaleY) {
+            for (int x = offsetX+1 ; x < image.getWidth()-scaleX-1 ; x+=scaleX) {
+                int rgb = image.getRGB(x, y);
+                imgRGB[0][index] = (rgb & 0x00ff0000) >> 16; // red
+                imgRGB[1][index] = (rgb & 0x0000ff00) >> 8;  // green
+                imgRGB[2][index++] = rgb & 0x000000ff;       // blue
+            }
+        }
+        return Stats.max(new double[]{Stats.standardDeviation(imgRGB[0]), Stats.standardDeviation(imgRGB[1]),
+                Stats.standardDeviation(imgRGB[2])});
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class CheckpointTest extends TestCase {
+    private final List<File> images = Arrays.asList(new File("a.png"), new File("b.png"), new File("c.png"),
+                                                    new File("d.png"), new File("e.png"));
+    private File file;
+
+    public CheckpointTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(CheckpointTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("telltale_checkpoint_", ".properties");
+        assertTrue("The checkpoint should not exist from the start", file.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        assertTrue("The checkpoint should be deletable", !file.exists() || file.delete());
+        super.tearDown();
+    }
+
+    public void testOutOfOrder() throws IOException {
+        try (Checkpoint checkpoint = new Checkpoint(file, null, Long.MAX_VALUE)) {
+            assertEquals("A new checkpoint should skip nothing",
+                         images.get(0), checkpoint.skip(images.iterator()).next());
+            checkpoint.completed(1, images.get(1));
+            assertEquals("Image 0 is not completed", 0, checkpoint.getCompleted());
+            checkpoint.completed(0, images.get(0));
+            checkpoint.completed(3, images.get(3));
+            assertEquals("Images 0 and 1 are completed", 2, checkpoint.getCompleted());
+        }
+        Checkpoint resumed = new Checkpoint(file, null, Long.MAX_VALUE);
+        assertEquals("Resumed", 2, resumed.getResumed());
+        assertEquals("The next image", images.get(2), resumed.skip(images.iterator()).next());
+    }
+
+    public void testPeriodicSave() throws IOException {
+        final int[] flushes = new int[1];
+        Checkpoint checkpoint = new Checkpoint(file, new Flushable() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        }, 0);
+        checkpoint.completed(0, images.get(0));
+        assertEquals("The output should be flushed before the save", 1, flushes[0]);
+        assertEquals("The saved checkpoint", 1, new Checkpoint(file, null, 0).getResumed());
+    }
+
+    public void testResumeSequence() throws IOException {
+        try (Checkpoint checkpoint = new Checkpoint(file, null, Long.MAX_VALUE)) {
+            checkpoint.completed(0, images.get(0));
+        }
+        List<File> remaining = new ArrayList<>();
+        try (Checkpoint checkpoint = new Checkpoint(file, null, Long.MAX_VALUE)) {
+            Iterator<File> iterator = checkpoint.skip(images.iterator());
+            for (long sequence = 0 ; iterator.hasNext() ; sequence++) {
+                File image = iterator.next();
+                remaining.add(image);
+                checkpoint.completed(sequence, image);
+            }
+            assertEquals("All images should be completed", images.size(), checkpoint.getCompleted());
+        }
+        assertEquals(images.subList(1, images.size()), remaining);
+    }
+
+    public void testChangedInput() throws IOException {
+        try (Checkpoint checkpoint = new Checkpoint(file, null, Long.MAX_VALUE)) {
+            checkpoint.completed(0, images.get(0));
+            checkpoint.completed(1, images.get(1));
+        }
+        try {
+            new Checkpoint(file, null, Long.MAX_VALUE).skip(images.subList(1, images.size()).iterator());
+            fail("Changed input should be detected");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            new Checkpoint(file, null, Long.MAX_VALUE).skip(images.subList(0, 1).iterator());
+            fail("Shorter input should be detected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
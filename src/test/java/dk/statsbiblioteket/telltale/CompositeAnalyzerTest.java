@@ -0,0 +1,172 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class CompositeAnalyzerTest extends TestCase {
+
+    public CompositeAnalyzerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(CompositeAnalyzerTest.class);
+    }
+
+    public void testSameAsSeparate() throws IOException {
+        final List<ImageAnalyzer> analyzers = Arrays.<ImageAnalyzer>asList(
+                new NearestNeighbourDetect(), new BilinearDetect(), new NamingAnalyzer());
+        CompositeAnalyzer composite = new CompositeAnalyzer(analyzers);
+        for (String path: PixelAccessTest.IMAGES) {
+            File file = TelltaleBaseCase.getFile(path);
+            BufferedImage image = ImageIO.read(file);
+            List<AnalysisResult> results = composite.analyze(file, image);
+            assertEquals("There should be a result for each analyzer", analyzers.size(), results.size());
+            for (int i = 0 ; i < analyzers.size() ; i++) {
+                assertEquals("Result for " + analyzers.get(i).getName() + " on " + path,
+                             analyzers.get(i).analyze(file, image).toString(), results.get(i).toString());
+            }
+        }
+    }
+
+    public void testSingleRead() throws IOException {
+        CompositeAnalyzer composite = new CompositeAnalyzer(Arrays.asList(
+                new NearestNeighbourDetect().setScreen(null), new BilinearDetect()));
+        BufferedImage image = ImageIO.read(TelltaleBaseCase.getFile("gimp/car_raw.png"));
+        CountingPixelAccess pixels = new CountingPixelAccess(PixelAccess.create(image));
+        composite.analyze(new File("car_raw.png"), pixels);
+        assertEquals("Each row should be read once", image.getHeight(), pixels.rowsRead);
+    }
+
+    public void testScreened() throws IOException {
+        File file = TelltaleBaseCase.getFile("gimp/car_near.png");
+        BufferedImage image = ImageIO.read(file);
+        NearestNeighbourDetect nn = new NearestNeighbourDetect();
+        BilinearDetect bilinear = new BilinearDetect();
+        List<AnalysisResult> results = new CompositeAnalyzer(Arrays.asList(nn, bilinear)).analyze(file, image);
+        assertTrue("The replication should be reported by the screen",
+                   results.get(0).toString().contains("Exact x2 pixel replication at offset (0, 1)"));
+        assertEquals("The screened analyzer should not affect the others",
+                     bilinear.analyze(file, image).toString(), results.get(1).toString());
+
+        CountingPixelAccess pixels = new CountingPixelAccess(PixelAccess.create(image));
+        new CompositeAnalyzer(Arrays.asList(nn)).analyze(file, pixels);
+        assertEquals("Only the screen should read the rows", image.getHeight(), pixels.rowsRead);
+    }
+
+    public void testParallel() throws IOException {
+        List<ImageAnalyzer> analyzers = Arrays.<ImageAnalyzer>asList(new NearestNeighbourDetect(),
+                                                                     new BilinearDetect());
+        File file = TelltaleBaseCase.getFile("raw/hvide_19340402_5.png");
+        BufferedImage image = ImageIO.read(file);
+        List<AnalysisResult> sequential = new CompositeAnalyzer(analyzers).setParallel(null, 10).analyze(file, image);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            List<AnalysisResult> parallel = new CompositeAnalyzer(analyzers).setParallel(pool, 10).analyze(file, image);
+            for (int i = 0 ; i < sequential.size() ; i++) {
+                assertEquals("Parallel analysis with " + analyzers.get(i).getName() + " should match sequential",
+                             sequential.get(i).toString(), parallel.get(i).toString());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // A failing analyzer, shared or not, must only lose its own result
+    public void testFailure() throws IOException {
+        File file = TelltaleBaseCase.getFile("gimp/car_raw.png");
+        BufferedImage image = ImageIO.read(file);
+        BilinearDetect bilinear = new BilinearDetect();
+        NearestNeighbourDetect failingShared = new NearestNeighbourDetect() {
+            @Override
+            protected AnalysisResult prescreen(File imageFile, PixelAccess pixels) {
+                throw new IllegalStateException("Failing prescreen");
+            }
+        };
+        NamingAnalyzer failingSeparate = new NamingAnalyzer() {
+            @Override
+            public AnalysisResult analyze(File imageFile, PixelAccess pixels) {
+                throw new IllegalStateException("Failing analyze");
+            }
+        };
+        CompositeAnalyzer composite = new CompositeAnalyzer(Arrays.<ImageAnalyzer>asList(
+                failingShared, bilinear, failingSeparate, new NamingAnalyzer()));
+
+        List<CompositeAnalyzer.Failure> failures = new ArrayList<>();
+        List<AnalysisResult> results = composite.analyze(file, image, failures);
+        assertEquals("The analyzers that did not fail should deliver results", 2, results.size());
+        assertEquals("The Bilinear result should be unaffected",
+                     bilinear.analyze(file, image).toString(), results.get(0).toString());
+        assertEquals("The last result should be from the working NamingAnalyzer",
+                     "NamingAnalyzer", results.get(1).getTestName());
+        assertEquals("Failures", 2, failures.size());
+        assertSame("The first failure should be the shared analyzer", failingShared, failures.get(0).getAnalyzer());
+        assertSame("The second failure should be the separate analyzer",
+                   failingSeparate, failures.get(1).getAnalyzer());
+
+        try {
+            composite.analyze(file, image);
+            fail("Without a list for the failures, the first failure should be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("Exception", "Failing prescreen", e.getMessage());
+        }
+    }
+
+    // An analyzer that does not use row visitors
+    private static class NamingAnalyzer implements ImageAnalyzer {
+        @Override
+        public AnalysisResult analyze(File imageFile, BufferedImage image) {
+            return analyze(imageFile, PixelAccess.create(image));
+        }
+
+        @Override
+        public AnalysisResult analyze(File imageFile, PixelAccess pixels) {
+            return new AnalysisResult(imageFile, getName(), pixels.getWidth() + "x" + pixels.getHeight() + "\n");
+        }
+
+        @Override
+        public String getName() {
+            return "NamingAnalyzer";
+        }
+    }
+
+    private static class CountingPixelAccess extends PixelAccess {
+        private final PixelAccess inner;
+        private int rowsRead = 0;
+
+        private CountingPixelAccess(PixelAccess inner) {
+            super(inner.getWidth(), inner.getHeight());
+            this.inner = inner;
+        }
+
+        @Override
+        public void readRow(int x, int y, int length, int[][] rgb) {
+            rowsRead++;
+            inner.readRow(x, y, length, rgb);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+
+public class FolderWatcherTest extends TestCase {
+    private static final long SETTLE_MS = 300;
+    private File folder;
+
+    public FolderWatcherTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(FolderWatcherTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        folder = File.createTempFile("telltale_watch_", "");
+        assertTrue("The temporary file should be deletable", folder.delete());
+        assertTrue("The folder should be created", folder.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(folder);
+        super.tearDown();
+    }
+
+    public void testExisting() throws IOException {
+        write(new File(folder, "existing.png"), 10);
+        write(new File(folder, "notes.txt"), 10);
+        try (FolderWatcher watcher = new FolderWatcher(Arrays.asList(folder), SETTLE_MS, System.err)) {
+            assertEquals(new File(folder, "existing.png"), watcher.next());
+            closeLater(watcher, SETTLE_MS * 3);
+            assertFalse("Only the image should be handed out", watcher.hasNext());
+        }
+    }
+
+    // The image is written in parts, with pauses below the settle time
+    public void testPartialWrites() throws Exception {
+        final File image = new File(folder, "growing.png");
+        try (final FolderWatcher watcher = new FolderWatcher(Arrays.asList(folder), SETTLE_MS, System.err)) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (OutputStream out = new FileOutputStream(image)) {
+                        for (int i = 0 ; i < 5 ; i++) {
+                            out.write(new byte[1000]);
+                            out.flush();
+                            Thread.sleep(SETTLE_MS / 3);
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        throw new RuntimeException("Unable to write " + image, e);
+                    }
+                }
+            });
+            writer.start();
+            final long start = System.currentTimeMillis();
+            assertEquals(image, watcher.next());
+            assertEquals("The image should be fully written when handed out", 5000, image.length());
+            assertTrue("The image should be handed out within seconds of being written",
+                       System.currentTimeMillis() - start < 5000);
+            writer.join();
+            closeLater(watcher, SETTLE_MS * 3);
+            assertFalse("The image should only be handed out once", watcher.hasNext());
+        }
+    }
+
+    public void testRenameAndSubFolder() throws IOException {
+        try (FolderWatcher watcher = new FolderWatcher(Arrays.asList(folder), SETTLE_MS, System.err)) {
+            File sub = new File(folder, "sub");
+            assertTrue("The sub folder should be created", sub.mkdirs());
+            File temp = new File(sub, "scan.tmp");
+            write(temp, 1000);
+            assertTrue("The image should be renamed", temp.renameTo(new File(sub, "scan.png")));
+            assertEquals(new File(sub, "scan.png"), watcher.next());
+        }
+    }
+
+    // Events that do not change an image only hand it out again if it has been forgotten
+    public void testMaxHandedOut() throws IOException {
+        for (String name: new String[]{"first.png", "second.png", "third.png"}) {
+            write(new File(folder, name), 10);
+        }
+        try (FolderWatcher watcher = new FolderWatcher(Arrays.asList(folder), SETTLE_MS, System.err, 2)) {
+            File forgotten = watcher.next();
+            watcher.next();
+            File remembered = watcher.next();
+            touch(forgotten);
+            assertEquals("The forgotten image should be handed out again", forgotten, watcher.next());
+            touch(remembered);
+            closeLater(watcher, SETTLE_MS * 3);
+            assertFalse("The remembered image should not be handed out again", watcher.hasNext());
+        }
+    }
+
+    private static void closeLater(final FolderWatcher watcher, long delayMS) {
+        final Timer timer = new Timer(true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    throw new RuntimeException("Unable to close the watcher", e);
+                }
+                timer.cancel();
+            }
+        }, delayMS);
+    }
+
+    private static void write(File file, int size) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+    }
+
+    // Triggers a modify event without changing the image
+    private static void touch(File file) {
+        assertTrue("The modification time of " + file + " should be settable",
+                   file.setLastModified(file.lastModified()));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        assertTrue("It should be possible to delete " + file, file.delete());
+    }
+}
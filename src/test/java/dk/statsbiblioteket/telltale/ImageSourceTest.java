@@ -0,0 +1,111 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+public class ImageSourceTest extends TestCase {
+    private File folder;
+
+    public ImageSourceTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ImageSourceTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        folder = File.createTempFile("telltale_source_", "");
+        assertTrue("The temporary file should be deletable", folder.delete());
+        for (String name: Arrays.asList("b/2.png", "b/1.PNG", "a.jpg", "c/d/e.tif", "notes.txt", "c/readme")) {
+            write(new File(folder, name), "");
+        }
+        assertTrue("The empty folder should be created", new File(folder, "empty").mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(folder);
+        super.tearDown();
+    }
+
+    public void testFolder() {
+        assertEquals(Arrays.asList("a.jpg", "b/1.PNG", "b/2.png", "c/d/e.tif"),
+                     relative(new ImageSource(folder.getPath())));
+    }
+
+    public void testExplicit() {
+        assertEquals("Explicit files should be passed on without checks",
+                     Arrays.asList("notes.txt", "missing.png", "a.jpg"),
+                     relative(new ImageSource(new File(folder, "notes.txt").getPath(),
+                                              new File(folder, "missing.png").getPath(),
+                                              new File(folder, "a.jpg").getPath())));
+    }
+
+    public void testManifest() throws IOException {
+        File manifest = new File(folder, "manifest.lst");
+        write(manifest, "# Comment\n\n" + new File(folder, "c") + "\n  " + new File(folder, "a.jpg") + "  \n");
+        assertEquals(Arrays.asList("c/d/e.tif", "a.jpg", "b/1.PNG", "b/2.png"),
+                     relative(new ImageSource("@" + manifest, new File(folder, "b").getPath())));
+    }
+
+    public void testMissingManifest() {
+        assertEquals("A missing manifest should be skipped", Arrays.asList("a.jpg"),
+                     relative(new ImageSource("@" + new File(folder, "missing.lst"),
+                                              new File(folder, "a.jpg").getPath())));
+    }
+
+    private List<String> relative(Iterator<File> images) {
+        List<String> names = new ArrayList<>();
+        final int prefix = folder.getPath().length() + 1;
+        while (images.hasNext()) {
+            names.add(images.next().getPath().substring(prefix).replace(File.separatorChar, '/'));
+        }
+        return names;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        assertTrue("The folder for " + file + " should exist",
+                   file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        assertTrue("It should be possible to delete " + file, file.delete());
+    }
+}
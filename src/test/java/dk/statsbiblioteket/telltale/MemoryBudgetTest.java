@@ -0,0 +1,93 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class MemoryBudgetTest extends TestCase {
+
+    public MemoryBudgetTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(MemoryBudgetTest.class);
+    }
+
+    public void testEstimate() throws Exception {
+        for (String path: PixelAccessTest.IMAGES) {
+            File file = TelltaleBaseCase.getFile(path);
+            BufferedImage image = ImageIO.read(file);
+            DataBuffer buffer = image.getRaster().getDataBuffer();
+            long pixelBytes = (long) buffer.getSize() * buffer.getNumBanks() *
+                              DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+            try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+                ImageReader reader = ImageIO.getImageReaders(in).next();
+                reader.setInput(in);
+                long estimate = MemoryBudget.estimate(reader, 2);
+                reader.dispose();
+                assertTrue("The estimate " + estimate + " for " + path + " should cover the raster of " +
+                           pixelBytes + " bytes", estimate >= pixelBytes);
+                long rowBytes = image.getWidth() * 4 * MemoryBudget.ANALYSIS_ROW_INTS * 2;
+                assertTrue("The estimate " + estimate + " for " + path + " should not be far above the raster of " +
+                           pixelBytes + " bytes plus the analysis rows of " + rowBytes + " bytes",
+                           estimate < pixelBytes * 2 + rowBytes);
+            }
+        }
+    }
+
+    public void testClamp() throws Exception {
+        MemoryBudget budget = new MemoryBudget(10 * 1024);
+        long reservation = budget.acquire(Long.MAX_VALUE / 2);
+        assertEquals("Oversized requests should take the full budget", 0, budget.getAvailable());
+        budget.release(reservation);
+        assertEquals("Everything should be available after release", 10 * 1024, budget.getAvailable());
+    }
+
+    public void testWait() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(10 * 1024);
+        long first = budget.acquire(6 * 1024);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    budget.acquire(6 * 1024);
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        waiter.setDaemon(true);
+        waiter.start();
+        assertFalse("The second reservation should wait while the first is held",
+                    acquired.await(200, TimeUnit.MILLISECONDS));
+        budget.release(first);
+        assertTrue("The second reservation should be granted after release",
+                   acquired.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+public class MultiFactorDetectTest extends TelltaleBaseCase {
+
+    public MultiFactorDetectTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(MultiFactorDetectTest.class);
+    }
+
+    @Override
+    protected ImageAnalyzer getAnalyzer() {
+        return new MultiFactorDetect();
+    }
+
+    public void testGimpNearest() throws IOException {
+        assertMatch(CAR_NEAR, ImageIO.read(CAR_NEAR), "x2 at offset (0, 1)");
+    }
+
+    public void testNoMatch() throws IOException {
+        for (File image: new File[]{CAR_RAW, CAR_LINEAR, TEXT}) {
+            assertMatch(image, ImageIO.read(image), "none");
+        }
+    }
+
+    // Nearest Neighbour upscales by all the default factors, cut so that the first complete cell is not at (0, 0).
+    // With the period p as the numerator of the factor, cutting c pixels moves the offset to (p-c) % p
+    public void testFactors() throws IOException {
+        BufferedImage raw = ImageIO.read(CAR_RAW);
+        for (int[] fraction: new int[][]{{3, 2}, {2, 1}, {3, 1}, {4, 1}}) {
+            final int period = fraction[0];
+            final int sources = fraction[1];
+            BufferedImage cut = scaleNearestAndCut(raw, period, sources);
+            String factor = sources == 1 ? "x" + period : "x" + (double) period/sources;
+            assertMatch(new File(factor), cut, String.format(
+                    "%s at offset (%d, %d)", factor, (period-1) % period, (period-2) % period));
+        }
+    }
+
+    public void testFactorValidation() {
+        for (double factor: new double[]{1, 0.5, Math.PI}) {
+            try {
+                new MultiFactorDetect(factor);
+                fail("The factor " + factor + " should not be accepted");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    private void assertMatch(File file, BufferedImage image, String expected) {
+        String analysis = getAnalyzer().analyze(file, image).toString();
+        assertTrue("The analysis of " + file + " should have the best matching factor " + expected + ":\n"
+                   + analysis, analysis.contains("Best matching factor: " + expected + "\n"));
+    }
+}
@@ -11,6 +11,8 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 public class NearestNeighbourDetectTest extends TelltaleBaseCase {
 
@@ -26,4 +28,150 @@ public class NearestNeighbourDetectTest extends TelltaleBaseCase {
     protected ImageAnalyzer getAnalyzer() {
         return new NearestNeighbourDetect();
     }
+
+    // The single pass analysis collects the contrast blocks itself and must agree with averageContrast
+    public void testSinglePassContrast() throws IOException {
+        NearestNeighbourDetect detector = new NearestNeighbourDetect().setScreen(null);
+        for (File file: ALL) {
+            BufferedImage image = ImageIO.read(file);
+            String expected = String.format("Overall image contrast (average 3x3 block deviation): %.2f\n",
+                                            detector.averageContrast(image, 3));
+            assertTrue("The analysis of " + file + " should contain the line '" + expected + "'",
+                       detector.analyze(file, image).toString().contains(expected));
+        }
+    }
+
+    // The single pass analysis must give the same values and candidate order as the original implementation,
+    // which made a pass over the image for the contrast and for each of the 4 offsets
+    public void testOriginalImplementation() throws IOException {
+        NearestNeighbourDetect detector = new NearestNeighbourDetect().setScreen(null);
+        for (File file: ALL) {
+            BufferedImage image = ImageIO.read(file);
+            assertEquals("Analysis of " + file, referenceAnalysis(image), detector.analyze(file, image).getText());
+        }
+    }
+
+    // The original implementation, with the candidates as {offsetX, offsetY, ABCD, AB_CD, AC_BD}
+    private String referenceAnalysis(BufferedImage image) {
+        final double averageContrast = referenceContrast(image, 3);
+        final List<double[]> candidates = new ArrayList<>();
+        final long[][] rectRGB = new long[3][4];
+        for (int offsetX = 0 ; offsetX < 2 ; offsetX++) {
+            for (int offsetY = 0 ; offsetY < 2 ; offsetY++) {
+                double sumMaxDeviationABCD = 0.0;
+                double sumMaxDeviationAB_CD = 0.0;
+                double sumMaxDeviationAC_BD = 0.0;
+                int blockCount = 0;
+                for (int y = offsetY ; y < image.getHeight()-1 ; y+=2) {
+                    for (int x = offsetX ; x < image.getWidth()-1 ; x+=2) {
+                        blockCount++;
+                        extractReference(image, y, x, 2, 2, rectRGB);
+                        sumMaxDeviationABCD += maxDeviation(rectRGB, 0, 1, 2, 3);
+                        sumMaxDeviationAB_CD += (maxDeviation(rectRGB, 0, 1) + maxDeviation(rectRGB, 2, 3)) / 2;
+                        sumMaxDeviationAC_BD += (maxDeviation(rectRGB, 0, 2) + maxDeviation(rectRGB, 1, 3)) / 2;
+                    }
+                }
+                candidates.add(new double[]{offsetX, offsetY, sumMaxDeviationABCD / blockCount,
+                                            sumMaxDeviationAB_CD / blockCount, sumMaxDeviationAC_BD / blockCount});
+            }
+        }
+
+        List<double[]> best = null;
+        for (int[] permutation: permutations(candidates.size())) {
+            List<double[]> arranged = new ArrayList<>();
+            for (int index: permutation) {
+                arranged.add(candidates.get(index));
+            }
+            if (best == null || isLower(referenceScore(arranged), referenceScore(best))) {
+                best = arranged;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Overall image contrast (average %dx%d block deviation): %.2f\n", 3, 3,
+                                averageContrast));
+        sb.append("2x2 blocks\n");
+        sb.append("Offset   ABCD  AB_CD  AC_BD\n");
+        for (double[] candidate: best) {
+            sb.append(String.format("(%d, %d)  %5.2f  %5.2f  %5.2f\n", (int) candidate[0], (int) candidate[1],
+                                    candidate[2], candidate[3], candidate[4]));
+        }
+        sb.append(String.format("Upscale model conformance score (lower is better): %.2f\n", referenceScore(best)));
+        return sb.toString();
+    }
+
+    private double referenceScore(List<double[]> candidates) {
+        final int abcd = 2;
+        final int ab_cd = 3;
+        final int ac_bd = 4;
+        double score = Stats.standardDeviation(new double[]{candidates.get(0)[ab_cd], candidates.get(0)[ac_bd],
+                                                            candidates.get(1)[ab_cd], candidates.get(2)[ac_bd]});
+        score += Stats.standardDeviation(new double[]{candidates.get(1)[abcd], candidates.get(2)[abcd]});
+        score *= candidates.get(0)[abcd] > candidates.get(1)[abcd] ||
+                 candidates.get(0)[abcd] > candidates.get(2)[abcd] ? 10 : 1;
+        score *= candidates.get(1)[abcd] > candidates.get(3)[abcd] ||
+                 candidates.get(2)[abcd] > candidates.get(3)[abcd] ? 10 : 1;
+        score *= candidates.get(0)[abcd] > candidates.get(3)[abcd] ? 100 : 1;
+        return score;
+    }
+
+    private double referenceContrast(BufferedImage image, int rectSide) {
+        final long[][] rectRGB = new long[3][rectSide*rectSide];
+        double sumMaxDeviation = 0.0;
+        int rectCount = 0;
+        for (int y = 0 ; y < image.getHeight()-rectSide ; y+=rectSide) {
+            for (int x = 0 ; x < image.getWidth()-rectSide ; x+=rectSide) {
+                rectCount++;
+                extractReference(image, y, x, rectSide, rectSide, rectRGB);
+                sumMaxDeviation += Stats.max(new double[]{Stats.standardDeviation(rectRGB[0]),
+                        Stats.standardDeviation(rectRGB[1]), Stats.standardDeviation(rectRGB[2])});
+            }
+        }
+        return sumMaxDeviation / rectCount;
+    }
+
+    private static void extractReference(BufferedImage image, int y, int x, int width, int height,
+                                         long[][] rectRGB) {
+        int index = 0;
+        for (int rectY = y ; rectY < y+height ; rectY++) {
+            for (int rectX = x ; rectX < x+width ; rectX++) {
+                final int rgb = image.getRGB(rectX, rectY);
+                rectRGB[0][index] = (rgb & 0x00ff0000) >> 16; // red
+                rectRGB[1][index] = (rgb & 0x0000ff00) >> 8;  // green
+                rectRGB[2][index++] = rgb & 0x000000ff;       // blue
+            }
+        }
+    }
+
+    private static double maxDeviation(long[][] rectRGB, int... entries) {
+        final double[] deviations = new double[3];
+        final long[] channelValues = new long[entries.length];
+        for (int channel = 0 ; channel < 3 ; channel++) {
+            for (int i = 0 ; i < entries.length ; i++) {
+                channelValues[i] = rectRGB[channel][entries[i]];
+            }
+            deviations[channel] = Stats.standardDeviation(channelValues);
+        }
+        return Stats.max(deviations);
+    }
+
+    // The packed bilevel path must give the same scores as the general path
+    public void testBilevel() throws IOException {
+        NearestNeighbourDetect detector = new NearestNeighbourDetect();
+        for (File file: ALL) {
+            BufferedImage bilevel = PixelAccessTest.convert(ImageIO.read(file), BufferedImage.TYPE_BYTE_BINARY);
+            assertBilevel(detector, file, bilevel);
+            assertBilevel(detector, file, bilevel.getSubimage(
+                    3, 1, Math.min(bilevel.getWidth()-3, 200), Math.min(bilevel.getHeight()-1, 150)));
+        }
+        BufferedImage car = ImageIO.read(getFile("gimp/car_raw.png"));
+        assertBilevel(detector, getFile("gimp/car_raw.png"), PixelAccessTest.convert(
+                car, PixelAccessTest.createTwoColor(car.getWidth(), car.getHeight())));
+    }
+
+    private void assertBilevel(NearestNeighbourDetect detector, File file, BufferedImage bilevel) {
+        assertTrue("The pixel access for " + file + " should be bilevel", PixelAccess.create(bilevel).isBilevel());
+        assertEquals("Bilevel analysis of " + file + " (" + bilevel.getWidth() + "x" + bilevel.getHeight() + ")",
+                     detector.analyze(file, PixelAccess.createGeneric(bilevel)).toString(),
+                     detector.analyze(file, bilevel).toString());
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+public class PeriodicityDetectTest extends TelltaleBaseCase {
+
+    public PeriodicityDetectTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PeriodicityDetectTest.class);
+    }
+
+    @Override
+    protected ImageAnalyzer getAnalyzer() {
+        return new PeriodicityDetect();
+    }
+
+    public void testGimpNearest() throws IOException {
+        assertFactor(CAR_NEAR, ImageIO.read(CAR_NEAR), "2.000 at phase (0.00, 1.00)");
+    }
+
+    public void testNoUpscale() throws IOException {
+        for (File image: new File[]{CAR_RAW, TEXT, RASTER, HVIDE1, DEFF}) {
+            assertFactor(image, ImageIO.read(image), "none");
+        }
+    }
+
+    // Nearest Neighbour upscales by fractions, cut so that the cells do not start at (0, 0). Cutting c pixels
+    // moves the phase from 0 to -c modulo the factor
+    public void testFractions() throws IOException {
+        BufferedImage raw = ImageIO.read(CAR_RAW);
+        for (int[] fraction: new int[][]{{3, 2}, {4, 3}, {25, 12}, {3, 1}, {11, 2}}) {
+            final int period = fraction[0];
+            final int sources = fraction[1];
+            final double factor = (double) period / sources;
+            BufferedImage cut = scaleNearestAndCut(raw, period, sources);
+            assertFactor(new File(period + "/" + sources), cut, String.format(
+                    "%.3f at phase (%.2f, %.2f)", factor, (factor*2 - 1) % factor, (factor*2 - 2) % factor));
+        }
+    }
+
+    private void assertFactor(File file, BufferedImage image, String expected) {
+        String analysis = getAnalyzer().analyze(file, image).toString();
+        assertTrue("The analysis of " + file + " should give the upscale factor " + expected + ":\n" + analysis,
+                   analysis.contains("Upscale factor: " + expected + "\n"));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+
+public class PixelAccessTest extends TestCase {
+    public static final String[] IMAGES = new String[]{
+            "raw/text_300dpi.png", "raw/raster_300dpi.png", "raw/hvide_19340402_5.png", "gimp/car_raw.png"};
+
+    // All of these represent the sRGB values from getRGB without loss
+    public static final int[] LOSSLESS_TYPES = new int[]{
+            BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_BGR};
+
+    public PixelAccessTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PixelAccessTest.class);
+    }
+
+    public void testSameAsGetRGB() throws IOException {
+        for (String path: IMAGES) {
+            BufferedImage image = ImageIO.read(TelltaleBaseCase.getFile(path));
+            assertSameAsGetRGB(path + " type " + image.getType(), image);
+            for (int type: LOSSLESS_TYPES) {
+                assertSameAsGetRGB(path + " type " + type, convert(image, type));
+            }
+            BufferedImage gray = convert(image, BufferedImage.TYPE_BYTE_GRAY);
+            assertSameAsGetRGB(path + " type " + BufferedImage.TYPE_BYTE_GRAY, gray);
+        }
+    }
+
+    public void testSubimage() throws IOException {
+        BufferedImage image = ImageIO.read(TelltaleBaseCase.getFile("gimp/car_raw.png"));
+        assertSameAsGetRGB("3BYTE_BGR sub", image.getSubimage(7, 11, 100, 50));
+        assertSameAsGetRGB("INT_RGB sub", convert(image, BufferedImage.TYPE_INT_RGB).getSubimage(7, 11, 100, 50));
+        assertSameAsGetRGB("BYTE_GRAY sub", convert(image, BufferedImage.TYPE_BYTE_GRAY).getSubimage(7, 11, 100, 50));
+    }
+
+    public void testPartialRow() throws IOException {
+        BufferedImage image = ImageIO.read(TelltaleBaseCase.getFile("gimp/car_raw.png"));
+        PixelAccess pixels = PixelAccess.create(image);
+        int[][] rgb = new int[3][10];
+        pixels.readRow(20, 30, 10, rgb);
+        for (int i = 0 ; i < 10 ; i++) {
+            assertEquals("Red for pixel " + i, (image.getRGB(20+i, 30) >> 16) & 0xFF, rgb[0][i]);
+        }
+    }
+
+    public void testBilevel() throws IOException {
+        for (String path: IMAGES) {
+            BufferedImage image = ImageIO.read(TelltaleBaseCase.getFile(path));
+            for (BufferedImage bilevel: new BufferedImage[]{convert(image, BufferedImage.TYPE_BYTE_BINARY),
+                    convert(image, createTwoColor(image.getWidth(), image.getHeight()))}) {
+                assertBilevel(path, bilevel);
+                assertBilevel(path + " sub", bilevel.getSubimage(7, 11, 100, 50));
+                assertBilevel(path + " sub", bilevel.getSubimage(1, 0, 64, 2));
+                File file = TelltaleBaseCase.getFile(path);
+                for (ImageAnalyzer analyzer: new ImageAnalyzer[]{
+                        new NearestNeighbourDetect(), new BilinearDetect()}) {
+                    assertEquals("Bilevel analysis of " + path + " by " + analyzer.getName(),
+                                 analyzer.analyze(file, PixelAccess.createGeneric(bilevel)).toString(),
+                                 analyzer.analyze(file, bilevel).toString());
+                }
+            }
+        }
+    }
+
+    private void assertBilevel(String message, BufferedImage image) {
+        assertSameAsGetRGB(message, image);
+        PixelAccess pixels = PixelAccess.create(image);
+        assertTrue(message + " should be bilevel", pixels.isBilevel());
+        long[] words = new long[(image.getWidth()+63)/64];
+        for (int y = 0 ; y < image.getHeight() ; y++) {
+            pixels.readPackedRow(y, words);
+            for (int x = 0 ; x < words.length*64 ; x++) {
+                int bit = (int) (words[x/64] >>> (63 - x%64)) & 1;
+                if (x >= image.getWidth()) {
+                    assertEquals(message + ": Bit " + x + " after the end of row " + y + " should be 0", 0, bit);
+                } else {
+                    assertEquals(message + ": Colour for pixel (" + x + ", " + y + ")",
+                                 image.getRGB(x, y) | 0xFF000000, pixels.getBilevelColor(bit) | 0xFF000000);
+                }
+            }
+        }
+    }
+
+    // The fast paths must not change the scores compared to the getRGB based fallback (TYPE_INT_BGR)
+    public void testIdenticalScores() throws IOException {
+        for (ImageAnalyzer analyzer: new ImageAnalyzer[]{new NearestNeighbourDetect(), new BilinearDetect()}) {
+            for (String path: IMAGES) {
+                File file = TelltaleBaseCase.getFile(path);
+                BufferedImage image = ImageIO.read(file);
+                String expected = analyzer.analyze(file, convert(image, BufferedImage.TYPE_INT_BGR)).toString();
+                assertEquals("Analysis of " + path + " in original type " + image.getType() + " by "
+                             + analyzer.getName(), expected, analyzer.analyze(file, image).toString());
+                for (int type: LOSSLESS_TYPES) {
+                    assertEquals("Analysis of " + path + " in type " + type + " by " + analyzer.getName(),
+                                 expected, analyzer.analyze(file, convert(image, type)).toString());
+                }
+            }
+        }
+    }
+
+    private void assertSameAsGetRGB(String message, BufferedImage image) {
+        PixelAccess pixels = PixelAccess.create(image);
+        int[][] rgb = new int[3][image.getWidth()];
+        for (int y = 0 ; y < image.getHeight() ; y++) {
+            pixels.readRow(y, rgb);
+            for (int x = 0 ; x < image.getWidth() ; x++) {
+                int clr = image.getRGB(x, y);
+                if (((clr >> 16) & 0xFF) != rgb[0][x] || ((clr >> 8) & 0xFF) != rgb[1][x] ||
+                    (clr & 0xFF) != rgb[2][x]) {
+                    fail(message + ": Pixel (" + x + ", " + y + ") should be " + Integer.toHexString(clr & 0xFFFFFF)
+                         + " but was (" + rgb[0][x] + ", " + rgb[1][x] + ", " + rgb[2][x] + ")");
+                }
+            }
+        }
+    }
+
+    public static BufferedImage convert(BufferedImage image, int type) {
+        return convert(image, new BufferedImage(image.getWidth(), image.getHeight(), type));
+    }
+
+    public static BufferedImage convert(BufferedImage image, BufferedImage converted) {
+        for (int y = 0 ; y < image.getHeight() ; y++) {
+            for (int x = 0 ; x < image.getWidth() ; x++) {
+                converted.setRGB(x, y, image.getRGB(x, y) | 0xFF000000);
+            }
+        }
+        return converted;
+    }
+
+    // A black box for a bilevel image with a palette that is neither black nor white
+    public static BufferedImage createTwoColor(int width, int height) {
+        IndexColorModel palette = new IndexColorModel(
+                1, 2, new byte[]{(byte) 0x20, (byte) 0xF0}, new byte[]{(byte) 0x40, (byte) 0xC0},
+                new byte[]{(byte) 0x90, (byte) 0x10});
+        return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, palette);
+    }
+}
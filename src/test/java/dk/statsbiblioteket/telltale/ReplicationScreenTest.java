@@ -0,0 +1,98 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+public class ReplicationScreenTest extends TestCase {
+
+    public ReplicationScreenTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ReplicationScreenTest.class);
+    }
+
+    public void testGimpNearest() throws IOException {
+        BufferedImage image = ImageIO.read(TelltaleBaseCase.getFile("gimp/car_near.png"));
+        ReplicationScreen.Result result = new ReplicationScreen().screen(PixelAccess.create(image));
+        assertTrue("car_near should be replicated: " + result, result.isReplicated());
+        assertEquals("Horizontal offset", 0, result.getOffsetX());
+        assertEquals("Vertical offset", 1, result.getOffsetY());
+    }
+
+    // Colour, grey and bilevel rows are packed differently and must all be detected at all offsets
+    public void testAllLayouts() throws IOException {
+        BufferedImage raw = ImageIO.read(TelltaleBaseCase.getFile("gimp/car_raw.png"));
+        BufferedImage doubled = replicate(raw.getSubimage(0, 0, 67, 45));
+        for (int type: new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY,
+                BufferedImage.TYPE_BYTE_BINARY}) {
+            BufferedImage converted = PixelAccessTest.convert(doubled, type);
+            for (int offsetX = 0 ; offsetX < 2 ; offsetX++) {
+                for (int offsetY = 0 ; offsetY < 2 ; offsetY++) {
+                    BufferedImage shifted = converted.getSubimage(
+                            offsetX, offsetY, converted.getWidth()-2, converted.getHeight()-1);
+                    ReplicationScreen.Result result = new ReplicationScreen().screen(PixelAccess.create(shifted));
+                    String message = "Type " + type + " at offset (" + offsetX + ", " + offsetY + "): " + result;
+                    assertTrue(message, result.isReplicated());
+                    assertEquals(message, offsetX, result.getOffsetX());
+                    assertEquals(message, offsetY, result.getOffsetY());
+                }
+            }
+        }
+    }
+
+    public void testBailOut() throws IOException {
+        BufferedImage image = ImageIO.read(TelltaleBaseCase.getFile("gimp/car_raw.png"));
+        ReplicationScreen.Result result = new ReplicationScreen().screen(PixelAccess.create(image));
+        assertFalse("car_raw should not be replicated", result.isReplicated());
+        assertTrue("The screen should give up early but examined " + result.getRowsExamined() + " rows",
+                   result.getRowsExamined() < 5);
+    }
+
+    public void testFlat() {
+        BufferedImage flat = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+        assertFalse("A flat image has no determinable replication",
+                    new ReplicationScreen().screen(PixelAccess.create(flat)).isReplicated());
+    }
+
+    public void testTolerance() throws IOException {
+        BufferedImage raw = ImageIO.read(TelltaleBaseCase.getFile("gimp/car_raw.png"));
+        BufferedImage doubled = replicate(raw.getSubimage(0, 0, 50, 40));
+        doubled.setRGB(3, 5, doubled.getRGB(3, 5) ^ 0x000100);
+        assertFalse("A single changed pixel should not be accepted by default",
+                    new ReplicationScreen().screen(PixelAccess.create(doubled)).isReplicated());
+        assertTrue("A single changed pixel should be tolerated",
+                   new ReplicationScreen(2).screen(PixelAccess.create(doubled)).isReplicated());
+    }
+
+    private BufferedImage replicate(BufferedImage image) {
+        BufferedImage doubled = new BufferedImage(image.getWidth()*2, image.getHeight()*2,
+                                                  BufferedImage.TYPE_INT_RGB);
+        for (int y = 0 ; y < doubled.getHeight() ; y++) {
+            for (int x = 0 ; x < doubled.getWidth() ; x++) {
+                doubled.setRGB(x, y, image.getRGB(x/2, y/2));
+            }
+        }
+        return doubled;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+public class ResultCacheTest extends TestCase {
+    private final CompositeAnalyzer analyzer = new Detect().getAnalyzer();
+    private File folder;
+    private File image;
+
+    public ResultCacheTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ResultCacheTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        folder = File.createTempFile("telltale_cache_", "");
+        assertTrue("The temporary file should be deletable", folder.delete());
+        assertTrue("The cache folder should be created", folder.mkdirs());
+        image = new File(folder, "car_near.png");
+        try (InputStream in = new FileInputStream(TelltaleBaseCase.getFile("gimp/car_near.png"));
+             OutputStream out = new FileOutputStream(image)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file: folder.listFiles()) {
+            assertTrue("It should be possible to delete " + file, file.delete());
+        }
+        assertTrue("It should be possible to delete " + folder, folder.delete());
+        super.tearDown();
+    }
+
+    public void testHit() throws IOException {
+        List<AnalysisResult> results = analyzer.analyze(image, ImageIO.read(image));
+        try (ResultCache cache = new ResultCache(folder, false)) {
+            String key = cache.getKey(image, analyzer.getSignature());
+            assertNull("An empty cache should not have the image", cache.get(key, image));
+            cache.put(key, results);
+            assertResults(results, cache.get(key, image));
+            assertEquals("Hits", 1, cache.getHits());
+            assertEquals("Misses", 1, cache.getMisses());
+        }
+    }
+
+    public void testPersistence() throws IOException {
+        List<AnalysisResult> results = analyzer.analyze(image, ImageIO.read(image));
+        try (ResultCache cache = new ResultCache(folder, true)) {
+            cache.put(cache.getKey(image, analyzer.getSignature()), results);
+        }
+        try (ResultCache cache = new ResultCache(folder, true)) {
+            assertEquals("Stored keys", 1, cache.size());
+            assertResults(results, cache.get(cache.getKey(image, analyzer.getSignature()), image));
+        }
+    }
+
+    public void testModified() throws IOException {
+        try (ResultCache cache = new ResultCache(folder, false)) {
+            cache.put(cache.getKey(image, analyzer.getSignature()), analyzer.analyze(image, ImageIO.read(image)));
+            assertTrue("Changing the modification time should succeed",
+                       image.setLastModified(image.lastModified() - 60000));
+            assertNull("A changed modification time should be a miss",
+                       cache.get(cache.getKey(image, analyzer.getSignature()), image));
+        }
+    }
+
+    public void testContentHash() throws IOException {
+        try (ResultCache cache = new ResultCache(folder, true)) {
+            cache.put(cache.getKey(image, analyzer.getSignature()), analyzer.analyze(image, ImageIO.read(image)));
+            final long modified = image.lastModified();
+            try (RandomAccessFile content = new RandomAccessFile(image, "rw")) {
+                content.seek(content.length() - 1);
+                final int last = content.read();
+                content.seek(content.length() - 1);
+                content.write(last ^ 1);
+            }
+            assertTrue("Restoring the modification time should succeed", image.setLastModified(modified));
+            assertNull("Changed content with the same size and modification time should be a miss",
+                       cache.get(cache.getKey(image, analyzer.getSignature()), image));
+        }
+    }
+
+    public void testSignature() throws IOException {
+        CompositeAnalyzer other = new CompositeAnalyzer(Arrays.<ImageAnalyzer>asList(
+                new NearestNeighbourDetect().setSampling(new BandSampler()), new BilinearDetect(),
+                new MultiFactorDetect(), new PeriodicityDetect()));
+        CompositeAnalyzer factors = new CompositeAnalyzer(Arrays.<ImageAnalyzer>asList(
+                new NearestNeighbourDetect(), new BilinearDetect(),
+                new MultiFactorDetect(2, 3), new PeriodicityDetect()));
+        assertFalse("Sampling should change the signature", analyzer.getSignature().equals(other.getSignature()));
+        assertFalse("The factors should change the signature", analyzer.getSignature().equals(factors.getSignature()));
+
+        try (ResultCache cache = new ResultCache(folder, false)) {
+            cache.put(cache.getKey(image, analyzer.getSignature()), analyzer.analyze(image, ImageIO.read(image)));
+            assertNull("Other analyzer parameters should be a miss",
+                       cache.get(cache.getKey(image, other.getSignature()), image));
+        }
+    }
+
+    public void testExclusive() throws IOException {
+        try (ResultCache cache = new ResultCache(folder, false)) {
+            try {
+                new ResultCache(folder, false).close();
+                fail("A cache folder should only be usable by one cache at a time");
+            } catch (IOException e) {
+                // Expected
+            }
+            assertEquals("The cache should still be usable", 0, cache.size());
+        }
+        new ResultCache(folder, false).close();
+    }
+
+    public void testTruncated() throws IOException {
+        List<AnalysisResult> results = analyzer.analyze(image, ImageIO.read(image));
+        File other = TelltaleBaseCase.getFile("gimp/car_raw.png");
+        try (ResultCache cache = new ResultCache(folder, false)) {
+            cache.put(cache.getKey(image, analyzer.getSignature()), results);
+            cache.put(cache.getKey(other, analyzer.getSignature()), analyzer.analyze(other, ImageIO.read(other)));
+        }
+        // Simulates a crash while writing the last record
+        File log = new File(folder, ResultCache.LOG);
+        try (RandomAccessFile content = new RandomAccessFile(log, "rw")) {
+            content.setLength(content.length() - 10);
+        }
+        try (ResultCache cache = new ResultCache(folder, false)) {
+            assertNull("The damaged record should be a miss",
+                       cache.get(cache.getKey(other, analyzer.getSignature()), other));
+            assertResults(results, cache.get(cache.getKey(image, analyzer.getSignature()), image));
+        }
+    }
+
+    private static void assertResults(List<AnalysisResult> expected, List<AnalysisResult> actual) {
+        assertNotNull("The results should be cached", actual);
+        assertEquals("Number of results", expected.size(), actual.size());
+        for (int i = 0 ; i < expected.size() ; i++) {
+            assertEquals("Result " + i, expected.get(i).toString(), actual.get(i).toString());
+            assertEquals("Analyzer " + i, expected.get(i).getTestName(), actual.get(i).getTestName());
+            assertEquals("Factor " + i, expected.get(i).getFactorX(), actual.get(i).getFactorX());
+            assertEquals("Candidates " + i,
+                         expected.get(i).getCandidates().size(), actual.get(i).getCandidates().size());
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ResultWriterTest extends TestCase {
+    private final CompositeAnalyzer analyzer =
+            new Detect(null, null, MultiFactorDetect.DEFAULT_FACTORS, true).getAnalyzer();
+
+    public ResultWriterTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ResultWriterTest.class);
+    }
+
+    // The typed values must agree with the text
+    public void testTyped() throws IOException {
+        File file = TelltaleBaseCase.getFile("gimp/car_near.png");
+        List<AnalysisResult> results = analyzer.analyze(file, ImageIO.read(file));
+        AnalysisResult screened = results.get(0);
+        assertTrue("The Nearest Neighbour screen should detect x2", screened.isUpscaled());
+        assertEquals("Screened factor", 2.0, screened.getFactorX());
+        assertTrue("The text should state the typed offset", screened.getText().contains(String.format(
+                "(%d, %d)", (int) screened.getOffsetX(), (int) screened.getOffsetY())));
+
+        AnalysisResult bilinear = results.get(1);
+        assertEquals("Bilinear candidates", 4, bilinear.getCandidates().size());
+        assertEquals("Bilinear metrics", 5, bilinear.getMetricNames().length);
+        assertTrue("The text should state the typed score",
+                   bilinear.getText().contains(String.format("%.4f", bilinear.getScore())));
+
+        AnalysisResult multiFactor = results.get(2);
+        assertEquals("Multi-factor factor", 2.0, multiFactor.getFactorX());
+        for (AnalysisResult result: results) {
+            assertTrue("The time should be measured for " + result.getTestName(), result.getNanos() >= 0);
+        }
+    }
+
+    public void testText() throws IOException {
+        List<AnalysisResult> results = analyze("gimp/car_linear_gimp.png", "raw/text_300dpi.png");
+        StringBuilder expected = new StringBuilder();
+        for (AnalysisResult result: results) {
+            expected.append(result).append(System.lineSeparator());
+        }
+        assertEquals("Text output should be the same as printing the results",
+                     expected.toString(), write(ResultWriter.Format.TEXT, results));
+    }
+
+    public void testBinaryRoundTrip() throws IOException {
+        List<AnalysisResult> results = analyze("gimp/car_linear_gimp.png", "gimp/car_near.png");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ResultWriter writer = ResultWriter.create(ResultWriter.Format.BINARY, bytes)) {
+            writer.write(results);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (AnalysisResult expected: results) {
+            AnalysisResult actual = ResultWriter.readBinary(in);
+            assertNotNull("There should be a result for " + expected.getTestName(), actual);
+            assertEquals("Image", expected.getImage(), actual.getImage());
+            assertEquals("Name", expected.getTestName(), actual.getTestName());
+            assertTrue("Metric names", Arrays.equals(expected.getMetricNames(), actual.getMetricNames()));
+            assertEquals("Factor", expected.getFactorX(), actual.getFactorX());
+            assertEquals("Offset", expected.getOffsetY(), actual.getOffsetY());
+            assertEquals("Score", expected.getScore(), actual.getScore());
+            assertEquals("Nanos", expected.getNanos(), actual.getNanos());
+            assertEquals("Candidates", expected.getCandidates().size(), actual.getCandidates().size());
+            for (int i = 0 ; i < expected.getCandidates().size() ; i++) {
+                assertTrue("Metrics for candidate " + i, Arrays.equals(expected.getCandidates().get(i).getMetrics(),
+                                                                       actual.getCandidates().get(i).getMetrics()));
+            }
+            assertTrue("The generic text should be rendered", actual.toString().contains("Upscale factor"));
+        }
+        assertNull("The stream should be exhausted", ResultWriter.readBinary(in));
+    }
+
+    public void testJsonLines() throws IOException {
+        List<AnalysisResult> results = new ArrayList<>(analyze("gimp/car_raw.png"));
+        results.add(new AnalysisResult(new File("with \"quotes\"\\.png"), "Text only", "Some text\n"));
+        String[] lines = write(ResultWriter.Format.JSONL, results).split("\n");
+        assertEquals("There should be a line per result", results.size(), lines.length);
+        assertTrue("The Nearest Neighbour result should have candidates",
+                   lines[0].contains("\"metrics\":[\"ABCD\",\"AB_CD\",\"AC_BD\"],\"candidates\":[{\"factorX\":2.0"));
+        assertTrue("Values that are not produced should be null", lines[1].contains("\"contrast\":null"));
+        assertTrue("The file name should be escaped", lines[lines.length-1].startsWith(
+                "{\"image\":\"with \\\"quotes\\\"\\\\.png\",\"analyzer\":\"Text only\",\"upscaled\":false"));
+    }
+
+    public void testCsv() throws IOException {
+        List<AnalysisResult> results = new ArrayList<>(analyze("gimp/car_raw.png"));
+        results.add(new AnalysisResult(new File("a,b.png"), "Text only", "Some text\n"));
+        String[] lines = write(ResultWriter.Format.CSV, results).split("\n");
+        int expected = 1;
+        for (AnalysisResult result: results) {
+            expected += Math.max(1, result.getCandidates().size() * result.getMetricNames().length);
+        }
+        assertEquals("There should be a header and a row per candidate and metric", expected, lines.length);
+        final int columns = lines[0].split(",", -1).length;
+        for (int i = 1 ; i < lines.length - 1 ; i++) {
+            assertEquals("Columns in row " + i + ": " + lines[i], columns, lines[i].split(",", -1).length);
+        }
+        assertTrue("Cells with commas should be quoted", lines[lines.length-1].startsWith("\"a,b.png\",Text only,"));
+    }
+
+    private List<AnalysisResult> analyze(String... paths) throws IOException {
+        List<AnalysisResult> results = new ArrayList<>();
+        for (String path: paths) {
+            File file = TelltaleBaseCase.getFile(path);
+            results.addAll(analyzer.analyze(file, ImageIO.read(file)));
+        }
+        return results;
+    }
+
+    private String write(ResultWriter.Format format, List<AnalysisResult> results) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ResultWriter writer = ResultWriter.create(format, bytes)) {
+            writer.write(results);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.telltale;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class StatsTest extends TestCase {
+
+    public StatsTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(StatsTest.class);
+    }
+
+    // The closed forms must give the exact same doubles as the array based versions
+    public void testClosedForms() {
+        Random random = new Random(87);
+        for (int i = 0 ; i < 100000 ; i++) {
+            long a = random.nextInt(256);
+            long b = random.nextInt(256);
+            long c = random.nextInt(256);
+            long d = random.nextInt(256);
+            assertEquals(Stats.standardDeviation(new long[]{a, b}), Stats.standardDeviation(a, b));
+            assertEquals(Stats.standardDeviation(new long[]{a, b, c, d}), Stats.standardDeviation(a, b, c, d));
+            double da = a + random.nextDouble();
+            double db = 1.0 * (b + c) / 2;
+            assertEquals(Stats.standardDeviation(new double[]{da, db}), Stats.standardDeviation(da, db));
+            assertEquals(Stats.max(new double[]{da, db, c}), Stats.max(da, db, c));
+        }
+    }
+
+    public void testHistogram() {
+        Random random = new Random(87);
+        long[] values = new long[1001];
+        long[] histogram = new long[256];
+        for (int i = 0 ; i < values.length ; i++) {
+            values[i] = random.nextInt(256);
+            histogram[(int) values[i]]++;
+        }
+        double expected = Stats.standardDeviation(values);
+        assertEquals(expected, Stats.standardDeviationFromHistogram(histogram), expected * 1.0E-12);
+    }
+
+    public void testAccumulatorMerge() {
+        Random random = new Random(87);
+        long[] values = new long[1000];
+        Stats.Accumulator all = new Stats.Accumulator();
+        Stats.Accumulator first = new Stats.Accumulator();
+        Stats.Accumulator second = new Stats.Accumulator();
+        Stats.Welford welfordFirst = new Stats.Welford();
+        Stats.Welford welfordSecond = new Stats.Welford();
+        for (int i = 0 ; i < values.length ; i++) {
+            values[i] = random.nextInt(256);
+            all.add(values[i]);
+            (i < 317 ? first : second).add(values[i]);
+            (i < 317 ? welfordFirst : welfordSecond).add(values[i]);
+        }
+        second.merge(first);
+        assertEquals(all.getCount(), second.getCount());
+        assertEquals(all.getSum(), second.getSum());
+        assertEquals(all.getSumSquares(), second.getSumSquares());
+        assertEquals(all.getVariance(), second.getVariance());
+
+        double expected = Stats.standardDeviation(values);
+        assertEquals(expected, all.getStandardDeviation(), expected * 1.0E-12);
+        assertEquals(Stats.mean(values), all.getMean(), 1.0E-12);
+
+        welfordFirst.merge(welfordSecond);
+        assertEquals(values.length, welfordFirst.getCount());
+        assertEquals(expected, welfordFirst.getStandardDeviation(), expected * 1.0E-12);
+        assertEquals(Stats.mean(values), welfordFirst.getMean(), 1.0E-12);
+    }
+
+    public void testNormalQuantile() {
+        assertEquals(0.0, Stats.normalQuantile(0.5), 1.0E-9);
+        assertEquals(1.959963985, Stats.normalQuantile(0.975), 1.0E-8);
+        assertEquals(-2.326347874, Stats.normalQuantile(0.01), 1.0E-8);
+        assertEquals(3.090232306, Stats.normalQuantile(0.999), 1.0E-8);
+    }
+
+    // The bound from a subset of the values must never exceed the deviation of all of them
+    public void testMinStandardDeviation() {
+        Random random = new Random(87);
+        for (int run = 0 ; run < 1000 ; run++) {
+            final double[] values = new double[2 + random.nextInt(8)];
+            for (int i = 0 ; i < values.length ; i++) {
+                values[i] = random.nextInt(256) * random.nextDouble();
+            }
+            final double full = Stats.standardDeviation(values);
+            for (int known = 0 ; known <= values.length ; known++) {
+                final double bound = Stats.minStandardDeviation(values.length, Arrays.copyOf(values, known));
+                assertTrue("Bound from " + known + " of " + values.length + " values", bound <= full + 1.0E-9);
+            }
+            assertEquals("Bound from all values", full,
+                         Stats.minStandardDeviation(values.length, values), 1.0E-9 * Math.max(1, full));
+        }
+    }
+
+    public void testLcm() {
+        assertEquals(1, Stats.lcm(1, 1));
+        assertEquals(6, Stats.lcm(2, 3));
+        assertEquals(12, Stats.lcm(4, 6));
+        assertEquals(25, Stats.lcm(25, 5));
+        assertEquals(300, Stats.lcm(12, 25));
+    }
+}
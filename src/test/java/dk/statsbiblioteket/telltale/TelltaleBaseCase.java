@@ -23,6 +23,9 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public abstract class TelltaleBaseCase extends TestCase {
 
@@ -66,6 +69,68 @@ public abstract class TelltaleBaseCase extends TestCase {
         testScales(TEXT, getAnalyzer());
     }
 
+    // Parallel analysis must give exactly the same result for any number of threads as sequential analysis with
+    // the same strips, including the order of the candidates
+    public void testParallel() throws IOException {
+        for (File image: ALL) {
+            BufferedImage bImage = ImageIO.read(image);
+            String sequential = ((ImageAnalyzerImpl) getAnalyzer()).setParallel(null, 10).analyze(image, bImage)
+                    .toString();
+            String firstParallel = null;
+            for (int threads: new int[]{1, 2, 3, 8}) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    ImageAnalyzerImpl analyzer = ((ImageAnalyzerImpl) getAnalyzer()).setParallel(pool, 10);
+                    String parallel = analyzer.analyze(image, bImage).toString();
+                    if (firstParallel == null) {
+                        firstParallel = parallel;
+                    }
+                    assertEquals("Analysis of " + image + " with " + threads + " threads should be the same as "
+                                 + "with 1 thread", firstParallel, parallel);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            assertEquals("Parallel analysis of " + image + " should match sequential with the same strips",
+                         sequential, firstParallel);
+        }
+    }
+
+    // The strip height only changes the order of summation, which must not change the values at the reported
+    // precision or the order of candidates with tied scores
+    public void testStripHeight() throws IOException {
+        for (File image: ALL) {
+            BufferedImage bImage = ImageIO.read(image);
+            String single = ((ImageAnalyzerImpl) getAnalyzer()).setParallel(null, 100000).analyze(image, bImage)
+                    .toString();
+            for (int stripHeight: new int[]{10, ImageAnalyzerImpl.DEFAULT_STRIP_HEIGHT}) {
+                String strips = ((ImageAnalyzerImpl) getAnalyzer()).setParallel(null, stripHeight)
+                        .analyze(image, bImage).toString();
+                assertEquals("Analysis of " + image + " with strips of " + stripHeight + " rows should be the same "
+                             + "as with a single strip", single, strips);
+            }
+        }
+    }
+
+    // Grey rows are processed as a single channel, which must give exactly the same result as all 3 channels.
+    // The images are tested in their original type as well as with a single coloured pixel, so that grey and
+    // coloured rows are mixed
+    public void testGrayPath() throws IOException {
+        for (File image: ALL) {
+            BufferedImage bImage = ImageIO.read(image);
+            BufferedImage mixed = PixelAccessTest.convert(bImage, BufferedImage.TYPE_INT_RGB);
+            mixed.setRGB(mixed.getWidth()/2, mixed.getHeight()/2, 0xFF0000);
+            for (BufferedImage variant: new BufferedImage[]{bImage, mixed}) {
+                ImageAnalyzerImpl analyzer = (ImageAnalyzerImpl) getAnalyzer();
+                String expected = analyzer.setTraversal(
+                        new RowTraversal(null, RowTraversal.DEFAULT_STRIP_HEIGHT, false)).analyze(image, variant)
+                        .toString();
+                assertEquals("Analysis of " + image + " of type " + variant.getType() + " with grey detection",
+                             expected, getAnalyzer().analyze(image, variant).toString());
+            }
+        }
+    }
+
     // *********************************************************************************************************
 
     protected void write(File image) throws IOException {
@@ -86,6 +151,19 @@ public abstract class TelltaleBaseCase extends TestCase {
         System.out.println("Bi-linear scaled " + in + " x " + factor + " to " + out);
     }
 
+    // Nearest Neighbour upscales by period/sources and cuts 1 column to the left and 2 rows at the top, so that
+    // the first complete cell is not at (0, 0)
+    protected BufferedImage scaleNearestAndCut(BufferedImage raw, int period, int sources) {
+        BufferedImage scaled = new BufferedImage(raw.getWidth()*period/sources, raw.getHeight()*period/sources,
+                                                 BufferedImage.TYPE_INT_RGB);
+        for (int y = 0 ; y < scaled.getHeight() ; y++) {
+            for (int x = 0 ; x < scaled.getWidth() ; x++) {
+                scaled.setRGB(x, y, raw.getRGB(x*sources/period, y*sources/period));
+            }
+        }
+        return scaled.getSubimage(1, 2, scaled.getWidth()-3, scaled.getHeight()-3);
+    }
+
     protected void testScales(File image, ImageAnalyzer analyzer) throws IOException {
         final File SCALED_NO = new File(System.getProperty("java.io.tmpdir"), image.getName() + ".scaled_not.png");
         final File SCALED_NE = new File(System.getProperty("java.io.tmpdir"), image.getName() + ".scaled_near.png");
@@ -103,6 +181,34 @@ public abstract class TelltaleBaseCase extends TestCase {
         System.out.println(analyzer.analyze(SCALED_BC, ImageIO.read(SCALED_BC)));
     }
 
+    // All permutations of 0..size-1 in lexicographic order, as the original implementations visited them
+    static List<int[]> permutations(int size) {
+        List<int[]> permutations = new ArrayList<>();
+        permute(new int[size], new boolean[size], 0, permutations);
+        return permutations;
+    }
+
+    private static void permute(int[] permutation, boolean[] used, int position, List<int[]> permutations) {
+        if (position == permutation.length) {
+            permutations.add(permutation.clone());
+            return;
+        }
+        for (int i = 0 ; i < permutation.length ; i++) {
+            if (!used[i]) {
+                used[i] = true;
+                permutation[position] = i;
+                permute(permutation, used, position+1, permutations);
+                used[i] = false;
+            }
+        }
+    }
+
+    // The original implementations replaced the best permutation on any lower score. Scores that only differ by
+    // rounding errors are ties since the order of the candidates was made independent of the order of summation
+    static boolean isLower(double score, double bestScore) {
+        return score < bestScore - 1.0E-9 * Math.max(1, Math.abs(bestScore));
+    }
+
     @SuppressWarnings("ConstantConditions")
     public static File getFile(String path) {
         URL url = Thread.currentThread().getContextClassLoader().getResource(path);